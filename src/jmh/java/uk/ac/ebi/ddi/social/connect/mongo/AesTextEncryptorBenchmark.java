@@ -0,0 +1,93 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.security.crypto.encrypt.TextEncryptor;
+
+import uk.ac.ebi.ddi.social.connect.mongo.AesTextEncryptor.Algorithm;
+
+/**
+ * Encrypts and decrypts a token with {@link AesTextEncryptor} and with the Spring
+ * Security encryptor of the same format, on one thread and on four threads sharing
+ * the encryptor.
+ *
+ * @author Carlo P. Micieli
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class AesTextEncryptorBenchmark {
+
+	private static final String PASSWORD = "benchmark";
+	private static final String SALT = "5c0744940b5c369b";
+
+	@Param({ "CBC", "GCM" })
+	private Algorithm algorithm;
+
+	@Param({ "spring", "cached" })
+	private String encryptor;
+
+	private TextEncryptor textEncryptor;
+	private String token;
+	private String encryptedToken;
+
+	@Setup
+	public void setup() {
+		if ("cached".equals(encryptor)) {
+			textEncryptor = new AesTextEncryptor(PASSWORD, SALT, algorithm);
+		} else if (algorithm == Algorithm.GCM) {
+			textEncryptor = Encryptors.delux(PASSWORD, SALT);
+		} else {
+			textEncryptor = Encryptors.text(PASSWORD, SALT);
+		}
+		token = "b6ff8c7b2b5a3e7d4d3e1c2a9f8e7d6c";
+		encryptedToken = textEncryptor.encrypt(token);
+	}
+
+	@Benchmark
+	public String encrypt() {
+		return textEncryptor.encrypt(token);
+	}
+
+	@Benchmark
+	public String decrypt() {
+		return textEncryptor.decrypt(encryptedToken);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public String decryptConcurrently() {
+		return textEncryptor.decrypt(encryptedToken);
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.social.connect.ConnectionFactory;
+import org.springframework.social.connect.ConnectionFactoryLocator;
+
+/**
+ * A connection factory locator for a fixed set of fake providers.
+ *
+ * @author Carlo P. Micieli
+ */
+class BenchmarkConnectionFactoryLocator implements ConnectionFactoryLocator {
+
+	private final Map<String, ConnectionFactory<?>> connectionFactories =
+			new HashMap<String, ConnectionFactory<?>>();
+
+	BenchmarkConnectionFactoryLocator(String... providerIds) {
+		for (String providerId : providerIds) {
+			connectionFactories.put(providerId, new FakeConnectionFactory<FakeProvider>(providerId, null, null));
+		}
+	}
+
+	public ConnectionFactory<?> getConnectionFactory(String providerId) {
+		return connectionFactories.get(providerId);
+	}
+
+	public <A> ConnectionFactory<A> getConnectionFactory(Class<A> apiType) {
+		throw new UnsupportedOperationException();
+	}
+
+	public Set<String> registeredProviderIds() {
+		return new LinkedHashSet<String>(connectionFactories.keySet());
+	}
+}
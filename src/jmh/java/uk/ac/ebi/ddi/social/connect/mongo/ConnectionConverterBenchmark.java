@@ -0,0 +1,85 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.security.crypto.encrypt.TextEncryptor;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
+
+/**
+ * Converts a connection with three tokens to a document and back, with the
+ * no-op and the AES text encryptors.
+ *
+ * @author Carlo P. Micieli
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ConnectionConverterBenchmark {
+
+	@Param({ "noOp", "aes" })
+	private String encryptor;
+
+	private ConnectionConverter converter;
+	private Connection<?> connection;
+	private MongoConnection document;
+
+	@Setup
+	public void setup() {
+		converter = new ConnectionConverter(new BenchmarkConnectionFactoryLocator("twitter"), textEncryptor(encryptor));
+		connection = new FakeConnection<FakeProvider>(new ConnectionData("twitter", "@joey_ramones", "joey r.",
+				"http://twitter.com/joey_ramones", "http://twitter.com/joey_ramones/picture",
+				"b6ff8c7b2b5a3e7d4d3e1c2a9f8e7d6c", "5a4b3c2d1e0f9e8d7c6b5a4b3c2d1e0f",
+				"0f1e2d3c4b5a6978e7d6c5b4a3928170", 1500000000000L));
+		document = converter.convert(connection);
+		document.setUserId("joey");
+		document.setRank(1);
+	}
+
+	@Benchmark
+	public Connection<?> toConnection() {
+		return converter.convert(document);
+	}
+
+	@Benchmark
+	public MongoConnection toDocument() {
+		return converter.convert(connection);
+	}
+
+	static TextEncryptor textEncryptor(String name) {
+		if ("aes".equals(name)) {
+			return Encryptors.text("benchmark", "5c0744940b5c369b");
+		}
+		return Encryptors.noOpText();
+	}
+}
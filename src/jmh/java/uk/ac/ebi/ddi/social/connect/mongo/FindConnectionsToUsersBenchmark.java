@@ -0,0 +1,79 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionRepository;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+/**
+ * {@code findConnectionsToUsers} for a user connected to every one of 1k to 50k
+ * provider user ids, asked for in the reverse order of their ranks, over the
+ * in-memory connection service.
+ *
+ * @author Carlo P. Micieli
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FindConnectionsToUsersBenchmark {
+
+	@Param({ "1000", "10000", "50000" })
+	private int providerUserIds;
+
+	private ConnectionRepository repository;
+	private MultiValueMap<String, String> providerUsers;
+
+	@Setup
+	public void setup() {
+		BenchmarkConnectionFactoryLocator locator = new BenchmarkConnectionFactoryLocator("twitter");
+		InMemoryConnectionService service =
+				new InMemoryConnectionService(new ConnectionConverter(locator, Encryptors.noOpText()));
+		FakeConnectionFactory<FakeProvider> factory = new FakeConnectionFactory<FakeProvider>("twitter", null, null);
+
+		providerUsers = new LinkedMultiValueMap<String, String>();
+		for (int i = 0; i < providerUserIds; i++) {
+			service.create("joey", factory.createConnection("friend-" + i, "friend " + i), i + 1);
+		}
+		for (int i = providerUserIds - 1; i >= 0; i--) {
+			providerUsers.add("twitter", "friend-" + i);
+		}
+		repository = new MongoConnectionRepository("joey", service, locator, Encryptors.noOpText());
+	}
+
+	@Benchmark
+	public MultiValueMap<String, Connection<?>> findConnectionsToUsers() {
+		return repository.findConnectionsToUsers(providerUsers);
+	}
+}
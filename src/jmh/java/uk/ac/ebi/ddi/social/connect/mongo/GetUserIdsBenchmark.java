@@ -0,0 +1,123 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+
+/**
+ * The reverse lookup of a set of provider user ids among 50k connections, by set
+ * size and chunk size, with the chunks queried one after the other or on four
+ * threads. Needs the MongoDB instance the tests are configured with.
+ *
+ * @author Carlo P. Micieli
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GetUserIdsBenchmark {
+
+	private static final int CONNECTIONS = 50000;
+
+	@Param({ "1000", "10000", "50000" })
+	private int setSize;
+
+	@Param({ "500", "1000", "5000" })
+	private int chunkSize;
+
+	// zero to query the chunks on the calling thread
+	@Param({ "0", "4" })
+	private int threads;
+
+	private AnnotationConfigApplicationContext context;
+	private MongoTemplate mongoOps;
+	private MongoConnectionService service;
+	private ExecutorService executor;
+	private Set<String> providerUserIds;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		context = new AnnotationConfigApplicationContext(ApplicationConfig.class);
+		mongoOps = context.getBean(MongoTemplate.class);
+		service = context.getBean(MongoConnectionService.class);
+
+		List<MongoConnection> cnns = new ArrayList<MongoConnection>(CONNECTIONS);
+		for (int i = 0; i < CONNECTIONS; i++) {
+			MongoConnection c = new MongoConnection();
+			c.setUserId("user-" + i);
+			c.setProviderId("twitter");
+			c.setProviderUserId("@user-" + i);
+			c.setRank(1);
+			c.setAccessToken("accessToken");
+			cnns.add(c);
+		}
+		mongoOps.insert(cnns, MongoConnection.class);
+
+		providerUserIds = new HashSet<String>(setSize);
+		for (int i = 0; i < setSize; i++) {
+			providerUserIds.add("@user-" + i);
+		}
+
+		service.setReverseLookupChunkSize(chunkSize);
+		if (threads > 0) {
+			executor = Executors.newFixedThreadPool(threads);
+			service.setReverseLookupExecutor(executor);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+		mongoOps.remove(new Query(), MongoConnection.class);
+		context.close();
+	}
+
+	@Benchmark
+	public Set<String> getUserIds() {
+		Set<String> userIds = service.getUserIds("twitter", providerUserIds);
+		if (userIds.size() != setSize) {
+			throw new IllegalStateException(userIds.size() + " of " + setSize + " user ids");
+		}
+		return userIds;
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+
+/**
+ * Connections written per second by {@code importConnections} into an empty collection,
+ * by batch size, with the connections encrypted on the calling thread or on four threads,
+ * against one {@code create} per connection. Two connections per user. Needs the
+ * MongoDB instance the tests are configured with.
+ *
+ * @author Carlo P. Micieli
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ImportConnectionsBenchmark {
+
+	private static final int CONNECTIONS = 20000;
+
+	@State(Scope.Benchmark)
+	public static class Connections {
+
+		private final FakeConnectionFactory<FakeProvider> factory =
+				new FakeConnectionFactory<FakeProvider>("fake", null, null);
+
+		AnnotationConfigApplicationContext context;
+		MongoTemplate mongoOps;
+		MongoConnectionService service;
+		List<UserConnection> connections;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			context = new AnnotationConfigApplicationContext(ApplicationConfig.class);
+			mongoOps = context.getBean(MongoTemplate.class);
+			service = context.getBean(MongoConnectionService.class);
+
+			connections = new ArrayList<UserConnection>(CONNECTIONS);
+			for (int i = 0; i < CONNECTIONS; i++) {
+				connections.add(new UserConnection("user-" + i / 2,
+						factory.createConnection("@user-" + i, "user " + i)));
+			}
+		}
+
+		@Setup(Level.Invocation)
+		public void clear() {
+			mongoOps.remove(new Query(), MongoConnection.class);
+			mongoOps.remove(new Query(), MongoConnectionRank.class);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			clear();
+			context.close();
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Batches {
+
+		@Param({ "100", "1000", "5000", "10000" })
+		int batchSize;
+
+		// zero to encrypt the connections on the calling thread
+		@Param({ "0", "4" })
+		int threads;
+
+		ExecutorService executor;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			if (threads > 0) {
+				executor = Executors.newFixedThreadPool(threads);
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			if (executor != null) {
+				executor.shutdownNow();
+			}
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(CONNECTIONS)
+	public int importConnections(Connections state, Batches batches) {
+		state.service.setImportExecutor(batches.executor);
+		int imported = 0;
+		for (int from = 0; from < CONNECTIONS; from += batches.batchSize) {
+			List<UserConnection> batch = state.connections.subList(from,
+					Math.min(from + batches.batchSize, CONNECTIONS));
+			imported += state.service.importConnections(batch).getImportedCount();
+		}
+		if (imported != CONNECTIONS) {
+			throw new IllegalStateException(imported + " of " + CONNECTIONS + " connections imported");
+		}
+		return imported;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(CONNECTIONS)
+	public int create(Connections state) {
+		for (UserConnection uc : state.connections) {
+			state.service.create(uc.getUserId(), uc.getConnection());
+		}
+		return CONNECTIONS;
+	}
+}
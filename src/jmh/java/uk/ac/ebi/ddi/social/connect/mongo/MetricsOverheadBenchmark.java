@@ -0,0 +1,84 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.security.crypto.encrypt.Encryptors;
+
+/**
+ * The cost of the metrics on one of the cheapest reads, the reverse lookup of a
+ * provider user in the in-memory service: without the metrics decorator, with it
+ * and {@link ConnectionMetrics#NONE}, and with {@link SimpleConnectionMetrics}.
+ *
+ * @author Carlo P. Micieli
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class MetricsOverheadBenchmark {
+
+	private ConnectionService plain;
+	private ConnectionService disabled;
+	private ConnectionService enabled;
+
+	@Setup
+	public void setup() {
+		plain = connectionService(ConnectionMetrics.NONE);
+		disabled = new MetricsConnectionService(plain, ConnectionMetrics.NONE);
+		SimpleConnectionMetrics metrics = new SimpleConnectionMetrics();
+		enabled = new MetricsConnectionService(connectionService(metrics), metrics);
+	}
+
+	@Benchmark
+	public List<String> withoutMetrics() {
+		return plain.getUserIds("twitter", "@joey_ramones");
+	}
+
+	@Benchmark
+	public List<String> withMetricsDisabled() {
+		return disabled.getUserIds("twitter", "@joey_ramones");
+	}
+
+	@Benchmark
+	public List<String> withSimpleMetrics() {
+		return enabled.getUserIds("twitter", "@joey_ramones");
+	}
+
+	private static ConnectionService connectionService(ConnectionMetrics metrics) {
+		ConnectionConverter converter =
+				new ConnectionConverter(new BenchmarkConnectionFactoryLocator("twitter"), Encryptors.noOpText());
+		converter.setMetrics(metrics);
+		InMemoryConnectionService service = new InMemoryConnectionService(converter);
+		service.create("joey", new FakeConnectionFactory<FakeProvider>("twitter", null, null)
+				.createConnection("@joey_ramones", "joey r."));
+		return service;
+	}
+}
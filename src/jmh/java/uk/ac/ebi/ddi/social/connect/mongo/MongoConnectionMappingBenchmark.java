@@ -0,0 +1,127 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.data.mongodb.core.SimpleMongoDbFactory;
+import org.springframework.data.mongodb.core.convert.DefaultDbRefResolver;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+
+/**
+ * Compares the {@link MongoConnectionCodec} with the default mapping converter,
+ * reading and writing a full connection document and reading a userId-only
+ * projection. No server is needed, the client is only there to satisfy the
+ * converter's reference resolver.
+ *
+ * @author Carlo P. Micieli
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class MongoConnectionMappingBenchmark {
+
+	private MongoClient client;
+	private MappingMongoConverter converter;
+
+	private MongoConnection connection;
+	private DBObject document;
+	private DBObject projection;
+
+	@Setup
+	public void setup() throws Exception {
+		client = new MongoClient();
+		converter = new MappingMongoConverter(
+				new DefaultDbRefResolver(new SimpleMongoDbFactory(client, "benchmark")),
+				new MongoMappingContext());
+		converter.afterPropertiesSet();
+
+		connection = new MongoConnection();
+		connection.setId(new ObjectId());
+		connection.setUserId("joey");
+		connection.setProviderId("twitter");
+		connection.setProviderUserId("@joey_ramones");
+		connection.setRank(1);
+		connection.setDisplayName("joey r.");
+		connection.setProfileUrl("http://twitter.com/joey_ramones");
+		connection.setImageUrl("http://twitter.com/joey_ramones/picture");
+		connection.setAccessToken("b6ff8c7b2b5a3e7d4d3e1c2a9f8e7d6c");
+		connection.setSecret("5a4b3c2d1e0f9e8d7c6b5a4b3c2d1e0f");
+		connection.setRefreshToken("0f1e2d3c4b5a6978e7d6c5b4a3928170");
+		connection.setExpireTime(1500000000000L);
+
+		document = new BasicDBObject();
+		converter.write(connection, document);
+		projection = new BasicDBObject("userId", "joey");
+	}
+
+	@TearDown
+	public void tearDown() {
+		client.close();
+	}
+
+	@Benchmark
+	public MongoConnection readWithMappingConverter() {
+		return converter.read(MongoConnection.class, document);
+	}
+
+	@Benchmark
+	public MongoConnection readWithCodec() {
+		return MongoConnectionCodec.read(document);
+	}
+
+	@Benchmark
+	public DBObject writeWithMappingConverter() {
+		DBObject dbo = new BasicDBObject();
+		converter.write(connection, dbo);
+		return dbo;
+	}
+
+	@Benchmark
+	public DBObject writeWithCodec() {
+		return MongoConnectionCodec.write(connection);
+	}
+
+	@Benchmark
+	public String readUserIdWithMappingConverter() {
+		return converter.read(MongoConnection.class, projection).getUserId();
+	}
+
+	@Benchmark
+	public String readUserIdFromTheDocument() {
+		return (String) projection.get("userId");
+	}
+}
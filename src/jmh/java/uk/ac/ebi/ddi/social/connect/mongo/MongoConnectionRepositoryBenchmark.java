@@ -0,0 +1,93 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionRepository;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+/**
+ * The repository side of {@code findAllConnections} and
+ * {@code findConnectionsToUsers}, over an in-memory connection service holding
+ * the connections of one user spread across three providers.
+ * {@code findConnectionsToUsers} asks for all the twitter connections, in
+ * reverse order.
+ *
+ * @author Carlo P. Micieli
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class MongoConnectionRepositoryBenchmark {
+
+	private static final String[] PROVIDERS = { "twitter", "facebook", "linkedin" };
+
+	@Param({ "10", "1000" })
+	private int connections;
+
+	private ConnectionRepository repository;
+	private MultiValueMap<String, String> providerUsers;
+
+	@Setup
+	public void setup() {
+		BenchmarkConnectionFactoryLocator locator = new BenchmarkConnectionFactoryLocator(PROVIDERS);
+		ConnectionConverter converter = new ConnectionConverter(locator, Encryptors.noOpText());
+
+		InMemoryConnectionService service = new InMemoryConnectionService(converter);
+		FakeConnectionFactory<FakeProvider> factory = new FakeConnectionFactory<FakeProvider>("twitter", null, null);
+		providerUsers = new LinkedMultiValueMap<String, String>();
+		for (int i = 0; i < connections; i++) {
+			String providerId = PROVIDERS[i % PROVIDERS.length];
+			service.create("joey", factory.createConnection(providerId, "user-" + i, "user " + i),
+					i / PROVIDERS.length + 1);
+		}
+		for (int i = connections - 1; i >= 0; i--) {
+			if (PROVIDERS[i % PROVIDERS.length].equals("twitter")) {
+				providerUsers.add("twitter", "user-" + i);
+			}
+		}
+
+		repository = new MongoConnectionRepository("joey", service, locator, Encryptors.noOpText());
+	}
+
+	@Benchmark
+	public MultiValueMap<String, Connection<?>> findAllConnections() {
+		return repository.findAllConnections();
+	}
+
+	@Benchmark
+	public MultiValueMap<String, Connection<?>> findConnectionsToUsers() {
+		return repository.findConnectionsToUsers(providerUsers);
+	}
+}
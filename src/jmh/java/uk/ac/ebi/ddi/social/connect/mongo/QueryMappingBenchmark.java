@@ -0,0 +1,113 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.data.mongodb.core.SimpleMongoDbFactory;
+import org.springframework.data.mongodb.core.convert.DefaultDbRefResolver;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.social.connect.Connection;
+
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+
+/**
+ * The client side of {@code MongoConnectionService.runQuery}: turning a page of
+ * query results into connections, as the service does with the codec and as it
+ * did with the mapping converter. The server round trip is left out.
+ *
+ * @author Carlo P. Micieli
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class QueryMappingBenchmark {
+
+	@Param({ "1", "50" })
+	private int results;
+
+	@Param({ "noOp", "aes" })
+	private String encryptor;
+
+	private MongoClient client;
+	private MappingMongoConverter mappingConverter;
+	private ConnectionConverter converter;
+	private List<DBObject> documents;
+
+	@Setup
+	public void setup() throws Exception {
+		client = new MongoClient();
+		mappingConverter = new MappingMongoConverter(
+				new DefaultDbRefResolver(new SimpleMongoDbFactory(client, "benchmark")),
+				new MongoMappingContext());
+		mappingConverter.afterPropertiesSet();
+		converter = new ConnectionConverter(new BenchmarkConnectionFactoryLocator("twitter"),
+				ConnectionConverterBenchmark.textEncryptor(encryptor));
+
+		documents = new ArrayList<DBObject>(results);
+		for (int i = 0; i < results; i++) {
+			MongoConnection mc = converter.convert(new FakeConnectionFactory<FakeProvider>("twitter", null, null)
+					.createConnection("@user-" + i, "user " + i));
+			mc.setId(new ObjectId());
+			mc.setUserId("joey");
+			mc.setRank(i + 1);
+			documents.add(MongoConnectionCodec.write(mc));
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		client.close();
+	}
+
+	@Benchmark
+	public List<Connection<?>> mapWithCodec() {
+		List<Connection<?>> connections = new ArrayList<Connection<?>>(documents.size());
+		for (DBObject dbo : documents) {
+			connections.add(converter.convert(MongoConnectionCodec.read(dbo)));
+		}
+		return connections;
+	}
+
+	@Benchmark
+	public List<Connection<?>> mapWithMappingConverter() {
+		List<Connection<?>> connections = new ArrayList<Connection<?>>(documents.size());
+		for (DBObject dbo : documents) {
+			connections.add(converter.convert(mappingConverter.read(MongoConnection.class, dbo)));
+		}
+		return connections;
+	}
+}
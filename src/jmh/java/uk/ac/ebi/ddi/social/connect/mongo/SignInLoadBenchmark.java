@@ -0,0 +1,173 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionSignUp;
+import org.springframework.util.concurrent.ListenableFutureCallback;
+
+/**
+ * The time taken by a burst of concurrent sign ins, half of them signing up a new
+ * user through a sign up taking 5 ms, as a call to a remote user directory does,
+ * over the in-memory connection service. {@code blocking} calls
+ * {@code findUserIdsWithConnection} on a thread per sign in, as a blocking server
+ * holds one per request; {@code async} issues {@code findUserIdsWithConnectionAsync}
+ * from the benchmark thread, on 16 lookup and 32 sign up threads.
+ *
+ * @author Carlo P. Micieli
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SignInLoadBenchmark {
+
+	private static final int LOOKUP_THREADS = 16;
+	private static final int SIGN_UP_THREADS = 32;
+	private static final long SIGN_UP_MILLIS = 5;
+
+	@Param({ "1000", "5000" })
+	private int signIns;
+
+	private final FakeConnectionFactory<FakeProvider> factory =
+			new FakeConnectionFactory<FakeProvider>("fake", null, null);
+
+	private ExecutorService lookupExecutor;
+	private ExecutorService signUpExecutor;
+	private MongoUsersConnectionRepository usersRepository;
+	private List<Connection<?>> connections;
+
+	@Setup(Level.Trial)
+	public void startExecutors() {
+		lookupExecutor = Executors.newFixedThreadPool(LOOKUP_THREADS);
+		signUpExecutor = Executors.newFixedThreadPool(SIGN_UP_THREADS);
+	}
+
+	@Setup(Level.Iteration)
+	public void setup() {
+		BenchmarkConnectionFactoryLocator locator = new BenchmarkConnectionFactoryLocator("fake");
+		InMemoryConnectionService service =
+				new InMemoryConnectionService(new ConnectionConverter(locator, Encryptors.noOpText()));
+		usersRepository = new MongoUsersConnectionRepository(service, locator, Encryptors.noOpText());
+		usersRepository.setConnectionSignUp(new ConnectionSignUp() {
+			public String execute(Connection<?> connection) {
+				try {
+					Thread.sleep(SIGN_UP_MILLIS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return "user-" + connection.getKey().getProviderUserId();
+			}
+		});
+		usersRepository.setLookupExecutor(lookupExecutor);
+		usersRepository.setSignUpExecutor(signUpExecutor);
+
+		connections = new ArrayList<Connection<?>>(signIns);
+		for (int i = 0; i < signIns; i++) {
+			Connection<?> connection = factory.createConnection("provider-user-" + i, "user " + i);
+			if (i % 2 == 0) {
+				service.create("user-provider-user-" + i, connection);
+			}
+			connections.add(connection);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void stopExecutors() {
+		lookupExecutor.shutdownNow();
+		signUpExecutor.shutdownNow();
+	}
+
+	@Benchmark
+	public int blocking() throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(signIns);
+		final AtomicInteger signedIn = new AtomicInteger();
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			for (final Connection<?> connection : connections) {
+				executor.execute(new Runnable() {
+					public void run() {
+						try {
+							start.await();
+							signedIn.addAndGet(usersRepository.findUserIdsWithConnection(connection).size());
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						} finally {
+							done.countDown();
+						}
+					}
+				});
+			}
+			start.countDown();
+			done.await();
+		} finally {
+			executor.shutdownNow();
+		}
+		return checked(signedIn.get());
+	}
+
+	@Benchmark
+	public int async() throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(signIns);
+		final AtomicInteger signedIn = new AtomicInteger();
+		for (Connection<?> connection : connections) {
+			usersRepository.findUserIdsWithConnectionAsync(connection).addCallback(
+					new ListenableFutureCallback<List<String>>() {
+						public void onSuccess(List<String> userIds) {
+							signedIn.addAndGet(userIds.size());
+							done.countDown();
+						}
+						public void onFailure(Throwable e) {
+							done.countDown();
+						}
+					});
+		}
+		done.await();
+		return checked(signedIn.get());
+	}
+
+	private int checked(int signedIn) {
+		if (signedIn != signIns) {
+			throw new IllegalStateException(signedIn + " of " + signIns + " sign ins");
+		}
+		return signedIn;
+	}
+}
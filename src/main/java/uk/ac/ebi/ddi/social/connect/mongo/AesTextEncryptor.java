@@ -0,0 +1,165 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.springframework.security.crypto.codec.Hex;
+import org.springframework.security.crypto.encrypt.BytesEncryptor;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.security.crypto.encrypt.TextEncryptor;
+
+/**
+ * An AES encryptor reading and writing the format of the Spring Security ones:
+ * with {@link Algorithm#CBC} the text of {@link Encryptors#text}, with
+ * {@link Algorithm#GCM} the text of {@link Encryptors#delux}, and the bytes of
+ * {@link Encryptors#standard} and {@link Encryptors#stronger} respectively.
+ * <p>
+ * The key is derived once from the password and the hex encoded salt, with
+ * PBKDF2WithHmacSHA1 and 1024 iterations, and the encrypted values are made of a
+ * random 16 bytes IV followed by the cipher text. Unlike the Spring Security
+ * encryptors, which share a single cipher under a lock, every thread has its own
+ * cipher and random generator, so concurrent reads of the tokens do not wait for
+ * each other.
+ *
+ * @author Carlo P. Micieli
+ */
+public class AesTextEncryptor implements TextEncryptor, BytesEncryptor {
+
+	private static final int IV_LENGTH = 16;
+	private static final int GCM_TAG_BITS = 128;
+	private static final int ITERATIONS = 1024;
+	private static final int KEY_BITS = 256;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	public enum Algorithm {
+
+		CBC("AES/CBC/PKCS5Padding"),
+
+		GCM("AES/GCM/NoPadding");
+
+		private final String transformation;
+
+		private Algorithm(String transformation) {
+			this.transformation = transformation;
+		}
+
+		AlgorithmParameterSpec parameterSpec(byte[] iv, int offset) {
+			return this == GCM ? new GCMParameterSpec(GCM_TAG_BITS, iv, offset, IV_LENGTH) :
+					new IvParameterSpec(iv, offset, IV_LENGTH);
+		}
+	}
+
+	private final Algorithm algorithm;
+	private final SecretKey key;
+
+	private final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>() {
+		@Override
+		protected Cipher initialValue() {
+			try {
+				return Cipher.getInstance(algorithm.transformation);
+			} catch (GeneralSecurityException e) {
+				throw new IllegalArgumentException("Unable to create the " + algorithm.transformation + " cipher", e);
+			}
+		}
+	};
+
+	private final ThreadLocal<SecureRandom> randoms = new ThreadLocal<SecureRandom>() {
+		@Override
+		protected SecureRandom initialValue() {
+			return new SecureRandom();
+		}
+	};
+
+	/**
+	 * Creates an encryptor with the GCM algorithm, compatible with {@link Encryptors#delux}.
+	 */
+	public AesTextEncryptor(CharSequence password, CharSequence salt) {
+		this(password, salt, Algorithm.GCM);
+	}
+
+	public AesTextEncryptor(CharSequence password, CharSequence salt, Algorithm algorithm) {
+		this.algorithm = algorithm;
+		this.key = secretKey(password, salt);
+		// fails now rather than on the first token when the algorithm is not supported
+		ciphers.get();
+	}
+
+	@Override
+	public String encrypt(String text) {
+		return new String(Hex.encode(encrypt(text.getBytes(UTF_8))));
+	}
+
+	@Override
+	public String decrypt(String encryptedText) {
+		return new String(decrypt(Hex.decode(encryptedText)), UTF_8);
+	}
+
+	@Override
+	public byte[] encrypt(byte[] bytes) {
+		Cipher cipher = ciphers.get();
+		byte[] iv = new byte[IV_LENGTH];
+		randoms.get().nextBytes(iv);
+		try {
+			cipher.init(Cipher.ENCRYPT_MODE, key, algorithm.parameterSpec(iv, 0));
+			byte[] encrypted = new byte[IV_LENGTH + cipher.getOutputSize(bytes.length)];
+			System.arraycopy(iv, 0, encrypted, 0, IV_LENGTH);
+			int length = IV_LENGTH + cipher.doFinal(bytes, 0, bytes.length, encrypted, IV_LENGTH);
+			return length == encrypted.length ? encrypted : Arrays.copyOf(encrypted, length);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Unable to encrypt", e);
+		}
+	}
+
+	@Override
+	public byte[] decrypt(byte[] encryptedBytes) {
+		if (encryptedBytes.length < IV_LENGTH) {
+			throw new IllegalArgumentException("Not an encrypted value, shorter than its IV");
+		}
+		Cipher cipher = ciphers.get();
+		try {
+			cipher.init(Cipher.DECRYPT_MODE, key, algorithm.parameterSpec(encryptedBytes, 0));
+			return cipher.doFinal(encryptedBytes, IV_LENGTH, encryptedBytes.length - IV_LENGTH);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Unable to decrypt", e);
+		}
+	}
+
+	private static SecretKey secretKey(CharSequence password, CharSequence salt) {
+		PBEKeySpec keySpec = new PBEKeySpec(password.toString().toCharArray(), Hex.decode(salt),
+				ITERATIONS, KEY_BITS);
+		try {
+			SecretKey secret = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1").generateSecret(keySpec);
+			return new SecretKeySpec(secret.getEncoded(), "AES");
+		} catch (GeneralSecurityException e) {
+			throw new IllegalArgumentException("Unable to derive the key", e);
+		} finally {
+			keySpec.clearPassword();
+		}
+	}
+}
@@ -0,0 +1,400 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.util.MultiValueMap;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.ListenableFutureCallback;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+/**
+ * Runs the operations of a {@link ConnectionService} on an executor, returning
+ * {@link ListenableFuture}s, so that a caller can issue several lookups at once.
+ * <p>
+ * The calls are bounded twice: at most {@code maxPending} of them may be queued or
+ * running, whatever the executor, and the executor built by the service has a
+ * bounded queue. A call over either limit fails right away with a
+ * {@link RejectedExecutionException}. A call still running after the timeout fails
+ * with a {@link QueryTimeoutException} and its thread is interrupted. Both are
+ * counted and recorded as errors of the operation in the {@link ConnectionMetrics},
+ * named as by the {@link MetricsConnectionService}. The streams are not offered,
+ * their iterators block by nature.
+ *
+ * @author Carlo P. Micieli
+ */
+public class AsyncConnectionService {
+
+	private final ConnectionService connectionService;
+	private final Executor executor;
+	// the executor built by this service, shut down with it
+	private final ThreadPoolExecutor ownExecutor;
+	private final ScheduledExecutorService timer;
+
+	private final int maxPending;
+	private final Semaphore pending;
+	private long timeoutNanos;
+	private ConnectionMetrics metrics = ConnectionMetrics.NONE;
+
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private final AtomicLong timedOutCount = new AtomicLong();
+
+	/**
+	 * Creates a service running the calls on its own pool of {@code threads} threads,
+	 * queuing up to {@code queueCapacity} of them.
+	 */
+	public AsyncConnectionService(ConnectionService connectionService, int threads, int queueCapacity) {
+		this(connectionService, newExecutor(threads, queueCapacity), true, threads + queueCapacity);
+	}
+
+	/**
+	 * Creates a service running the calls on the given executor, with at most
+	 * {@code maxPending} of them queued or running.
+	 */
+	public AsyncConnectionService(ConnectionService connectionService, Executor executor, int maxPending) {
+		this(connectionService, executor, false, maxPending);
+	}
+
+	private AsyncConnectionService(ConnectionService connectionService, Executor executor, boolean ownExecutor,
+			int maxPending) {
+
+		if (maxPending < 1) {
+			throw new IllegalArgumentException("maxPending must be positive");
+		}
+		this.connectionService = connectionService;
+		this.executor = executor;
+		this.ownExecutor = ownExecutor ? (ThreadPoolExecutor) executor : null;
+		this.maxPending = maxPending;
+		this.pending = new Semaphore(maxPending);
+		this.timer = Executors.newSingleThreadScheduledExecutor(daemonThreads("connection-async-timer"));
+	}
+
+	/**
+	 * Sets the time after which a call fails, from its submission; none by default.
+	 */
+	public void setTimeout(long timeout, TimeUnit unit) {
+		if (timeout < 0) {
+			throw new IllegalArgumentException("timeout must not be negative");
+		}
+		this.timeoutNanos = unit.toNanos(timeout);
+	}
+
+	/**
+	 * Sets the metrics recording the rejected and timed out calls.
+	 */
+	public void setMetrics(ConnectionMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Stops the timer and the executor built by this service, letting the calls
+	 * already submitted complete. An executor given to the service is left running.
+	 */
+	public void shutdown() {
+		timer.shutdown();
+		if (ownExecutor != null) {
+			ownExecutor.shutdown();
+		}
+	}
+
+	/**
+	 * Returns the number of calls queued or running.
+	 */
+	public int getPendingCount() {
+		return maxPending - pending.availablePermits();
+	}
+
+	/**
+	 * Returns the number of calls rejected, over the pending limit or by the executor.
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	/**
+	 * Returns the number of calls failed for running longer than the timeout.
+	 */
+	public long getTimedOutCount() {
+		return timedOutCount.get();
+	}
+
+	public ListenableFuture<Integer> getMaxRank(final String userId, final String providerId) {
+		return submit("getMaxRank", new Callable<Integer>() {
+			public Integer call() {
+				return connectionService.getMaxRank(userId, providerId);
+			}
+		});
+	}
+
+	public ListenableFuture<Void> create(final String userId, final Connection<?> userConn) {
+		return submit("create", new Callable<Void>() {
+			public Void call() {
+				connectionService.create(userId, userConn);
+				return null;
+			}
+		});
+	}
+
+	public ListenableFuture<Void> create(final String userId, final Connection<?> userConn, final int rank) {
+		return submit("createWithRank", new Callable<Void>() {
+			public Void call() {
+				connectionService.create(userId, userConn, rank);
+				return null;
+			}
+		});
+	}
+
+	public ListenableFuture<ConnectionImportResult> importConnections(final List<UserConnection> connections) {
+		return submit("importConnections", new Callable<ConnectionImportResult>() {
+			public ConnectionImportResult call() {
+				return connectionService.importConnections(connections);
+			}
+		});
+	}
+
+	public ListenableFuture<Void> update(final String userId, final Connection<?> userConn) {
+		return submit("update", new Callable<Void>() {
+			public Void call() {
+				connectionService.update(userId, userConn);
+				return null;
+			}
+		});
+	}
+
+	public ListenableFuture<Void> updateConnections(final List<UserConnection> connections) {
+		return submit("updateConnections", new Callable<Void>() {
+			public Void call() {
+				connectionService.updateConnections(connections);
+				return null;
+			}
+		});
+	}
+
+	public ListenableFuture<Void> remove(final String userId, final ConnectionKey connectionKey) {
+		return submit("remove", new Callable<Void>() {
+			public Void call() {
+				connectionService.remove(userId, connectionKey);
+				return null;
+			}
+		});
+	}
+
+	public ListenableFuture<Void> remove(final String userId, final String providerId) {
+		return submit("removeProvider", new Callable<Void>() {
+			public Void call() {
+				connectionService.remove(userId, providerId);
+				return null;
+			}
+		});
+	}
+
+	public ListenableFuture<Connection<?>> getPrimaryConnection(final String userId, final String providerId) {
+		return submit("getPrimaryConnection", new Callable<Connection<?>>() {
+			public Connection<?> call() {
+				return connectionService.getPrimaryConnection(userId, providerId);
+			}
+		});
+	}
+
+	public ListenableFuture<Connection<?>> getConnection(final String userId, final String providerId,
+			final String providerUserId) {
+		return submit("getConnection", new Callable<Connection<?>>() {
+			public Connection<?> call() {
+				return connectionService.getConnection(userId, providerId, providerUserId);
+			}
+		});
+	}
+
+	public ListenableFuture<List<Connection<?>>> getConnections(final String userId) {
+		return submit("getConnections", new Callable<List<Connection<?>>>() {
+			public List<Connection<?>> call() {
+				return connectionService.getConnections(userId);
+			}
+		});
+	}
+
+	public ListenableFuture<List<MongoConnection>> getMongoConnections(final String userId) {
+		return submit("getMongoConnections", new Callable<List<MongoConnection>>() {
+			public List<MongoConnection> call() {
+				return connectionService.getMongoConnections(userId);
+			}
+		});
+	}
+
+	public ListenableFuture<List<Connection<?>>> getConnections(final String userId, final String providerId) {
+		return submit("getProviderConnections", new Callable<List<Connection<?>>>() {
+			public List<Connection<?>> call() {
+				return connectionService.getConnections(userId, providerId);
+			}
+		});
+	}
+
+	public ListenableFuture<List<Connection<?>>> getConnections(final String userId,
+			final MultiValueMap<String, String> providerUsers) {
+		return submit("getConnectionsToUsers", new Callable<List<Connection<?>>>() {
+			public List<Connection<?>> call() {
+				return connectionService.getConnections(userId, providerUsers);
+			}
+		});
+	}
+
+	public ListenableFuture<Set<String>> getUserIds(final String providerId, final Set<String> providerUserIds) {
+		return submit("getUserIdsBatch", new Callable<Set<String>>() {
+			public Set<String> call() {
+				return connectionService.getUserIds(providerId, providerUserIds);
+			}
+		});
+	}
+
+	public ListenableFuture<List<String>> getUserIds(final String providerId, final String providerUserId) {
+		return submit("getUserIds", new Callable<List<String>>() {
+			public List<String> call() {
+				return connectionService.getUserIds(providerId, providerUserId);
+			}
+		});
+	}
+
+	private <T> ListenableFuture<T> submit(final String operation, final Callable<T> call) {
+		final SettableListenableFuture<T> result = new SettableListenableFuture<T>();
+		if (!pending.tryAcquire()) {
+			reject(operation, result, new RejectedExecutionException(
+					"Unable to run " + operation + ": " + maxPending + " calls pending"));
+			return result;
+		}
+
+		// the permit is released once the call has run, or when cancelled before;
+		// the result is completed either by the call or by the timeout
+		final AtomicBoolean released = new AtomicBoolean();
+		final AtomicBoolean completed = new AtomicBoolean();
+		final FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+			public void run() {
+				T value;
+				try {
+					value = call.call();
+				} catch (Throwable e) {
+					release(released);
+					if (completed.compareAndSet(false, true)) {
+						result.setException(e);
+					}
+					return;
+				}
+				release(released);
+				if (completed.compareAndSet(false, true)) {
+					result.set(value);
+				}
+			}
+		}, null) {
+			@Override
+			protected void done() {
+				release(released);
+			}
+		};
+		result.addCallback(new ListenableFutureCallback<T>() {
+			public void onSuccess(T value) {
+			}
+			public void onFailure(Throwable e) {
+				// timed out or cancelled by the caller
+				task.cancel(true);
+			}
+		});
+
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			release(released);
+			reject(operation, result, e);
+			return result;
+		}
+
+		final long timeout = timeoutNanos;
+		if (timeout > 0 && !result.isDone()) {
+			final ScheduledFuture<?> expiry = timer.schedule(new Runnable() {
+				public void run() {
+					if (!result.isDone() && completed.compareAndSet(false, true)) {
+						QueryTimeoutException e = new QueryTimeoutException(operation + " did not complete within " +
+								TimeUnit.NANOSECONDS.toMillis(timeout) + " ms");
+						timedOutCount.incrementAndGet();
+						metrics.recordError(operation, timeout, e);
+						result.setException(e);
+					}
+				}
+			}, timeout, TimeUnit.NANOSECONDS);
+			result.addCallback(new ListenableFutureCallback<T>() {
+				public void onSuccess(T value) {
+					expiry.cancel(false);
+				}
+				public void onFailure(Throwable e) {
+					expiry.cancel(false);
+				}
+			});
+		}
+		return result;
+	}
+
+	private void release(AtomicBoolean released) {
+		if (released.compareAndSet(false, true)) {
+			pending.release();
+		}
+	}
+
+	private void reject(String operation, SettableListenableFuture<?> result, RejectedExecutionException e) {
+		rejectedCount.incrementAndGet();
+		metrics.recordError(operation, 0, e);
+		result.setException(e);
+	}
+
+	private static ThreadPoolExecutor newExecutor(int threads, int queueCapacity) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be positive");
+		}
+		if (queueCapacity < 1) {
+			throw new IllegalArgumentException("queueCapacity must be positive");
+		}
+		return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity), daemonThreads("connection-async-"));
+	}
+
+	private static ThreadFactory daemonThreads(final String name) {
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name.endsWith("-") ? name + count.incrementAndGet() : name);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+}
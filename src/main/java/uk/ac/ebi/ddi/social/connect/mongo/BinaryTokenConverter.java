@@ -0,0 +1,184 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.data.mongodb.core.CollectionCallback;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteResult;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * Rewrites the hex encoded tokens of the connection documents as binary, for the
+ * documents written before {@link MongoConnectionService#setBinaryTokens(boolean)}
+ * was turned on.
+ * <p>
+ * The documents with a string token are read in {@code _id} order one batch at
+ * a time, and each batch is written with an unordered bulk update. A document is
+ * only updated if its tokens are still the ones read, so a token refreshed
+ * meanwhile is never overwritten; the documents skipped that way were written
+ * by the service itself. Tokens that are not hex, as written by the no-op
+ * encryptor, are left as they are. The conversion can be stopped at any time and
+ * run again, and may pause between batches to leave room for the live traffic.
+ *
+ * @author Carlo P. Micieli
+ */
+public class BinaryTokenConverter {
+
+	private static final int DEFAULT_BATCH_SIZE = 500;
+	private static final List<String> TOKENS = Arrays.asList("accessToken", "secret", "refreshToken");
+
+	private final MongoTemplate mongoTemplate;
+
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private long pauseMillis;
+
+	private volatile boolean stopped;
+
+	public BinaryTokenConverter(MongoTemplate mongoTemplate) {
+		this.mongoTemplate = mongoTemplate;
+	}
+
+	/**
+	 * Sets the number of documents read and written at a time.
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be positive");
+		}
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Sets the time to wait after each batch; none by default.
+	 */
+	public void setPause(long pause, TimeUnit unit) {
+		this.pauseMillis = unit.toMillis(pause);
+	}
+
+	/**
+	 * Stops a running conversion after its current batch.
+	 */
+	public void stop() {
+		stopped = true;
+	}
+
+	/**
+	 * Converts the documents with a string token, returning the number of
+	 * documents updated.
+	 */
+	public long convert() {
+		stopped = false;
+		long converted = 0;
+		ObjectId lastId = null;
+		while (!stopped) {
+			List<DBObject> batch = nextBatch(lastId);
+			if (batch.isEmpty()) {
+				break;
+			}
+			converted += update(batch);
+			lastId = (ObjectId) batch.get(batch.size() - 1).get("_id");
+			if (batch.size() < batchSize) {
+				break;
+			}
+			pause();
+		}
+		return converted;
+	}
+
+	private List<DBObject> nextBatch(final ObjectId lastId) {
+		BasicDBList stringTokens = new BasicDBList();
+		for (String token : TOKENS) {
+			stringTokens.add(new BasicDBObject(token, new BasicDBObject("$type", 2)));
+		}
+		final DBObject query = new BasicDBObject("$or", stringTokens);
+		if (lastId != null) {
+			query.put("_id", new BasicDBObject("$gt", lastId));
+		}
+		final DBObject fields = new BasicDBObject("accessToken", 1).append("secret", 1).append("refreshToken", 1);
+
+		return mongoTemplate.execute(MongoConnection.class, new CollectionCallback<List<DBObject>>() {
+			public List<DBObject> doInCollection(DBCollection collection) {
+				DBCursor cursor = collection.find(query, fields).sort(new BasicDBObject("_id", 1)).limit(batchSize);
+				try {
+					List<DBObject> batch = new ArrayList<DBObject>(batchSize);
+					while (cursor.hasNext()) {
+						batch.add(cursor.next());
+					}
+					return batch;
+				} finally {
+					cursor.close();
+				}
+			}
+		});
+	}
+
+	private int update(final List<DBObject> batch) {
+		return mongoTemplate.execute(MongoConnection.class, new CollectionCallback<Integer>() {
+			public Integer doInCollection(DBCollection collection) {
+				BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+				int updates = 0;
+				for (DBObject dbo : batch) {
+					DBObject unchanged = new BasicDBObject("_id", dbo.get("_id"));
+					DBObject binary = new BasicDBObject();
+					for (String token : TOKENS) {
+						Object value = dbo.get(token);
+						unchanged.put(token, value);
+						if (value instanceof String) {
+							Object stored = MongoConnectionCodec.writeToken((String) value, true);
+							if (stored != value) {
+								binary.put(token, stored);
+							}
+						}
+					}
+					if (!binary.keySet().isEmpty()) {
+						bulk.find(unchanged).updateOne(new BasicDBObject("$set", binary));
+						updates++;
+					}
+				}
+				if (updates == 0) {
+					return 0;
+				}
+				BulkWriteResult result = bulk.execute();
+				return result.isAcknowledged() ? result.getMatchedCount() : updates;
+			}
+		});
+	}
+
+	private void pause() {
+		if (pauseMillis <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(pauseMillis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DataAccessResourceFailureException("Interrupted while converting the tokens", e);
+		}
+	}
+}
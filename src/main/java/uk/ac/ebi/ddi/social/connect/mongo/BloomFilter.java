@@ -0,0 +1,114 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter of strings, safe for concurrent use.
+ * <p>
+ * Sized from the expected number of entries and false positive rate; the
+ * positions of an entry are derived from a single 64 bit hash by double hashing.
+ * 
+ * @author Carlo P. Micieli
+ */
+class BloomFilter {
+
+	private final AtomicLongArray words;
+	private final long bitSize;
+	private final int hashCount;
+	private final AtomicLong bitCount = new AtomicLong();
+
+	BloomFilter(long expectedEntries, double falsePositiveRate) {
+		if (expectedEntries < 1) {
+			throw new IllegalArgumentException("expectedEntries must be positive");
+		}
+		if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+			throw new IllegalArgumentException("falsePositiveRate must be between 0 and 1");
+		}
+		long bits = (long) Math.ceil(-expectedEntries * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+		int wordCount = (int) Math.min(Integer.MAX_VALUE, (bits + 63) / 64);
+		this.words = new AtomicLongArray(wordCount);
+		this.bitSize = (long) wordCount * 64;
+		this.hashCount = Math.max(1, (int) Math.round((double) bitSize / expectedEntries * Math.log(2)));
+	}
+
+	void put(String entry) {
+		long hash = hash(entry);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 1; i <= hashCount; i++) {
+			long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % bitSize;
+			if (set(bit)) {
+				bitCount.incrementAndGet();
+			}
+		}
+	}
+
+	boolean mightContain(String entry) {
+		long hash = hash(entry);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 1; i <= hashCount; i++) {
+			long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % bitSize;
+			if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The chance that an absent entry is reported as present, given the bits set so far.
+	 */
+	double expectedFalsePositiveRate() {
+		return Math.pow((double) bitCount.get() / bitSize, hashCount);
+	}
+
+	long sizeInBytes() {
+		return (long) words.length() * 8;
+	}
+
+	private boolean set(long bit) {
+		int index = (int) (bit >>> 6);
+		long mask = 1L << bit;
+		for (;;) {
+			long word = words.get(index);
+			if ((word & mask) != 0) {
+				return false;
+			}
+			if (words.compareAndSet(index, word, word | mask)) {
+				return true;
+			}
+		}
+	}
+
+	// FNV-1a over the chars, finished with the murmur3 64 bit mixer
+	private static long hash(String entry) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < entry.length(); i++) {
+			h ^= entry.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,458 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.util.MultiValueMap;
+
+/**
+ * A {@link ConnectionService} decorator answering the reverse lookups of provider
+ * identities that were never connected without going to the underlying service.
+ * <p>
+ * <strong>Between two rebuilds the filter only knows about the connections written
+ * through this instance.</strong> A connection written any other way, by another
+ * application node, by the {@link JdbcConnectionMigrator} or straight through the
+ * {@link MongoConnectionService}, is reported as absent until the next rebuild, and
+ * a sign in of its provider user then signs up a new local user. Use this service
+ * where it is the only writer of the connections collection, or where writers that
+ * can tell call {@link #invalidate()} after writing and the refresh interval bounds
+ * how long the writes of the other nodes go unseen.
+ * <p>
+ * A Bloom filter of the (provider id, provider user id) pairs is built when the
+ * service is created, by {@link #rebuild()} which streams the identities of all the
+ * connections, and rebuilt every refresh interval when one is given. Every connection
+ * written through this service is added to it. A lookup the filter rules out returns
+ * no user ids straight away; any other lookup is run as usual. While there is no
+ * filter, because a rebuild failed or the filter was invalidated, all the lookups
+ * are run.
+ * <p>
+ * Removed connections cannot be taken out of the filter: their identities keep
+ * costing a lookup, as the false positives do, until the next rebuild.
+ *
+ * @author Carlo P. Micieli
+ */
+public class BloomFilterConnectionService implements ConnectionService {
+
+	private static final Logger log = LoggerFactory.getLogger(BloomFilterConnectionService.class);
+
+	private static final int REBUILD_BATCH_SIZE = 1000;
+
+	private final ConnectionService connectionService;
+	private final long expectedConnections;
+	private final double falsePositiveRate;
+	// running the periodic rebuilds, null without a refresh interval
+	private final ScheduledExecutorService scheduler;
+
+	private volatile BloomFilter filter;
+	// the filter being rebuilt, also filled by the connections created meanwhile
+	private BloomFilter pending;
+	// counts the invalidations, a rebuild started before the last one is discarded
+	private long generation;
+	// held for reading by the writes, so a rebuild never misses a connection being created
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private final AtomicLong skippedLookupCount = new AtomicLong();
+	private final AtomicLong falsePositiveCount = new AtomicLong();
+	private final AtomicLong removalCount = new AtomicLong();
+	private volatile long lastRebuildMillis = -1;
+
+	/**
+	 * Creates the service and builds its filter, which is rebuilt only by
+	 * {@link #rebuild()} afterwards.
+	 */
+	public BloomFilterConnectionService(ConnectionService connectionService,
+			long expectedConnections,
+			double falsePositiveRate) {
+
+		this(connectionService, expectedConnections, falsePositiveRate, 0, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Creates the service and builds its filter, rebuilt every {@code refreshInterval}
+	 * on a thread of its own, or only by {@link #rebuild()} for a zero interval.
+	 */
+	public BloomFilterConnectionService(ConnectionService connectionService,
+			long expectedConnections,
+			double falsePositiveRate,
+			long refreshInterval, TimeUnit unit) {
+
+		if (expectedConnections < 1) {
+			throw new IllegalArgumentException("expectedConnections must be positive");
+		}
+		if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+			throw new IllegalArgumentException("falsePositiveRate must be between 0 and 1");
+		}
+		if (refreshInterval < 0) {
+			throw new IllegalArgumentException("refreshInterval must not be negative");
+		}
+
+		this.connectionService = connectionService;
+		this.expectedConnections = expectedConnections;
+		this.falsePositiveRate = falsePositiveRate;
+
+		tryRebuild();
+		if (refreshInterval > 0) {
+			this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "connection-bloom-filter");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			this.scheduler.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					tryRebuild();
+				}
+			}, refreshInterval, refreshInterval, unit);
+		} else {
+			this.scheduler = null;
+		}
+	}
+
+	/**
+	 * Stops the periodic rebuilds.
+	 */
+	public void shutdown() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+	}
+
+	/**
+	 * Drops the filter, after connections were written without going through this
+	 * service: the lookups are all run until a rebuild started afterwards completes.
+	 * With a refresh interval such a rebuild is started straight away.
+	 */
+	public void invalidate() {
+		lock.writeLock().lock();
+		try {
+			generation++;
+			filter = null;
+		} finally {
+			lock.writeLock().unlock();
+		}
+		if (scheduler != null) {
+			scheduler.execute(new Runnable() {
+				public void run() {
+					tryRebuild();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Fills a new filter with the identities of all the connections and swaps it
+	 * in place of the current one. Lookups keep using the current filter meanwhile.
+	 * The new filter is discarded if {@link #invalidate()} is called before it
+	 * is complete.
+	 */
+	public synchronized void rebuild() {
+		long start = System.nanoTime();
+		BloomFilter next = new BloomFilter(expectedConnections, falsePositiveRate);
+		long startGeneration;
+		lock.writeLock().lock();
+		try {
+			pending = next;
+			startGeneration = generation;
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		boolean completed = false;
+		try {
+			CloseableIterator<ConnectionKey> keys = connectionService.streamConnectionKeys(REBUILD_BATCH_SIZE);
+			try {
+				while (keys.hasNext()) {
+					next.put(entry(keys.next()));
+				}
+			} finally {
+				keys.close();
+			}
+			completed = true;
+		} finally {
+			lock.writeLock().lock();
+			try {
+				if (completed && startGeneration == generation) {
+					filter = next;
+					removalCount.set(0);
+				}
+				pending = null;
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+		lastRebuildMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+	}
+
+	/**
+	 * Returns the number of lookups ruled out by the filter.
+	 */
+	public long getSkippedLookupCount() {
+		return skippedLookupCount.get();
+	}
+
+	/**
+	 * Returns the number of single identity lookups the filter let through that found no user.
+	 */
+	public long getFalsePositiveCount() {
+		return falsePositiveCount.get();
+	}
+
+	/**
+	 * Returns the share of the single identity lookups of unknown identities that
+	 * the filter let through, as measured so far.
+	 */
+	public double getFalsePositiveRate() {
+		long falsePositives = falsePositiveCount.get();
+		long negatives = falsePositives + skippedLookupCount.get();
+		return negatives == 0 ? 0 : (double) falsePositives / negatives;
+	}
+
+	/**
+	 * Returns the false positive rate expected from the bits set in the filter, which
+	 * grows past the configured one once there are more connections than expected.
+	 */
+	public double getExpectedFalsePositiveRate() {
+		BloomFilter f = filter;
+		return f == null ? 1 : f.expectedFalsePositiveRate();
+	}
+
+	/**
+	 * Returns the memory used by the filter, in bytes.
+	 */
+	public long getMemoryUsage() {
+		BloomFilter f = filter;
+		return f == null ? 0 : f.sizeInBytes();
+	}
+
+	/**
+	 * Returns how long the last rebuild took, in milliseconds, or -1 before the first one.
+	 */
+	public long getLastRebuildMillis() {
+		return lastRebuildMillis;
+	}
+
+	/**
+	 * Returns the number of removals since the last rebuild, whose identities
+	 * are still in the filter.
+	 */
+	public long getRemovalCount() {
+		return removalCount.get();
+	}
+
+	@Override
+	public int getMaxRank(String userId, String providerId) {
+		return connectionService.getMaxRank(userId, providerId);
+	}
+
+	@Override
+	public void create(String userId, Connection<?> userConn) {
+		lock.readLock().lock();
+		try {
+			put(userConn.getKey());
+			connectionService.create(userId, userConn);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void create(String userId, Connection<?> userConn, int rank) {
+		lock.readLock().lock();
+		try {
+			put(userConn.getKey());
+			connectionService.create(userId, userConn, rank);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public ConnectionImportResult importConnections(List<UserConnection> connections) {
+		lock.readLock().lock();
+		try {
+			for (UserConnection uc : connections) {
+				put(uc.getConnection().getKey());
+			}
+			return connectionService.importConnections(connections);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void update(String userId, Connection<?> userConn) {
+		// the update is an upsert
+		lock.readLock().lock();
+		try {
+			put(userConn.getKey());
+			connectionService.update(userId, userConn);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void updateConnections(List<UserConnection> connections) {
+		lock.readLock().lock();
+		try {
+			for (UserConnection uc : connections) {
+				put(uc.getConnection().getKey());
+			}
+			connectionService.updateConnections(connections);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void remove(String userId, ConnectionKey connectionKey) {
+		connectionService.remove(userId, connectionKey);
+		removalCount.incrementAndGet();
+	}
+
+	@Override
+	public void remove(String userId, String providerId) {
+		connectionService.remove(userId, providerId);
+		removalCount.incrementAndGet();
+	}
+
+	@Override
+	public Connection<?> getPrimaryConnection(String userId, String providerId) {
+		return connectionService.getPrimaryConnection(userId, providerId);
+	}
+
+	@Override
+	public Connection<?> getConnection(String userId, String providerId, String providerUserId) {
+		return connectionService.getConnection(userId, providerId, providerUserId);
+	}
+
+	@Override
+	public List<Connection<?>> getConnections(String userId) {
+		return connectionService.getConnections(userId);
+	}
+
+	@Override
+	public List<MongoConnection> getMongoConnections(String userId) {
+		return connectionService.getMongoConnections(userId);
+	}
+
+	@Override
+	public List<Connection<?>> getConnections(String userId, String providerId) {
+		return connectionService.getConnections(userId, providerId);
+	}
+
+	@Override
+	public List<Connection<?>> getConnections(String userId, MultiValueMap<String, String> providerUsers) {
+		return connectionService.getConnections(userId, providerUsers);
+	}
+
+	@Override
+	public Set<String> getUserIds(String providerId, Set<String> providerUserIds) {
+		BloomFilter f = filter;
+		if (f == null) {
+			return connectionService.getUserIds(providerId, providerUserIds);
+		}
+
+		Set<String> candidates = new HashSet<String>();
+		for (String providerUserId : providerUserIds) {
+			if (f.mightContain(entry(providerId, providerUserId))) {
+				candidates.add(providerUserId);
+			}
+		}
+		skippedLookupCount.addAndGet(providerUserIds.size() - candidates.size());
+		if (candidates.isEmpty()) {
+			return new HashSet<String>();
+		}
+		return connectionService.getUserIds(providerId, candidates);
+	}
+
+	@Override
+	public List<String> getUserIds(String providerId, String providerUserId) {
+		BloomFilter f = filter;
+		if (f != null && !f.mightContain(entry(providerId, providerUserId))) {
+			skippedLookupCount.incrementAndGet();
+			return new ArrayList<String>();
+		}
+
+		List<String> userIds = connectionService.getUserIds(providerId, providerUserId);
+		if (f != null && userIds.isEmpty()) {
+			falsePositiveCount.incrementAndGet();
+		}
+		return userIds;
+	}
+
+	@Override
+	public CloseableIterator<Connection<?>> streamConnections(String providerId, int batchSize) {
+		return connectionService.streamConnections(providerId, batchSize);
+	}
+
+	@Override
+	public CloseableIterator<Connection<?>> streamExpiringConnections(long expireTime, int batchSize) {
+		return connectionService.streamExpiringConnections(expireTime, batchSize);
+	}
+
+	@Override
+	public CloseableIterator<ConnectionKey> streamConnectionKeys(int batchSize) {
+		return connectionService.streamConnectionKeys(batchSize);
+	}
+
+	// helper methods
+
+	private void tryRebuild() {
+		try {
+			rebuild();
+		} catch (RuntimeException e) {
+			log.warn("Rebuild of the Bloom filter failed, the current filter is kept", e);
+		}
+	}
+
+	// called holding the read lock
+	private void put(ConnectionKey key) {
+		String entry = entry(key);
+		BloomFilter f = filter;
+		if (f != null) {
+			f.put(entry);
+		}
+		if (pending != null) {
+			pending.put(entry);
+		}
+	}
+
+	private static String entry(ConnectionKey key) {
+		return entry(key.getProviderId(), key.getProviderUserId());
+	}
+
+	private static String entry(String providerId, String providerUserId) {
+		return providerId + '\u0000' + providerUserId;
+	}
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.util.MultiValueMap;
+
+/**
+ * A read-through {@link ConnectionService} decorator that keeps the connection
+ * documents of the most recently used users in memory.
+ * <p>
+ * Every read keyed by a local user id is answered from the cached list of
+ * {@link MongoConnection} documents, which is loaded with a single query the
+ * first time the user is seen. The cache is bounded both in size (least recently
+ * used users are evicted first) and in time, and each write invalidates the
+ * entry of the user it touches. The reverse lookups by provider user id are not
+ * cached and always go to the underlying service.
+ *
+ * @author Carlo P. Micieli
+ */
+public class CachingConnectionService implements ConnectionService {
+
+	private static final int GENERATION_STRIPES = 64;
+
+	private final ConnectionService connectionService;
+	private final ConnectionConverter converter;
+
+	private final int maximumSize;
+	private final long timeToLiveNanos;
+
+	private final Map<String, CacheEntry> cache;
+
+	// bumped on every invalidation, so that a load racing with a write is not cached
+	private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	@SuppressWarnings("serial")
+	public CachingConnectionService(ConnectionService connectionService,
+			ConnectionConverter converter,
+			int maximumSize,
+			long timeToLive, TimeUnit unit) {
+
+		if (maximumSize < 1) {
+			throw new IllegalArgumentException("maximumSize must be positive");
+		}
+		if (timeToLive <= 0) {
+			throw new IllegalArgumentException("timeToLive must be positive");
+		}
+
+		this.connectionService = connectionService;
+		this.converter = converter;
+		this.maximumSize = maximumSize;
+		this.timeToLiveNanos = unit.toNanos(timeToLive);
+		this.cache = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Entry<String, CacheEntry> eldest) {
+				if (size() > CachingConnectionService.this.maximumSize) {
+					evictionCount.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Returns the number of reads answered from the cache.
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * Returns the number of reads that had to load the user connections.
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * Returns the number of entries dropped because the cache was full or
+	 * the entry was expired. Invalidations caused by writes are not counted.
+	 */
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	/**
+	 * Returns the number of users currently cached.
+	 */
+	public int getSize() {
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+
+	/**
+	 * Drops the cached connections for the user.
+	 */
+	public void invalidate(String userId) {
+		synchronized (cache) {
+			generations.incrementAndGet(stripe(userId));
+			cache.remove(userId);
+		}
+	}
+
+	/**
+	 * Drops all the cached connections.
+	 */
+	public void invalidateAll() {
+		synchronized (cache) {
+			for (int i = 0; i < GENERATION_STRIPES; i++) {
+				generations.incrementAndGet(i);
+			}
+			cache.clear();
+		}
+	}
+
+	@Override
+	public int getMaxRank(String userId, String providerId) {
+		int maxRank = 0;
+		for (MongoConnection mc : load(userId)) {
+			if (providerId.equals(mc.getProviderId()) && mc.getRank() > maxRank) {
+				maxRank = mc.getRank();
+			}
+		}
+		return maxRank + 1;
+	}
+
+	@Override
+	public void create(String userId, Connection<?> userConn) {
+		try {
+			connectionService.create(userId, userConn);
+		} finally {
+			invalidate(userId);
+		}
+	}
+
+	@Override
+	public void create(String userId, Connection<?> userConn, int rank) {
+		try {
+			connectionService.create(userId, userConn, rank);
+		} finally {
+			invalidate(userId);
+		}
+	}
+
+	@Override
+	public ConnectionImportResult importConnections(List<UserConnection> connections) {
+		try {
+			return connectionService.importConnections(connections);
+		} finally {
+			invalidate(connections);
+		}
+	}
+
+	@Override
+	public void update(String userId, Connection<?> userConn) {
+		try {
+			connectionService.update(userId, userConn);
+		} finally {
+			invalidate(userId);
+		}
+	}
+
+	@Override
+	public void updateConnections(List<UserConnection> connections) {
+		try {
+			connectionService.updateConnections(connections);
+		} finally {
+			invalidate(connections);
+		}
+	}
+
+	@Override
+	public void remove(String userId, ConnectionKey connectionKey) {
+		try {
+			connectionService.remove(userId, connectionKey);
+		} finally {
+			invalidate(userId);
+		}
+	}
+
+	@Override
+	public void remove(String userId, String providerId) {
+		try {
+			connectionService.remove(userId, providerId);
+		} finally {
+			invalidate(userId);
+		}
+	}
+
+	@Override
+	public Connection<?> getPrimaryConnection(String userId, String providerId) {
+		for (MongoConnection mc : load(userId)) {
+			if (providerId.equals(mc.getProviderId()) && mc.getRank() == 1) {
+				return converter.convert(mc);
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public Connection<?> getConnection(String userId, String providerId, String providerUserId) {
+		for (MongoConnection mc : load(userId)) {
+			if (providerId.equals(mc.getProviderId()) &&
+					providerUserId.equals(mc.getProviderUserId())) {
+				return converter.convert(mc);
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public List<Connection<?>> getConnections(String userId) {
+		List<MongoConnection> results = load(userId);
+		List<Connection<?>> l = new ArrayList<Connection<?>>(results.size());
+		for (MongoConnection mc : results) {
+			l.add(converter.convert(mc));
+		}
+		return l;
+	}
+
+	@Override
+	public List<MongoConnection> getMongoConnections(String userId) {
+		return load(userId);
+	}
+
+	@Override
+	public List<Connection<?>> getConnections(String userId, String providerId) {
+		List<Connection<?>> l = new ArrayList<Connection<?>>();
+		for (MongoConnection mc : load(userId)) {
+			if (providerId.equals(mc.getProviderId())) {
+				l.add(converter.convert(mc));
+			}
+		}
+		return l;
+	}
+
+	@Override
+	public List<Connection<?>> getConnections(String userId, MultiValueMap<String, String> providerUsers) {
+		if (providerUsers == null || providerUsers.isEmpty()) {
+			throw new IllegalArgumentException("Unable to execute find: no providerUsers provided");
+		}
+
+		Map<String, Set<String>> lookup = new HashMap<String, Set<String>>(providerUsers.size());
+		for (Entry<String, List<String>> entry : providerUsers.entrySet()) {
+			lookup.put(entry.getKey(), new HashSet<String>(entry.getValue()));
+		}
+
+		List<Connection<?>> l = new ArrayList<Connection<?>>();
+		for (MongoConnection mc : load(userId)) {
+			Set<String> providerUserIds = lookup.get(mc.getProviderId());
+			if (providerUserIds != null && providerUserIds.contains(mc.getProviderUserId())) {
+				l.add(converter.convert(mc));
+			}
+		}
+		return l;
+	}
+
+	@Override
+	public Set<String> getUserIds(String providerId, Set<String> providerUserIds) {
+		return connectionService.getUserIds(providerId, providerUserIds);
+	}
+
+	@Override
+	public List<String> getUserIds(String providerId, String providerUserId) {
+		return connectionService.getUserIds(providerId, providerUserId);
+	}
+
+	@Override
+	public CloseableIterator<Connection<?>> streamConnections(String providerId, int batchSize) {
+		return connectionService.streamConnections(providerId, batchSize);
+	}
+
+	@Override
+	public CloseableIterator<Connection<?>> streamExpiringConnections(long expireTime, int batchSize) {
+		return connectionService.streamExpiringConnections(expireTime, batchSize);
+	}
+
+	@Override
+	public CloseableIterator<ConnectionKey> streamConnectionKeys(int batchSize) {
+		return connectionService.streamConnectionKeys(batchSize);
+	}
+
+	// helper methods
+
+	private void invalidate(List<UserConnection> connections) {
+		Set<String> userIds = new HashSet<String>();
+		for (UserConnection uc : connections) {
+			if (userIds.add(uc.getUserId())) {
+				invalidate(uc.getUserId());
+			}
+		}
+	}
+
+	private List<MongoConnection> load(String userId) {
+		CacheEntry entry;
+		long generation;
+		synchronized (cache) {
+			entry = cache.get(userId);
+			if (entry != null && entry.isExpired(System.nanoTime())) {
+				cache.remove(userId);
+				evictionCount.incrementAndGet();
+				entry = null;
+			}
+			generation = generations.get(stripe(userId));
+		}
+
+		if (entry != null) {
+			hitCount.incrementAndGet();
+			return entry.connections;
+		}
+
+		missCount.incrementAndGet();
+		List<MongoConnection> connections = Collections.unmodifiableList(
+				new ArrayList<MongoConnection>(connectionService.getMongoConnections(userId)));
+
+		synchronized (cache) {
+			if (generations.get(stripe(userId)) == generation) {
+				cache.put(userId, new CacheEntry(connections, System.nanoTime() + timeToLiveNanos));
+			}
+		}
+		return connections;
+	}
+
+	private static int stripe(String userId) {
+		return userId.hashCode() & (GENERATION_STRIPES - 1);
+	}
+
+	private static class CacheEntry {
+		private final List<MongoConnection> connections;
+		private final long expiresAt;
+
+		CacheEntry(List<MongoConnection> connections, long expiresAt) {
+			this.connections = connections;
+			this.expiresAt = expiresAt;
+		}
+
+		boolean isExpired(long now) {
+			return now - expiresAt >= 0;
+		}
+	}
+}
@@ -15,6 +15,10 @@
  */
 package uk.ac.ebi.ddi.social.connect.mongo;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.crypto.encrypt.TextEncryptor;
 import org.springframework.social.connect.Connection;
@@ -26,6 +30,18 @@ import org.springframework.stereotype.Component;
 /**
  * A converter class between Mongo document and
  * Spring social connection.
+ * <p>
+ * With lazy decryption enabled the connections read from the documents
+ * decrypt their tokens only when first used through the API binding;
+ * the key, display name, profile and image urls are served without any
+ * cipher operation.
+ * <p>
+ * The tokens of a document are decrypted with the key named by its key id,
+ * and those without one with the text encryptor given to the constructor. New
+ * documents are encrypted with the current key set by
+ * {@link #setEncryptionKeys(Map, String)}, or with that text encryptor and no key
+ * id until keys are set. {@link ConnectionReencryptor} moves the documents
+ * written with the older keys to the current one.
  * 
  * @author Carlo Micieli
  */
@@ -33,6 +49,15 @@ import org.springframework.stereotype.Component;
 public class ConnectionConverter {
 	private final ConnectionFactoryLocator connectionFactoryLocator;
 	private final TextEncryptor textEncryptor;
+	
+	private volatile Map<String, TextEncryptor> encryptionKeys = new HashMap<String, TextEncryptor>();
+	private volatile String currentKeyId;
+	
+	private boolean lazyDecryption;
+	private ConnectionMetrics metrics = ConnectionMetrics.NONE;
+	
+	private final AtomicLong decryptCount = new AtomicLong();
+	private final AtomicLong decryptsAvoided = new AtomicLong();
 
 	@Autowired
 	public ConnectionConverter(ConnectionFactoryLocator connectionFactoryLocator,
@@ -42,23 +67,93 @@ public class ConnectionConverter {
 		this.textEncryptor = textEncryptor;
 	}
 	
+	/**
+	 * Sets the encryptors of the keys by id, and the id of the one encrypting the
+	 * new tokens. The keys of the documents still to re-encrypt must be kept.
+	 */
+	public void setEncryptionKeys(Map<String, TextEncryptor> encryptionKeys, String currentKeyId) {
+		if (!encryptionKeys.containsKey(currentKeyId)) {
+			throw new IllegalArgumentException("No encryptor for the current key " + currentKeyId);
+		}
+		this.encryptionKeys = new HashMap<String, TextEncryptor>(encryptionKeys);
+		this.currentKeyId = currentKeyId;
+	}
+	
+	/**
+	 * Returns the id of the key encrypting the new tokens, null for the text
+	 * encryptor given to the constructor.
+	 */
+	public String getCurrentKeyId() {
+		return currentKeyId;
+	}
+	
+	/**
+	 * Sets whether the tokens are decrypted only when a converted connection
+	 * needs them, rather than during the conversion. The lazy connections are
+	 * equal to the provider connections with the same key, but are not instances
+	 * of their class.
+	 */
+	public void setLazyDecryption(boolean lazyDecryption) {
+		this.lazyDecryption = lazyDecryption;
+	}
+	
+	/**
+	 * Sets the metrics receiving the time of each token decryption; with the default
+	 * {@link ConnectionMetrics#NONE} the decryptions are not timed.
+	 */
+	public void setMetrics(ConnectionMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * Returns the number of tokens decrypted so far.
+	 */
+	public long getDecryptCount() {
+		return decryptCount.get();
+	}
+	
+	/**
+	 * Returns the number of tokens of lazily converted connections
+	 * that have not been decrypted (yet).
+	 */
+	public long getDecryptsAvoided() {
+		return decryptsAvoided.get();
+	}
+	
 	public Connection<?> convert(MongoConnection cnn) {
 		if (cnn==null) return null;
 		
+		if (lazyDecryption) {
+			decryptsAvoided.addAndGet(countTokens(cnn));
+			return new LazyConnection<Object>(cnn, this);
+		}
+		return createConnection(cnn);
+	}
+	
+	/**
+	 * Creates the actual connection of a lazily converted document.
+	 */
+	Connection<?> materialize(MongoConnection cnn) {
+		decryptsAvoided.addAndGet(-countTokens(cnn));
+		return createConnection(cnn);
+	}
+	
+	private Connection<?> createConnection(MongoConnection cnn) {
 		ConnectionData connectionData = fillConnectionData(cnn);
 		ConnectionFactory<?> connectionFactory = connectionFactoryLocator.getConnectionFactory(connectionData.getProviderId());
 		return connectionFactory.createConnection(connectionData);
 	}
 	
 	private ConnectionData fillConnectionData(MongoConnection uc) {
+		TextEncryptor decryptor = encryptor(uc.getKeyId());
 		return new ConnectionData(uc.getProviderId(),
 			uc.getProviderUserId(),
 			uc.getDisplayName(),
 			uc.getProfileUrl(),
 			uc.getImageUrl(),
-			decrypt(uc.getAccessToken()),
-			decrypt(uc.getSecret()),
-			decrypt(uc.getRefreshToken()),
+			decrypt(decryptor, uc.getAccessToken()),
+			decrypt(decryptor, uc.getSecret()),
+			decrypt(decryptor, uc.getRefreshToken()),
 			uc.getExpireTime());
 	}
 	
@@ -71,20 +166,74 @@ public class ConnectionConverter {
 		userConn.setDisplayName(data.getDisplayName());
 		userConn.setProfileUrl(data.getProfileUrl());
 		userConn.setImageUrl(data.getImageUrl());
-		userConn.setAccessToken(encrypt(data.getAccessToken()));
-		userConn.setSecret(encrypt(data.getSecret()));
-		userConn.setRefreshToken(encrypt(data.getRefreshToken()));
+		String keyId = currentKeyId;
+		TextEncryptor encryptor = encryptor(keyId);
+		userConn.setAccessToken(encrypt(encryptor, data.getAccessToken()));
+		userConn.setSecret(encrypt(encryptor, data.getSecret()));
+		userConn.setRefreshToken(encrypt(encryptor, data.getRefreshToken()));
 		userConn.setExpireTime(data.getExpireTime());
+		userConn.setKeyId(keyId);
 		return userConn;
 	}
 	
+	/**
+	 * Returns a copy of the document with its tokens encrypted with the current key.
+	 */
+	MongoConnection reencrypt(MongoConnection cnn) {
+		return reencrypt(cnn, encryptor(cnn.getKeyId()));
+	}
+	
+	/**
+	 * Returns a copy of the document, its tokens encrypted by the given encryptor,
+	 * with the tokens encrypted with the current key.
+	 */
+	MongoConnection reencrypt(MongoConnection cnn, TextEncryptor decryptor) {
+		String keyId = currentKeyId;
+		TextEncryptor encryptor = encryptor(keyId);
+		MongoConnection copy = MongoConnectionCodec.read(MongoConnectionCodec.write(cnn));
+		copy.setAccessToken(encrypt(encryptor, decrypt(decryptor, cnn.getAccessToken())));
+		copy.setSecret(encrypt(encryptor, decrypt(decryptor, cnn.getSecret())));
+		copy.setRefreshToken(encrypt(encryptor, decrypt(decryptor, cnn.getRefreshToken())));
+		copy.setKeyId(keyId);
+		return copy;
+	}
+	
 	// helper methods
 	
-	private String decrypt(String encryptedText) {
-		return encryptedText != null ? textEncryptor.decrypt(encryptedText) : encryptedText;
+	private TextEncryptor encryptor(String keyId) {
+		if (keyId == null) {
+			return textEncryptor;
+		}
+		TextEncryptor encryptor = encryptionKeys.get(keyId);
+		if (encryptor == null) {
+			throw new IllegalStateException("No encryptor for the key " + keyId);
+		}
+		return encryptor;
+	}
+	
+	private String decrypt(TextEncryptor decryptor, String encryptedText) {
+		if (encryptedText == null) {
+			return null;
+		}
+		decryptCount.incrementAndGet();
+		if (metrics == ConnectionMetrics.NONE) {
+			return decryptor.decrypt(encryptedText);
+		}
+		long start = System.nanoTime();
+		String text = decryptor.decrypt(encryptedText);
+		metrics.recordDecrypt(System.nanoTime() - start);
+		return text;
+	}
+	
+	private static int countTokens(MongoConnection cnn) {
+		int tokens = 0;
+		if (cnn.getAccessToken() != null) tokens++;
+		if (cnn.getSecret() != null) tokens++;
+		if (cnn.getRefreshToken() != null) tokens++;
+		return tokens;
 	}
 
-	private String encrypt(String text) {
-		return text != null ? textEncryptor.encrypt(text) : text;
+	private static String encrypt(TextEncryptor encryptor, String text) {
+		return text != null ? encryptor.encrypt(text) : text;
 	}
 }
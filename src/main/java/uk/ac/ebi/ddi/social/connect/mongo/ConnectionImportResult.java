@@ -0,0 +1,55 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of a bulk import: the connections written and the ones
+ * skipped because they were already there.
+ *
+ * @author Carlo P. Micieli
+ */
+public class ConnectionImportResult {
+	private final int importedCount;
+	private final List<UserConnection> duplicates;
+
+	public ConnectionImportResult(int importedCount, List<UserConnection> duplicates) {
+		this.importedCount = importedCount;
+		this.duplicates = Collections.unmodifiableList(duplicates);
+	}
+
+	/**
+	 * The number of connections inserted.
+	 */
+	public int getImportedCount() {
+		return importedCount;
+	}
+
+	/**
+	 * The connections not inserted because they violate a unique index,
+	 * in the order they were given.
+	 */
+	public List<UserConnection> getDuplicates() {
+		return duplicates;
+	}
+
+	@Override
+	public String toString() {
+		return "{imported: " + importedCount + ", duplicates: " + duplicates.size() + "}";
+	}
+}
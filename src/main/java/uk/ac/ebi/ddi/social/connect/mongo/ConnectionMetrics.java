@@ -0,0 +1,60 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+/**
+ * Receives the measures of the connection operations, from the
+ * {@link MetricsConnectionService} and the {@link ConnectionConverter}.
+ * <p>
+ * The methods are called on every operation, from any thread: implementations
+ * must be thread safe and cheap. {@link SimpleConnectionMetrics} keeps the measures
+ * in memory, {@link MicrometerConnectionMetrics} publishes them to a Micrometer
+ * registry and {@link #NONE} discards them.
+ *
+ * @author Carlo P. Micieli
+ */
+public interface ConnectionMetrics {
+
+	/**
+	 * Discards every measure; the converter does not even time its decryptions.
+	 */
+	ConnectionMetrics NONE = new ConnectionMetrics() {
+		public void recordOperation(String operation, long elapsedNanos, int documents) {
+		}
+
+		public void recordError(String operation, long elapsedNanos, RuntimeException error) {
+		}
+
+		public void recordDecrypt(long elapsedNanos) {
+		}
+	};
+
+	/**
+	 * Records an operation completed normally, with the number of documents it
+	 * returned or wrote.
+	 */
+	void recordOperation(String operation, long elapsedNanos, int documents);
+
+	/**
+	 * Records an operation that failed, a {@code DuplicateKeyException} included.
+	 */
+	void recordError(String operation, long elapsedNanos, RuntimeException error);
+
+	/**
+	 * Records the decryption of a token.
+	 */
+	void recordDecrypt(long elapsedNanos);
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * The progress of a migration of connections into Mongodb: the key of the
+ * last row written and how many rows were written, skipped or rejected so far.
+ *
+ * @author Carlo P. Micieli
+ * @see JdbcConnectionMigrator
+ */
+@Document(collection = "connection_migrations")
+public class ConnectionMigrationCheckpoint {
+	@Id
+	private String id;
+
+	String userId;
+	String providerId;
+	String providerUserId;
+	long migratedCount;
+	long skippedCount;
+	long rejectedCount;
+	List<String> rejectedKeys = new ArrayList<String>();
+	Date lastUpdated;
+
+	ConnectionMigrationCheckpoint() {
+	}
+
+	ConnectionMigrationCheckpoint(String id) {
+		this.id = id;
+	}
+
+	/**
+	 * The migration id, the name of the source table by default.
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * The user id of the last row written, {@code null} before the first page.
+	 */
+	public String getUserId() {
+		return userId;
+	}
+
+	public String getProviderId() {
+		return providerId;
+	}
+
+	public String getProviderUserId() {
+		return providerUserId;
+	}
+
+	/**
+	 * The number of rows inserted in the connections collection.
+	 */
+	public long getMigratedCount() {
+		return migratedCount;
+	}
+
+	/**
+	 * The number of rows already in the connections collection, for instance
+	 * written by a run that stopped before saving its checkpoint.
+	 */
+	public long getSkippedCount() {
+		return skippedCount;
+	}
+
+	/**
+	 * The number of rows not written because they collide with a live connection:
+	 * another connection of the user holding the same rank, or a different
+	 * connection stored under the same key.
+	 */
+	public long getRejectedCount() {
+		return rejectedCount;
+	}
+
+	/**
+	 * The keys of the rejected rows, as {@code userId/providerId/providerUserId},
+	 * up to {@link JdbcConnectionMigrator#MAX_REJECTED_KEYS}; all of them are logged.
+	 */
+	public List<String> getRejectedKeys() {
+		return Collections.unmodifiableList(rejectedKeys);
+	}
+
+	public Date getLastUpdated() {
+		return lastUpdated;
+	}
+
+	boolean isStarted() {
+		return userId != null;
+	}
+
+	@Override
+	public String toString() {
+		return "{" + id + ", migrated: " + migratedCount + ", skipped: " + skippedCount
+				+ ", rejected: " + rejectedCount + "}";
+	}
+}
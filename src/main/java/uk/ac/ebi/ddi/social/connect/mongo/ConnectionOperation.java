@@ -0,0 +1,54 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+/**
+ * The kinds of operation performed by the {@link ConnectionService}.
+ * 
+ * @author Carlo P. Micieli
+ */
+public enum ConnectionOperation {
+
+	/**
+	 * Insert of a new connection, including its rank allocation.
+	 */
+	CREATE,
+
+	/**
+	 * Update of an existing connection, such as a token refresh.
+	 */
+	UPDATE,
+
+	/**
+	 * Removal of one or more connections.
+	 */
+	REMOVE,
+
+	/**
+	 * Reads keyed by the local user id.
+	 */
+	PRIMARY_LOOKUP,
+
+	/**
+	 * Reads keyed by the provider user id, returning local user ids.
+	 */
+	REVERSE_LOOKUP,
+
+	/**
+	 * Streaming reads over many users, such as batch jobs.
+	 */
+	SCAN
+}
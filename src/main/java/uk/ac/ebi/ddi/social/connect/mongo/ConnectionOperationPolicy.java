@@ -0,0 +1,76 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+
+/**
+ * The write concern, read preference and time limit that {@link MongoConnectionService}
+ * applies to each {@link ConnectionOperation}.
+ * <p>
+ * The settings are passed with every single operation, so the shared {@code MongoTemplate}
+ * is never reconfigured. Nothing is set by default: a {@code null} write concern falls back
+ * to the one configured on the template, a {@code null} read preference to the collection
+ * default, and a zero time limit means no limit. The policy is meant to be configured
+ * before the service is used.
+ * 
+ * @author Carlo P. Micieli
+ */
+public class ConnectionOperationPolicy {
+
+	private final Map<ConnectionOperation, WriteConcern> writeConcerns =
+			new EnumMap<ConnectionOperation, WriteConcern>(ConnectionOperation.class);
+	private final Map<ConnectionOperation, ReadPreference> readPreferences =
+			new EnumMap<ConnectionOperation, ReadPreference>(ConnectionOperation.class);
+	private final Map<ConnectionOperation, Long> maxTimes =
+			new EnumMap<ConnectionOperation, Long>(ConnectionOperation.class);
+
+	public WriteConcern getWriteConcern(ConnectionOperation operation) {
+		return writeConcerns.get(operation);
+	}
+
+	public void setWriteConcern(ConnectionOperation operation, WriteConcern writeConcern) {
+		writeConcerns.put(operation, writeConcern);
+	}
+
+	public ReadPreference getReadPreference(ConnectionOperation operation) {
+		return readPreferences.get(operation);
+	}
+
+	public void setReadPreference(ConnectionOperation operation, ReadPreference readPreference) {
+		readPreferences.put(operation, readPreference);
+	}
+
+	/**
+	 * Returns the server side time limit of the operation in milliseconds, zero if none.
+	 */
+	public long getMaxTimeMillis(ConnectionOperation operation) {
+		Long maxTime = maxTimes.get(operation);
+		return maxTime != null ? maxTime : 0L;
+	}
+
+	public void setMaxTime(ConnectionOperation operation, long maxTime, TimeUnit unit) {
+		if (maxTime < 0) {
+			throw new IllegalArgumentException("maxTime cannot be negative");
+		}
+		maxTimes.put(operation, unit.toMillis(maxTime));
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.data.mongodb.core.CollectionCallback;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteResult;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * Re-encrypts the tokens of the connection documents written with an older key
+ * with the current key of the {@link ConnectionConverter}, while the service keeps
+ * running.
+ * <p>
+ * The documents with another key id, or none, are read in {@code _id} order one
+ * batch at a time, re-encrypted, and written with an unordered bulk update. As
+ * with the {@link BinaryTokenConverter}, a document is only updated if its key
+ * and tokens are still the ones read, so a token refreshed meanwhile, already
+ * encrypted with the current key, is never overwritten. The documents are written
+ * at most at the configured rate, batches waiting as needed, so that the job
+ * does not compete with the live traffic. It can be stopped at any time and run
+ * again, and the old keys can be dropped once it has found nothing left to do.
+ *
+ * @author Carlo P. Micieli
+ */
+public class ConnectionReencryptor {
+
+	private static final int DEFAULT_BATCH_SIZE = 100;
+	private static final String[] TOKENS = { "accessToken", "secret", "refreshToken" };
+
+	private final MongoTemplate mongoTemplate;
+	private final ConnectionConverter converter;
+
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private double maxDocumentsPerSecond;
+	private boolean binaryTokens;
+
+	private volatile boolean stopped;
+
+	public ConnectionReencryptor(MongoTemplate mongoTemplate, ConnectionConverter converter) {
+		this.mongoTemplate = mongoTemplate;
+		this.converter = converter;
+	}
+
+	/**
+	 * Sets the number of documents read and written at a time.
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be positive");
+		}
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Sets the max number of documents re-encrypted per second; no limit by default.
+	 */
+	public void setMaxDocumentsPerSecond(double maxDocumentsPerSecond) {
+		if (maxDocumentsPerSecond < 0) {
+			throw new IllegalArgumentException("maxDocumentsPerSecond must not be negative");
+		}
+		this.maxDocumentsPerSecond = maxDocumentsPerSecond;
+	}
+
+	/**
+	 * Sets whether the tokens are written as binary, as the service writing the
+	 * collection does.
+	 */
+	public void setBinaryTokens(boolean binaryTokens) {
+		this.binaryTokens = binaryTokens;
+	}
+
+	/**
+	 * Stops a running re-encryption after its current batch.
+	 */
+	public void stop() {
+		stopped = true;
+	}
+
+	/**
+	 * Re-encrypts the documents written with another key than the current one,
+	 * returning the number of documents updated.
+	 */
+	public long reencrypt() {
+		stopped = false;
+		String keyId = converter.getCurrentKeyId();
+		long start = System.nanoTime();
+		long reencrypted = 0;
+		long read = 0;
+		ObjectId lastId = null;
+		while (!stopped) {
+			List<DBObject> batch = nextBatch(keyId, lastId);
+			if (batch.isEmpty()) {
+				break;
+			}
+			read += batch.size();
+			reencrypted += update(batch);
+			lastId = (ObjectId) batch.get(batch.size() - 1).get("_id");
+			if (batch.size() < batchSize) {
+				break;
+			}
+			throttle(start, read);
+		}
+		return reencrypted;
+	}
+
+	private List<DBObject> nextBatch(String keyId, ObjectId lastId) {
+		final DBObject query = new BasicDBObject("keyId", new BasicDBObject("$ne", keyId));
+		if (lastId != null) {
+			query.put("_id", new BasicDBObject("$gt", lastId));
+		}
+		return mongoTemplate.execute(MongoConnection.class, new CollectionCallback<List<DBObject>>() {
+			public List<DBObject> doInCollection(DBCollection collection) {
+				DBCursor cursor = collection.find(query).sort(new BasicDBObject("_id", 1)).limit(batchSize);
+				try {
+					List<DBObject> batch = new ArrayList<DBObject>(batchSize);
+					while (cursor.hasNext()) {
+						batch.add(cursor.next());
+					}
+					return batch;
+				} finally {
+					cursor.close();
+				}
+			}
+		});
+	}
+
+	private int update(final List<DBObject> batch) {
+		// encrypted before writing, not to hold the connection meanwhile
+		final List<DBObject> queries = new ArrayList<DBObject>(batch.size());
+		final List<DBObject> updates = new ArrayList<DBObject>(batch.size());
+		for (DBObject dbo : batch) {
+			MongoConnection reencrypted = converter.reencrypt(MongoConnectionCodec.read(dbo));
+			DBObject unchanged = new BasicDBObject("_id", dbo.get("_id")).append("keyId", dbo.get("keyId"));
+			DBObject changes = new BasicDBObject("keyId", reencrypted.getKeyId());
+			DBObject written = MongoConnectionCodec.write(reencrypted, binaryTokens);
+			for (String token : TOKENS) {
+				unchanged.put(token, dbo.get(token));
+				if (written.containsField(token)) {
+					changes.put(token, written.get(token));
+				}
+			}
+			queries.add(unchanged);
+			updates.add(new BasicDBObject("$set", changes));
+		}
+
+		return mongoTemplate.execute(MongoConnection.class, new CollectionCallback<Integer>() {
+			public Integer doInCollection(DBCollection collection) {
+				BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+				for (int i = 0; i < queries.size(); i++) {
+					bulk.find(queries.get(i)).updateOne(updates.get(i));
+				}
+				BulkWriteResult result = bulk.execute();
+				return result.isAcknowledged() ? result.getMatchedCount() : queries.size();
+			}
+		});
+	}
+
+	// waits until the documents read so far are within the rate
+	private void throttle(long start, long read) {
+		if (maxDocumentsPerSecond <= 0) {
+			return;
+		}
+		long due = start + (long) (read / maxDocumentsPerSecond * TimeUnit.SECONDS.toNanos(1));
+		long wait = due - System.nanoTime();
+		if (wait <= 0) {
+			return;
+		}
+		try {
+			TimeUnit.NANOSECONDS.sleep(wait);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DataAccessResourceFailureException("Interrupted while re-encrypting the connections", e);
+		}
+	}
+}
@@ -18,6 +18,7 @@ package uk.ac.ebi.ddi.social.connect.mongo;
 import java.util.List;
 import java.util.Set;
 
+import org.springframework.data.util.CloseableIterator;
 import org.springframework.social.connect.Connection;
 import org.springframework.social.connect.ConnectionKey;
 import org.springframework.util.MultiValueMap;
@@ -26,10 +27,16 @@ public interface ConnectionService {
 
 	int getMaxRank(String userId, String providerId);
 
+	void create(String userId, Connection<?> userConn);
+
 	void create(String userId, Connection<?> userConn, int rank);
 
+	ConnectionImportResult importConnections(List<UserConnection> connections);
+
 	void update(String userId, Connection<?> userConn);
 
+	void updateConnections(List<UserConnection> connections);
+
 	void remove(String userId, ConnectionKey connectionKey);
 
 	void remove(String userId, String providerId);
@@ -42,6 +49,8 @@ public interface ConnectionService {
 
 	List<Connection<?>> getConnections(String userId);
 
+	List<MongoConnection> getMongoConnections(String userId);
+
 	List<Connection<?>> getConnections(String userId,
 			String providerId);
 
@@ -54,4 +63,12 @@ public interface ConnectionService {
 	List<String> getUserIds(String providerId,
 			String providerUserId);
 
+	CloseableIterator<Connection<?>> streamConnections(String providerId,
+			int batchSize);
+
+	CloseableIterator<Connection<?>> streamExpiringConnections(long expireTime,
+			int batchSize);
+
+	CloseableIterator<ConnectionKey> streamConnectionKeys(int batchSize);
+
 }
\ No newline at end of file
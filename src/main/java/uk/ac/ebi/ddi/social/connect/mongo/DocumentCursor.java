@@ -0,0 +1,94 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.NoSuchElementException;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.mongodb.core.MongoExceptionTranslator;
+import org.springframework.data.util.CloseableIterator;
+
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * An iterator over a Mongodb cursor, converting each document as it is read.
+ * <p>
+ * Only the current batch of documents is held in memory. The cursor is closed
+ * once exhausted, or by {@link #close()} when the iteration stops early.
+ * 
+ * @author Carlo P. Micieli
+ */
+abstract class DocumentCursor<T> implements CloseableIterator<T> {
+
+	private static final MongoExceptionTranslator EXCEPTION_TRANSLATOR = new MongoExceptionTranslator();
+
+	private final DBCursor cursor;
+	private boolean closed;
+
+	DocumentCursor(DBCursor cursor) {
+		this.cursor = cursor;
+	}
+
+	/**
+	 * Converts a document read from the cursor.
+	 */
+	protected abstract T convert(DBObject dbo);
+
+	public boolean hasNext() {
+		if (closed) {
+			return false;
+		}
+		try {
+			if (cursor.hasNext()) {
+				return true;
+			}
+		} catch (RuntimeException e) {
+			close();
+			throw translate(e);
+		}
+		close();
+		return false;
+	}
+
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		try {
+			return convert(cursor.next());
+		} catch (RuntimeException e) {
+			close();
+			throw translate(e);
+		}
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException("remove");
+	}
+
+	public void close() {
+		if (!closed) {
+			closed = true;
+			cursor.close();
+		}
+	}
+
+	private static RuntimeException translate(RuntimeException e) {
+		DataAccessException translated = EXCEPTION_TRANSLATOR.translateExceptionIfPossible(e);
+		return translated != null ? translated : e;
+	}
+}
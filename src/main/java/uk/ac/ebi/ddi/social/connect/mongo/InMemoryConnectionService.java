@@ -0,0 +1,498 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import org.bson.types.ObjectId;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.util.MultiValueMap;
+
+/**
+ * A connection service keeping the connection documents in memory, for tests,
+ * load generators or as a local tier in front of the Mongodb service.
+ * <p>
+ * The documents are indexed as the {@code connections} collection is: by user,
+ * provider and rank, by user, provider and provider user id, both unique, and by
+ * provider identity for the reverse lookups. The writes of a user are serialized
+ * and rejected with a {@link DuplicateKeyException} naming the violated index, as
+ * Mongodb does; the reads take no lock and return the connections in the order
+ * the Mongo queries sort them. Ranks are handed out by a per user and provider
+ * counter which behaves as the {@code connection_ranks} one.
+ * <p>
+ * The tokens are stored encrypted by the {@link ConnectionConverter}, as in
+ * Mongodb.
+ *
+ * @author Carlo P. Micieli
+ */
+public class InMemoryConnectionService implements ConnectionService {
+
+	private static final String RANK_INDEX = "connections_rank_idx";
+	private static final String PRIMARY_INDEX = "connections_primary_idx";
+	private static final int LOCK_STRIPES = 64;
+
+	private final ConnectionConverter converter;
+
+	// userId -> providerId -> rank -> document
+	private final ConcurrentMap<String, ConcurrentNavigableMap<String, ConcurrentNavigableMap<Integer, MongoConnection>>> byRank =
+			new ConcurrentHashMap<String, ConcurrentNavigableMap<String, ConcurrentNavigableMap<Integer, MongoConnection>>>();
+
+	// [userId, providerId, providerUserId] -> document
+	private final ConcurrentMap<List<String>, MongoConnection> byProviderUser =
+			new ConcurrentHashMap<List<String>, MongoConnection>();
+
+	// providerId -> providerUserId -> userIds, in the order of connections_provider_user_idx
+	private final ConcurrentNavigableMap<String, ConcurrentNavigableMap<String, NavigableSet<String>>> byProviderIdentity =
+			new ConcurrentSkipListMap<String, ConcurrentNavigableMap<String, NavigableSet<String>>>();
+
+	// [userId, providerId] -> last rank handed out by create(String, Connection) and the imports
+	private final ConcurrentMap<List<String>, Integer> rankCounters = new ConcurrentHashMap<List<String>, Integer>();
+
+	private final Object[] locks = new Object[LOCK_STRIPES];
+
+	public InMemoryConnectionService(ConnectionConverter converter) {
+		this.converter = converter;
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	public int getMaxRank(String userId, String providerId) {
+		NavigableMap<Integer, MongoConnection> ranks = ranks(userId, providerId);
+		return ranks.isEmpty() ? 1 : ranks.lastKey() + 1;
+	}
+
+	/**
+	 * Create a new connection for the user, with the next rank of the counter. Should
+	 * the rank be taken, the counter is moved forward to the current max rank first.
+	 */
+	public void create(String userId, Connection<?> userConn) {
+		MongoConnection mongoCnn = converter.convert(userConn);
+		mongoCnn.setUserId(userId);
+		synchronized (lock(userId)) {
+			List<String> counterKey = Arrays.asList(userId, mongoCnn.getProviderId());
+			Integer counter = rankCounters.get(counterKey);
+			int rank = counter == null ? 1 : counter + 1;
+			if (ranks(userId, mongoCnn.getProviderId()).containsKey(rank)) {
+				rank = getMaxRank(userId, mongoCnn.getProviderId());
+			}
+			rankCounters.put(counterKey, rank);
+			mongoCnn.setRank(rank);
+			insert(mongoCnn);
+		}
+	}
+
+	public void create(String userId, Connection<?> userConn, int rank) {
+		MongoConnection mongoCnn = converter.convert(userConn);
+		mongoCnn.setUserId(userId);
+		mongoCnn.setRank(rank);
+		synchronized (lock(userId)) {
+			insert(mongoCnn);
+		}
+	}
+
+	/**
+	 * Import a batch of connections, ranked by the counter of each user and provider
+	 * after the connections already stored, in the order they are given, as
+	 * {@link MongoConnectionService#importConnections(List)} does.
+	 */
+	public ConnectionImportResult importConnections(List<UserConnection> connections) {
+		List<UserConnection> duplicates = new ArrayList<UserConnection>();
+		int imported = 0;
+		for (UserConnection uc : connections) {
+			MongoConnection mongoCnn = converter.convert(uc.getConnection());
+			mongoCnn.setUserId(uc.getUserId());
+			try {
+				synchronized (lock(uc.getUserId())) {
+					List<String> counterKey = Arrays.asList(uc.getUserId(), mongoCnn.getProviderId());
+					Integer counter = rankCounters.get(counterKey);
+					int rank = Math.max(counter == null ? 0 : counter,
+							getMaxRank(uc.getUserId(), mongoCnn.getProviderId()) - 1) + 1;
+					rankCounters.put(counterKey, rank);
+					mongoCnn.setRank(rank);
+					insert(mongoCnn);
+				}
+				imported++;
+			} catch (DuplicateKeyException e) {
+				duplicates.add(uc);
+			}
+		}
+		return new ConnectionImportResult(imported, duplicates);
+	}
+
+	/**
+	 * Update a connection, inserting it without a rank when missing as the Mongo
+	 * upsert does.
+	 */
+	public void update(String userId, Connection<?> userConn) {
+		MongoConnection mongoCnn = converter.convert(userConn);
+		synchronized (lock(userId)) {
+			MongoConnection current = byProviderUser.get(
+					key(userId, mongoCnn.getProviderId(), mongoCnn.getProviderUserId()));
+			if (current == null) {
+				mongoCnn.setUserId(userId);
+				insert(mongoCnn);
+				return;
+			}
+			MongoConnection updated = copy(current);
+			updated.setDisplayName(mongoCnn.getDisplayName());
+			updated.setProfileUrl(mongoCnn.getProfileUrl());
+			updated.setImageUrl(mongoCnn.getImageUrl());
+			updated.setAccessToken(mongoCnn.getAccessToken());
+			updated.setSecret(mongoCnn.getSecret());
+			updated.setRefreshToken(mongoCnn.getRefreshToken());
+			updated.setExpireTime(mongoCnn.getExpireTime());
+			updated.setKeyId(mongoCnn.getKeyId());
+			index(updated);
+		}
+	}
+
+	/**
+	 * Update a batch of connections in order, stopping at the first failure.
+	 */
+	public void updateConnections(List<UserConnection> connections) {
+		for (UserConnection uc : connections) {
+			update(uc.getUserId(), uc.getConnection());
+		}
+	}
+
+	public void remove(String userId, ConnectionKey connectionKey) {
+		synchronized (lock(userId)) {
+			MongoConnection mongoCnn = byProviderUser.get(
+					key(userId, connectionKey.getProviderId(), connectionKey.getProviderUserId()));
+			if (mongoCnn != null) {
+				unindex(mongoCnn);
+			}
+			// the next connection is the primary one again, once the last one is gone
+			if (ranks(userId, connectionKey.getProviderId()).isEmpty()) {
+				rankCounters.remove(Arrays.asList(userId, connectionKey.getProviderId()));
+			}
+		}
+	}
+
+	public void remove(String userId, String providerId) {
+		synchronized (lock(userId)) {
+			for (MongoConnection mongoCnn : new ArrayList<MongoConnection>(ranks(userId, providerId).values())) {
+				unindex(mongoCnn);
+			}
+			rankCounters.remove(Arrays.asList(userId, providerId));
+		}
+	}
+
+	public Connection<?> getPrimaryConnection(String userId, String providerId) {
+		return converter.convert(ranks(userId, providerId).get(1));
+	}
+
+	public Connection<?> getConnection(String userId, String providerId, String providerUserId) {
+		return converter.convert(byProviderUser.get(key(userId, providerId, providerUserId)));
+	}
+
+	public List<Connection<?>> getConnections(String userId) {
+		List<Connection<?>> connections = new ArrayList<Connection<?>>();
+		for (NavigableMap<Integer, MongoConnection> ranks : providers(userId).values()) {
+			convert(ranks.values(), connections);
+		}
+		return connections;
+	}
+
+	/**
+	 * Get copies of all the connection documents of the user, in provider and rank order.
+	 */
+	public List<MongoConnection> getMongoConnections(String userId) {
+		List<MongoConnection> documents = new ArrayList<MongoConnection>();
+		for (NavigableMap<Integer, MongoConnection> ranks : providers(userId).values()) {
+			for (MongoConnection mongoCnn : ranks.values()) {
+				documents.add(copy(mongoCnn));
+			}
+		}
+		return documents;
+	}
+
+	public List<Connection<?>> getConnections(String userId, String providerId) {
+		return convert(ranks(userId, providerId).values(), new ArrayList<Connection<?>>());
+	}
+
+	public List<Connection<?>> getConnections(String userId, MultiValueMap<String, String> providerUsers) {
+		if (providerUsers == null || providerUsers.isEmpty()) {
+			throw new IllegalArgumentException("Unable to execute find: no providerUsers provided");
+		}
+
+		List<Connection<?>> connections = new ArrayList<Connection<?>>();
+		for (Map.Entry<String, ConcurrentNavigableMap<Integer, MongoConnection>> entry : providers(userId).entrySet()) {
+			List<String> providerUserIds = providerUsers.get(entry.getKey());
+			if (providerUserIds == null) {
+				continue;
+			}
+			Set<String> wanted = new HashSet<String>(providerUserIds);
+			for (MongoConnection mongoCnn : entry.getValue().values()) {
+				if (wanted.contains(mongoCnn.getProviderUserId())) {
+					connections.add(converter.convert(mongoCnn));
+				}
+			}
+		}
+		return connections;
+	}
+
+	public Set<String> getUserIds(String providerId, Set<String> providerUserIds) {
+		Map<String, NavigableSet<String>> providerUsers = byProviderIdentity.get(providerId);
+		Set<String> userIds = new HashSet<String>();
+		if (providerUsers != null) {
+			for (String providerUserId : providerUserIds) {
+				Set<String> ids = providerUsers.get(providerUserId);
+				if (ids != null) {
+					userIds.addAll(ids);
+				}
+			}
+		}
+		return userIds;
+	}
+
+	public List<String> getUserIds(String providerId, String providerUserId) {
+		Map<String, NavigableSet<String>> providerUsers = byProviderIdentity.get(providerId);
+		Set<String> userIds = providerUsers != null ? providerUsers.get(providerUserId) : null;
+		return userIds != null ? new ArrayList<String>(userIds) : new ArrayList<String>();
+	}
+
+	/**
+	 * Stream all the connections on a provider, as they are when the method is called.
+	 */
+	public CloseableIterator<Connection<?>> streamConnections(String providerId, int batchSize) {
+		checkBatchSize(batchSize);
+		List<MongoConnection> documents = new ArrayList<MongoConnection>();
+		for (String userId : byRank.keySet()) {
+			documents.addAll(ranks(userId, providerId).values());
+		}
+		return new ConvertingIterator(documents.iterator());
+	}
+
+	/**
+	 * Stream all the connections expiring before the given time, as they are when
+	 * the method is called.
+	 */
+	public CloseableIterator<Connection<?>> streamExpiringConnections(long expireTime, int batchSize) {
+		checkBatchSize(batchSize);
+		List<MongoConnection> documents = new ArrayList<MongoConnection>();
+		for (MongoConnection mongoCnn : byProviderUser.values()) {
+			if (mongoCnn.getExpireTime() != null && mongoCnn.getExpireTime() < expireTime) {
+				documents.add(mongoCnn);
+			}
+		}
+		return new ConvertingIterator(documents.iterator());
+	}
+
+	/**
+	 * Stream the provider identity of all the connections, one per connection, in
+	 * provider and provider user id order.
+	 */
+	public CloseableIterator<ConnectionKey> streamConnectionKeys(int batchSize) {
+		checkBatchSize(batchSize);
+		final Iterator<Map.Entry<String, ConcurrentNavigableMap<String, NavigableSet<String>>>> providers =
+				byProviderIdentity.entrySet().iterator();
+		return new CloseableIterator<ConnectionKey>() {
+			private final List<ConnectionKey> batch = new ArrayList<ConnectionKey>();
+			private int position;
+
+			public boolean hasNext() {
+				while (position == batch.size() && providers.hasNext()) {
+					// one provider at a time
+					Map.Entry<String, ConcurrentNavigableMap<String, NavigableSet<String>>> entry = providers.next();
+					batch.clear();
+					position = 0;
+					for (Map.Entry<String, NavigableSet<String>> users : entry.getValue().entrySet()) {
+						ConnectionKey key = new ConnectionKey(entry.getKey(), users.getKey());
+						for (int i = users.getValue().size(); i > 0; i--) {
+							batch.add(key);
+						}
+					}
+				}
+				return position < batch.size();
+			}
+
+			public ConnectionKey next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return batch.get(position++);
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException("remove");
+			}
+
+			public void close() {
+			}
+		};
+	}
+
+	// helper methods, the writing ones called holding the lock of the user
+
+	private void insert(MongoConnection mongoCnn) {
+		String userId = mongoCnn.getUserId();
+		List<String> key = key(userId, mongoCnn.getProviderId(), mongoCnn.getProviderUserId());
+		if (byProviderUser.containsKey(key)) {
+			throw duplicateKey(PRIMARY_INDEX, key);
+		}
+		if (ranks(userId, mongoCnn.getProviderId()).containsKey(mongoCnn.getRank())) {
+			throw duplicateKey(RANK_INDEX, Arrays.asList(userId, mongoCnn.getProviderId(),
+					String.valueOf(mongoCnn.getRank())));
+		}
+		mongoCnn.setId(new ObjectId());
+		index(mongoCnn);
+	}
+
+	private void index(MongoConnection mongoCnn) {
+		String userId = mongoCnn.getUserId();
+		ConcurrentNavigableMap<String, ConcurrentNavigableMap<Integer, MongoConnection>> providers = byRank.get(userId);
+		if (providers == null) {
+			providers = new ConcurrentSkipListMap<String, ConcurrentNavigableMap<Integer, MongoConnection>>();
+			byRank.put(userId, providers);
+		}
+		ConcurrentNavigableMap<Integer, MongoConnection> ranks = providers.get(mongoCnn.getProviderId());
+		if (ranks == null) {
+			ranks = new ConcurrentSkipListMap<Integer, MongoConnection>();
+			providers.put(mongoCnn.getProviderId(), ranks);
+		}
+		ranks.put(mongoCnn.getRank(), mongoCnn);
+		byProviderUser.put(key(userId, mongoCnn.getProviderId(), mongoCnn.getProviderUserId()), mongoCnn);
+
+		// shared by the users, so guarded by its own lock
+		if (mongoCnn.getProviderUserId() != null) {
+			synchronized (byProviderIdentity) {
+				ConcurrentNavigableMap<String, NavigableSet<String>> providerUsers =
+						byProviderIdentity.get(mongoCnn.getProviderId());
+				if (providerUsers == null) {
+					providerUsers = new ConcurrentSkipListMap<String, NavigableSet<String>>();
+					byProviderIdentity.put(mongoCnn.getProviderId(), providerUsers);
+				}
+				NavigableSet<String> userIds = providerUsers.get(mongoCnn.getProviderUserId());
+				if (userIds == null) {
+					userIds = new ConcurrentSkipListSet<String>();
+					providerUsers.put(mongoCnn.getProviderUserId(), userIds);
+				}
+				userIds.add(userId);
+			}
+		}
+	}
+
+	private void unindex(MongoConnection mongoCnn) {
+		String userId = mongoCnn.getUserId();
+		byProviderUser.remove(key(userId, mongoCnn.getProviderId(), mongoCnn.getProviderUserId()));
+		ConcurrentNavigableMap<String, ConcurrentNavigableMap<Integer, MongoConnection>> providers = byRank.get(userId);
+		ConcurrentNavigableMap<Integer, MongoConnection> ranks = providers.get(mongoCnn.getProviderId());
+		ranks.remove(mongoCnn.getRank());
+		if (ranks.isEmpty()) {
+			providers.remove(mongoCnn.getProviderId());
+			if (providers.isEmpty()) {
+				byRank.remove(userId);
+			}
+		}
+
+		if (mongoCnn.getProviderUserId() != null) {
+			synchronized (byProviderIdentity) {
+				ConcurrentNavigableMap<String, NavigableSet<String>> providerUsers =
+						byProviderIdentity.get(mongoCnn.getProviderId());
+				NavigableSet<String> userIds = providerUsers.get(mongoCnn.getProviderUserId());
+				userIds.remove(userId);
+				if (userIds.isEmpty()) {
+					providerUsers.remove(mongoCnn.getProviderUserId());
+					if (providerUsers.isEmpty()) {
+						byProviderIdentity.remove(mongoCnn.getProviderId());
+					}
+				}
+			}
+		}
+	}
+
+	private NavigableMap<String, ConcurrentNavigableMap<Integer, MongoConnection>> providers(String userId) {
+		NavigableMap<String, ConcurrentNavigableMap<Integer, MongoConnection>> providers = byRank.get(userId);
+		return providers != null ? providers : new ConcurrentSkipListMap<String, ConcurrentNavigableMap<Integer, MongoConnection>>();
+	}
+
+	private NavigableMap<Integer, MongoConnection> ranks(String userId, String providerId) {
+		NavigableMap<Integer, MongoConnection> ranks = providers(userId).get(providerId);
+		return ranks != null ? ranks : new ConcurrentSkipListMap<Integer, MongoConnection>();
+	}
+
+	private List<Connection<?>> convert(Collection<MongoConnection> documents, List<Connection<?>> connections) {
+		for (MongoConnection mongoCnn : documents) {
+			connections.add(converter.convert(mongoCnn));
+		}
+		return connections;
+	}
+
+	private Object lock(String userId) {
+		return locks[(userId.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+	}
+
+	private static List<String> key(String userId, String providerId, String providerUserId) {
+		return Arrays.asList(userId, providerId, providerUserId);
+	}
+
+	private static MongoConnection copy(MongoConnection mongoCnn) {
+		return MongoConnectionCodec.read(MongoConnectionCodec.write(mongoCnn));
+	}
+
+	private static DuplicateKeyException duplicateKey(String index, List<String> key) {
+		return new DuplicateKeyException("E11000 duplicate key error index: connections.$" + index + " dup key: " + key);
+	}
+
+	private static void checkBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be positive");
+		}
+	}
+
+	private class ConvertingIterator implements CloseableIterator<Connection<?>> {
+		private final Iterator<MongoConnection> documents;
+
+		ConvertingIterator(Iterator<MongoConnection> documents) {
+			this.documents = documents;
+		}
+
+		public boolean hasNext() {
+			return documents.hasNext();
+		}
+
+		public Connection<?> next() {
+			return converter.convert(documents.next());
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException("remove");
+		}
+
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.security.crypto.encrypt.TextEncryptor;
+
+/**
+ * Copies the {@code UserConnection} table of the Spring Social
+ * {@code JdbcUsersConnectionRepository} into the connections collection.
+ * <p>
+ * The table is read one page at a time in primary key order, each page written
+ * with a bulk insert and followed by a {@link ConnectionMigrationCheckpoint} holding
+ * the last key written. A migration that stops half way resumes after that key when
+ * run again, and the rows of a page written but not checkpointed are skipped as
+ * duplicates. Only one page is held in memory, whatever the size of the table.
+ * <p>
+ * The rows colliding with a live connection, one holding the same rank or stored
+ * under the same key with a different rank, are not written. They are counted apart
+ * as rejected and their keys logged at warn, so a migration that lost rows shows it.
+ * <p>
+ * Ranks are copied as they are. The tokens are copied as they are too, unless a
+ * re-encryption is set, in which case they are encrypted with the current key of the
+ * converter and the documents record its key id. The rank counters are not written, {@link MongoConnectionService}
+ * moves them forward on the first new connection of each user and provider.
+ *
+ * @author Carlo P. Micieli
+ */
+public class JdbcConnectionMigrator {
+
+	/**
+	 * The most rejected keys kept in a checkpoint; the others are only logged.
+	 */
+	public static final int MAX_REJECTED_KEYS = 1000;
+
+	private static final Logger log = LoggerFactory.getLogger(JdbcConnectionMigrator.class);
+
+	private static final int DEFAULT_PAGE_SIZE = 1000;
+
+	private static final String SELECT_FROM = "select userId, providerId, providerUserId, rank, displayName, "
+			+ "profileUrl, imageUrl, accessToken, secret, refreshToken, expireTime from ";
+	private static final String AFTER_KEY = " where userId > ? or (userId = ? and (providerId > ? "
+			+ "or (providerId = ? and providerUserId > ?))) ";
+	private static final String ORDER_BY = " order by userId, providerId, providerUserId";
+
+	private final DataSource dataSource;
+	private final MongoConnectionService connectionService;
+	private final MongoTemplate mongoTemplate;
+
+	private String tablePrefix = "";
+	private int pageSize = DEFAULT_PAGE_SIZE;
+	private TextEncryptor sourceEncryptor;
+	private ConnectionConverter converter;
+
+	public JdbcConnectionMigrator(DataSource dataSource,
+			MongoConnectionService connectionService,
+			MongoTemplate mongoTemplate) {
+		this.dataSource = dataSource;
+		this.connectionService = connectionService;
+		this.mongoTemplate = mongoTemplate;
+	}
+
+	/**
+	 * Sets the prefix of the source table, as given to the {@code JdbcUsersConnectionRepository}.
+	 */
+	public void setTablePrefix(String tablePrefix) {
+		this.tablePrefix = tablePrefix;
+	}
+
+	/**
+	 * Sets the number of rows read and written at a time, and between two checkpoints.
+	 */
+	public void setPageSize(int pageSize) {
+		if (pageSize < 1) {
+			throw new IllegalArgumentException("pageSize must be positive");
+		}
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * Decrypts the tokens with the encryptor of the source table and encrypts them
+	 * again with the current key of the converter of the connections collection.
+	 */
+	public void setReencryption(TextEncryptor sourceEncryptor, ConnectionConverter converter) {
+		this.sourceEncryptor = sourceEncryptor;
+		this.converter = converter;
+	}
+
+	/**
+	 * Runs, or resumes, the migration of the source table.
+	 *
+	 * @return the checkpoint of the migration once the whole table is written
+	 */
+	public ConnectionMigrationCheckpoint migrate() {
+		return migrate(tablePrefix + "UserConnection");
+	}
+
+	/**
+	 * Runs, or resumes, the migration with the given id; use different ids
+	 * to copy the same table more than once.
+	 *
+	 * @return the checkpoint of the migration once the whole table is written
+	 */
+	public ConnectionMigrationCheckpoint migrate(String migrationId) {
+		ConnectionMigrationCheckpoint checkpoint =
+				mongoTemplate.findById(migrationId, ConnectionMigrationCheckpoint.class);
+		if (checkpoint == null) {
+			checkpoint = new ConnectionMigrationCheckpoint(migrationId);
+		}
+
+		JdbcTemplate pager = new JdbcTemplate(dataSource);
+		pager.setMaxRows(pageSize);
+		pager.setFetchSize(pageSize);
+
+		List<MongoConnection> page;
+		do {
+			page = nextPage(pager, checkpoint);
+			if (page.isEmpty()) {
+				break;
+			}
+
+			List<MongoConnection> rejected = new ArrayList<MongoConnection>();
+			int migrated = connectionService.importMongoConnections(page, rejected);
+			MongoConnection last = page.get(page.size() - 1);
+			checkpoint.userId = last.getUserId();
+			checkpoint.providerId = last.getProviderId();
+			checkpoint.providerUserId = last.getProviderUserId();
+			checkpoint.migratedCount += migrated;
+			checkpoint.skippedCount += page.size() - migrated - rejected.size();
+			reject(checkpoint, rejected);
+			checkpoint.lastUpdated = new Date();
+			mongoTemplate.save(checkpoint);
+		} while (page.size() == pageSize);
+
+		return checkpoint;
+	}
+
+	// helper methods
+
+	private List<MongoConnection> nextPage(JdbcTemplate pager, ConnectionMigrationCheckpoint checkpoint) {
+		String table = tablePrefix + "UserConnection";
+		if (!checkpoint.isStarted()) {
+			return pager.query(SELECT_FROM + table + ORDER_BY, rowMapper);
+		}
+		return pager.query(SELECT_FROM + table + AFTER_KEY + ORDER_BY, rowMapper,
+				checkpoint.userId, checkpoint.userId,
+				checkpoint.providerId, checkpoint.providerId,
+				checkpoint.providerUserId);
+	}
+
+	private void reject(ConnectionMigrationCheckpoint checkpoint, List<MongoConnection> rejected) {
+		for (MongoConnection mc : rejected) {
+			String key = mc.getUserId() + "/" + mc.getProviderId() + "/" + mc.getProviderUserId();
+			log.warn("Migration {} rejected {} with rank {}: it collides with a live connection",
+					new Object[] { checkpoint.getId(), key, mc.getRank() });
+			if (checkpoint.rejectedKeys.size() < MAX_REJECTED_KEYS) {
+				checkpoint.rejectedKeys.add(key);
+			}
+		}
+		checkpoint.rejectedCount += rejected.size();
+	}
+
+	private MongoConnection reencrypt(MongoConnection mc) {
+		if (sourceEncryptor == null || converter == null) {
+			return mc;
+		}
+		return converter.reencrypt(mc, sourceEncryptor);
+	}
+
+	private final RowMapper<MongoConnection> rowMapper = new RowMapper<MongoConnection>() {
+		public MongoConnection mapRow(ResultSet rs, int rowNum) throws SQLException {
+			MongoConnection mc = new MongoConnection();
+			mc.setUserId(rs.getString("userId"));
+			mc.setProviderId(rs.getString("providerId"));
+			mc.setProviderUserId(rs.getString("providerUserId"));
+			mc.setRank(rs.getInt("rank"));
+			mc.setDisplayName(rs.getString("displayName"));
+			mc.setProfileUrl(rs.getString("profileUrl"));
+			mc.setImageUrl(rs.getString("imageUrl"));
+			mc.setAccessToken(rs.getString("accessToken"));
+			mc.setSecret(rs.getString("secret"));
+			mc.setRefreshToken(rs.getString("refreshToken"));
+			long expireTime = rs.getLong("expireTime");
+			mc.setExpireTime(rs.wasNull() ? null : expireTime);
+			return reencrypt(mc);
+		}
+	};
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.UserProfile;
+
+/**
+ * A connection backed by a Mongo document, that decrypts the tokens and
+ * creates the provider connection only when first needed. Whether the
+ * connection has expired is answered from the document as well. It is equal
+ * to any connection with the same key, as the provider connections are.
+ * <p>
+ * It is not an instance of the provider connection class, such as
+ * {@code OAuth2Connection}: code checking the class of a connection needs
+ * the lazy decryption disabled.
+ * <p>
+ * It is serialized as the provider connection it stands for, so the
+ * document and the converter are never written out.
+ * 
+ * @author Carlo P. Micieli
+ */
+class LazyConnection<A> implements Connection<A> {
+
+	private static final long serialVersionUID = 1L;
+
+	private final transient MongoConnection document;
+	private final transient ConnectionConverter converter;
+	
+	private transient volatile Connection<A> connection;
+	
+	LazyConnection(MongoConnection document, ConnectionConverter converter) {
+		this.document = document;
+		this.converter = converter;
+	}
+	
+	public ConnectionKey getKey() {
+		return new ConnectionKey(document.getProviderId(), document.getProviderUserId());
+	}
+
+	public String getDisplayName() {
+		return document.getDisplayName();
+	}
+
+	public String getProfileUrl() {
+		return document.getProfileUrl();
+	}
+
+	public String getImageUrl() {
+		return document.getImageUrl();
+	}
+
+	public void sync() {
+		getConnection().sync();
+	}
+
+	public boolean test() {
+		return getConnection().test();
+	}
+
+	public boolean hasExpired() {
+		Connection<A> result = connection;
+		if (result != null) {
+			return result.hasExpired();
+		}
+		// as the OAuth2 connections do, the others have no expire time
+		Long expireTime = document.getExpireTime();
+		return expireTime != null && System.currentTimeMillis() >= expireTime;
+	}
+
+	public void refresh() {
+		getConnection().refresh();
+	}
+
+	public UserProfile fetchUserProfile() {
+		return getConnection().fetchUserProfile();
+	}
+
+	public void updateStatus(String message) {
+		getConnection().updateStatus(message);
+	}
+
+	public A getApi() {
+		return getConnection().getApi();
+	}
+
+	public ConnectionData createData() {
+		return getConnection().createData();
+	}
+	
+	@SuppressWarnings("unchecked")
+	private Connection<A> getConnection() {
+		Connection<A> result = connection;
+		if (result == null) {
+			synchronized (this) {
+				result = connection;
+				if (result == null) {
+					result = (Connection<A>) converter.materialize(document);
+					connection = result;
+				}
+			}
+		}
+		return result;
+	}
+	
+	private Object writeReplace() {
+		return getConnection();
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof Connection)) {
+			return false;
+		}
+		return getKey().equals(((Connection<?>) obj).getKey());
+	}
+	
+	@Override
+	public int hashCode() {
+		return getKey().hashCode();
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("{%s, %s, %s}", 
+				document.getProviderId(), 
+				document.getProviderUserId(),
+				document.getDisplayName());
+	}
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.util.MultiValueMap;
+
+/**
+ * A {@link ConnectionService} decorator that records the latency, the documents
+ * returned or written and the errors of every operation in a {@link ConnectionMetrics}.
+ * <p>
+ * The operations are named after the methods, the overloaded ones as
+ * {@code createWithRank}, {@code removeProvider}, {@code getProviderConnections},
+ * {@code getConnectionsToUsers} and {@code getUserIdsBatch}. A stream is recorded
+ * when its iterator is exhausted or closed, from its opening, with the documents
+ * iterated. With {@link ConnectionMetrics#NONE} the decorator only forwards the
+ * calls, without reading the clock.
+ *
+ * @author Carlo P. Micieli
+ */
+public class MetricsConnectionService implements ConnectionService {
+
+	private final ConnectionService connectionService;
+	private final ConnectionMetrics metrics;
+	private final boolean enabled;
+
+	public MetricsConnectionService(ConnectionService connectionService, ConnectionMetrics metrics) {
+		this.connectionService = connectionService;
+		this.metrics = metrics;
+		this.enabled = metrics != ConnectionMetrics.NONE;
+	}
+
+	@Override
+	public int getMaxRank(String userId, String providerId) {
+		long start = start();
+		try {
+			int rank = connectionService.getMaxRank(userId, providerId);
+			record("getMaxRank", start, 0);
+			return rank;
+		} catch (RuntimeException e) {
+			throw error("getMaxRank", start, e);
+		}
+	}
+
+	@Override
+	public void create(String userId, Connection<?> userConn) {
+		long start = start();
+		try {
+			connectionService.create(userId, userConn);
+			record("create", start, 1);
+		} catch (RuntimeException e) {
+			throw error("create", start, e);
+		}
+	}
+
+	@Override
+	public void create(String userId, Connection<?> userConn, int rank) {
+		long start = start();
+		try {
+			connectionService.create(userId, userConn, rank);
+			record("createWithRank", start, 1);
+		} catch (RuntimeException e) {
+			throw error("createWithRank", start, e);
+		}
+	}
+
+	@Override
+	public ConnectionImportResult importConnections(List<UserConnection> connections) {
+		long start = start();
+		try {
+			ConnectionImportResult result = connectionService.importConnections(connections);
+			record("importConnections", start, result.getImportedCount());
+			return result;
+		} catch (RuntimeException e) {
+			throw error("importConnections", start, e);
+		}
+	}
+
+	@Override
+	public void update(String userId, Connection<?> userConn) {
+		long start = start();
+		try {
+			connectionService.update(userId, userConn);
+			record("update", start, 1);
+		} catch (RuntimeException e) {
+			throw error("update", start, e);
+		}
+	}
+
+	@Override
+	public void updateConnections(List<UserConnection> connections) {
+		long start = start();
+		try {
+			connectionService.updateConnections(connections);
+			record("updateConnections", start, connections.size());
+		} catch (RuntimeException e) {
+			throw error("updateConnections", start, e);
+		}
+	}
+
+	@Override
+	public void remove(String userId, ConnectionKey connectionKey) {
+		long start = start();
+		try {
+			connectionService.remove(userId, connectionKey);
+			record("remove", start, 0);
+		} catch (RuntimeException e) {
+			throw error("remove", start, e);
+		}
+	}
+
+	@Override
+	public void remove(String userId, String providerId) {
+		long start = start();
+		try {
+			connectionService.remove(userId, providerId);
+			record("removeProvider", start, 0);
+		} catch (RuntimeException e) {
+			throw error("removeProvider", start, e);
+		}
+	}
+
+	@Override
+	public Connection<?> getPrimaryConnection(String userId, String providerId) {
+		long start = start();
+		try {
+			Connection<?> connection = connectionService.getPrimaryConnection(userId, providerId);
+			record("getPrimaryConnection", start, connection != null ? 1 : 0);
+			return connection;
+		} catch (RuntimeException e) {
+			throw error("getPrimaryConnection", start, e);
+		}
+	}
+
+	@Override
+	public Connection<?> getConnection(String userId, String providerId, String providerUserId) {
+		long start = start();
+		try {
+			Connection<?> connection = connectionService.getConnection(userId, providerId, providerUserId);
+			record("getConnection", start, connection != null ? 1 : 0);
+			return connection;
+		} catch (RuntimeException e) {
+			throw error("getConnection", start, e);
+		}
+	}
+
+	@Override
+	public List<Connection<?>> getConnections(String userId) {
+		long start = start();
+		try {
+			return record("getConnections", start, connectionService.getConnections(userId));
+		} catch (RuntimeException e) {
+			throw error("getConnections", start, e);
+		}
+	}
+
+	@Override
+	public List<MongoConnection> getMongoConnections(String userId) {
+		long start = start();
+		try {
+			return record("getMongoConnections", start, connectionService.getMongoConnections(userId));
+		} catch (RuntimeException e) {
+			throw error("getMongoConnections", start, e);
+		}
+	}
+
+	@Override
+	public List<Connection<?>> getConnections(String userId, String providerId) {
+		long start = start();
+		try {
+			return record("getProviderConnections", start, connectionService.getConnections(userId, providerId));
+		} catch (RuntimeException e) {
+			throw error("getProviderConnections", start, e);
+		}
+	}
+
+	@Override
+	public List<Connection<?>> getConnections(String userId, MultiValueMap<String, String> providerUsers) {
+		long start = start();
+		try {
+			return record("getConnectionsToUsers", start, connectionService.getConnections(userId, providerUsers));
+		} catch (RuntimeException e) {
+			throw error("getConnectionsToUsers", start, e);
+		}
+	}
+
+	@Override
+	public Set<String> getUserIds(String providerId, Set<String> providerUserIds) {
+		long start = start();
+		try {
+			return record("getUserIdsBatch", start, connectionService.getUserIds(providerId, providerUserIds));
+		} catch (RuntimeException e) {
+			throw error("getUserIdsBatch", start, e);
+		}
+	}
+
+	@Override
+	public List<String> getUserIds(String providerId, String providerUserId) {
+		long start = start();
+		try {
+			return record("getUserIds", start, connectionService.getUserIds(providerId, providerUserId));
+		} catch (RuntimeException e) {
+			throw error("getUserIds", start, e);
+		}
+	}
+
+	@Override
+	public CloseableIterator<Connection<?>> streamConnections(String providerId, int batchSize) {
+		long start = start();
+		try {
+			return new MeasuredIterator<Connection<?>>("streamConnections", start,
+					connectionService.streamConnections(providerId, batchSize));
+		} catch (RuntimeException e) {
+			throw error("streamConnections", start, e);
+		}
+	}
+
+	@Override
+	public CloseableIterator<Connection<?>> streamExpiringConnections(long expireTime, int batchSize) {
+		long start = start();
+		try {
+			return new MeasuredIterator<Connection<?>>("streamExpiringConnections", start,
+					connectionService.streamExpiringConnections(expireTime, batchSize));
+		} catch (RuntimeException e) {
+			throw error("streamExpiringConnections", start, e);
+		}
+	}
+
+	@Override
+	public CloseableIterator<ConnectionKey> streamConnectionKeys(int batchSize) {
+		long start = start();
+		try {
+			return new MeasuredIterator<ConnectionKey>("streamConnectionKeys", start,
+					connectionService.streamConnectionKeys(batchSize));
+		} catch (RuntimeException e) {
+			throw error("streamConnectionKeys", start, e);
+		}
+	}
+
+	// helper methods, doing nothing with the NONE metrics, not even reading the clock
+
+	private long start() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	private void record(String operation, long start, int documents) {
+		if (enabled) {
+			metrics.recordOperation(operation, System.nanoTime() - start, documents);
+		}
+	}
+
+	private <T extends Collection<?>> T record(String operation, long start, T results) {
+		if (enabled) {
+			metrics.recordOperation(operation, System.nanoTime() - start, results.size());
+		}
+		return results;
+	}
+
+	private RuntimeException error(String operation, long start, RuntimeException e) {
+		if (enabled) {
+			metrics.recordError(operation, System.nanoTime() - start, e);
+		}
+		return e;
+	}
+
+	private class MeasuredIterator<T> implements CloseableIterator<T> {
+		private final String operation;
+		private final long start;
+		private final CloseableIterator<T> iterator;
+		private int documents;
+		private boolean recorded;
+
+		MeasuredIterator(String operation, long start, CloseableIterator<T> iterator) {
+			this.operation = operation;
+			this.start = start;
+			this.iterator = iterator;
+		}
+
+		public boolean hasNext() {
+			try {
+				if (iterator.hasNext()) {
+					return true;
+				}
+			} catch (RuntimeException e) {
+				throw failed(e);
+			}
+			done();
+			return false;
+		}
+
+		public T next() {
+			try {
+				T next = iterator.next();
+				documents++;
+				return next;
+			} catch (RuntimeException e) {
+				throw failed(e);
+			}
+		}
+
+		public void remove() {
+			iterator.remove();
+		}
+
+		public void close() {
+			try {
+				iterator.close();
+			} finally {
+				done();
+			}
+		}
+
+		private void done() {
+			if (!recorded) {
+				recorded = true;
+				record(operation, start, documents);
+			}
+		}
+
+		private RuntimeException failed(RuntimeException e) {
+			if (!recorded) {
+				recorded = true;
+				error(operation, start, e);
+			}
+			return e;
+		}
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.config.MeterFilter;
+import io.micrometer.core.instrument.distribution.DistributionStatisticConfig;
+
+/**
+ * Connection metrics published to a Micrometer registry; Micrometer is an
+ * optional dependency, needed only by this class.
+ * <p>
+ * The meters are:
+ * <ul>
+ * <li>{@code social.connections.operations}, a timer tagged with the {@code operation}
+ * and its {@code outcome}, {@code success} or {@code error};</li>
+ * <li>{@code social.connections.documents}, a summary of the documents returned or
+ * written, tagged with the {@code operation};</li>
+ * <li>{@code social.connections.errors}, a counter tagged with the {@code operation}
+ * and the simple name of the {@code exception}, {@code DuplicateKeyException} for
+ * the unique index violations;</li>
+ * <li>{@code social.connections.decrypt}, a timer of the token decryptions.</li>
+ * </ul>
+ * The timers publish a percentile histogram, so that the latency percentiles can be
+ * computed by the monitoring system across instances; client side percentiles and
+ * SLA buckets can be added on the registry, with a {@code MeterFilter}.
+ *
+ * @author Carlo P. Micieli
+ */
+public class MicrometerConnectionMetrics implements ConnectionMetrics {
+
+	private static final String PREFIX = "social.connections.";
+
+	private final MeterRegistry registry;
+	private final Timer decryptTimer;
+
+	// the meters by operation, to save the registry lookup on every call
+	private final ConcurrentMap<String, Timer> successTimers = new ConcurrentHashMap<String, Timer>();
+	private final ConcurrentMap<String, Timer> errorTimers = new ConcurrentHashMap<String, Timer>();
+	private final ConcurrentMap<String, DistributionSummary> documentSummaries =
+			new ConcurrentHashMap<String, DistributionSummary>();
+	private final ConcurrentMap<List<String>, Counter> errorCounters = new ConcurrentHashMap<List<String>, Counter>();
+
+	public MicrometerConnectionMetrics(MeterRegistry registry) {
+		this.registry = registry;
+		// the histograms are asked for by a filter, as Timer.builder is a static
+		// interface method that the Java 6 sources cannot call
+		registry.config().meterFilter(new MeterFilter() {
+			public DistributionStatisticConfig configure(Meter.Id id, DistributionStatisticConfig config) {
+				if (id.getType() == Meter.Type.TIMER && id.getName().startsWith(PREFIX)) {
+					return DistributionStatisticConfig.builder().percentilesHistogram(true).build().merge(config);
+				}
+				return config;
+			}
+		});
+		this.decryptTimer = registry.timer("social.connections.decrypt");
+	}
+
+	public void recordOperation(String operation, long elapsedNanos, int documents) {
+		Timer timer = successTimers.get(operation);
+		if (timer == null) {
+			timer = registry.timer("social.connections.operations", "operation", operation, "outcome", "success");
+			successTimers.put(operation, timer);
+		}
+		timer.record(elapsedNanos, TimeUnit.NANOSECONDS);
+
+		DistributionSummary summary = documentSummaries.get(operation);
+		if (summary == null) {
+			summary = registry.summary("social.connections.documents", "operation", operation);
+			documentSummaries.put(operation, summary);
+		}
+		summary.record(documents);
+	}
+
+	public void recordError(String operation, long elapsedNanos, RuntimeException error) {
+		Timer timer = errorTimers.get(operation);
+		if (timer == null) {
+			timer = registry.timer("social.connections.operations", "operation", operation, "outcome", "error");
+			errorTimers.put(operation, timer);
+		}
+		timer.record(elapsedNanos, TimeUnit.NANOSECONDS);
+
+		String exception = error.getClass().getSimpleName();
+		List<String> key = Arrays.asList(operation, exception);
+		Counter counter = errorCounters.get(key);
+		if (counter == null) {
+			counter = registry.counter("social.connections.errors", "operation", operation, "exception", exception);
+			errorCounters.put(key, counter);
+		}
+		counter.increment(1);
+	}
+
+	public void recordDecrypt(long elapsedNanos) {
+		decryptTimer.record(elapsedNanos, TimeUnit.NANOSECONDS);
+	}
+}
@@ -25,13 +25,17 @@ import org.springframework.data.mongodb.core.mapping.Document;
 
 /**
  * The Mongodb collection for the spring social connections.
+ * <p>
+ * The {@code connections_provider_user_idx} index covers the reverse lookups
+ * from a provider user to the local user ids.
  * 
  * @author Carlo P. Micieli
  */
 @Document(collection = "connections")
 @CompoundIndexes({
 	@CompoundIndex(name = "connections_rank_idx", def = "{'userId': 1, 'providerId': 1, 'rank': 1}", unique = true),
-	@CompoundIndex(name = "connections_primary_idx", def = "{'userId': 1, 'providerId': 1, 'providerUserId': 1}", unique = true)
+	@CompoundIndex(name = "connections_primary_idx", def = "{'userId': 1, 'providerId': 1, 'providerUserId': 1}", unique = true),
+	@CompoundIndex(name = "connections_provider_user_idx", def = "{'providerId': 1, 'providerUserId': 1, 'userId': 1}")
 })
 public class MongoConnection {
 	@Id
@@ -57,11 +61,17 @@ public class MongoConnection {
 	String secret;
 	String refreshToken;
 	Long expireTime;
+	// the key the tokens are encrypted with, null for the default one
+	String keyId;
 	
 	public ObjectId getId() {
 		return id;
 	}
 	
+	void setId(ObjectId id) {
+		this.id = id;
+	}
+	
 	public String getUserId() {
 		return userId;
 	}
@@ -148,4 +158,12 @@ public class MongoConnection {
 	public void setExpireTime(Long expireTime) {
 		this.expireTime = expireTime;
 	}
+	
+	public String getKeyId() {
+		return keyId;
+	}
+	
+	public void setKeyId(String keyId) {
+		this.keyId = keyId;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.springframework.core.convert.converter.Converter;
+import org.springframework.data.convert.ReadingConverter;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Reads and writes the {@link MongoConnection} documents field by field,
+ * without the reflection and type information of the mapping converter.
+ * <p>
+ * Missing fields are left unset, so documents read with a projection only
+ * carry the fields asked for. {@link MongoConnectionService} uses the codec for
+ * all its connection documents; the reading side can be registered with a
+ * {@code MongoTemplate} too, through {@link #getConvertersToRegister()}:
+ * <pre>
+ * converter.setCustomConversions(new CustomConversions(MongoConnectionCodec.getConvertersToRegister()));
+ * </pre>
+ * There is no writing converter to register, as the mapping context would
+ * then take {@code MongoConnection} for a simple type and no longer see its
+ * collection and indexes.
+ * <p>
+ * The tokens may be written as binary: a token made of lower case hex digits, as
+ * written by the Spring Security text encryptors, is then stored as the bytes
+ * it encodes, in half the space. Any other token is stored as a string. Both
+ * forms are read back as the token string, so documents written either way can
+ * be mixed in the collection.
+ *
+ * @author Carlo P. Micieli
+ */
+public final class MongoConnectionCodec {
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private MongoConnectionCodec() {
+	}
+
+	/**
+	 * Returns the converters to register with the {@code MongoTemplate} converter.
+	 */
+	public static List<?> getConvertersToRegister() {
+		return Collections.singletonList(MongoConnectionReadConverter.INSTANCE);
+	}
+
+	/**
+	 * Reads the connection from a document, leaving unset the fields it lacks.
+	 */
+	public static MongoConnection read(DBObject dbo) {
+		MongoConnection mc = new MongoConnection();
+		mc.setId((ObjectId) dbo.get("_id"));
+		mc.setUserId((String) dbo.get("userId"));
+		mc.setProviderId((String) dbo.get("providerId"));
+		mc.setProviderUserId((String) dbo.get("providerUserId"));
+		Object rank = dbo.get("rank");
+		if (rank != null) {
+			mc.setRank(((Number) rank).intValue());
+		}
+		mc.setDisplayName((String) dbo.get("displayName"));
+		mc.setProfileUrl((String) dbo.get("profileUrl"));
+		mc.setImageUrl((String) dbo.get("imageUrl"));
+		mc.setAccessToken(readToken(dbo.get("accessToken")));
+		mc.setSecret(readToken(dbo.get("secret")));
+		mc.setRefreshToken(readToken(dbo.get("refreshToken")));
+		Object expireTime = dbo.get("expireTime");
+		if (expireTime != null) {
+			mc.setExpireTime(((Number) expireTime).longValue());
+		}
+		mc.setKeyId((String) dbo.get("keyId"));
+		return mc;
+	}
+
+	/**
+	 * Writes the connection into a new document, skipping the {@code null} fields
+	 * as the mapping converter does.
+	 */
+	public static DBObject write(MongoConnection mc) {
+		return write(mc, false);
+	}
+
+	/**
+	 * Writes the connection into a new document, with the hex encoded tokens as
+	 * binary if asked.
+	 */
+	public static DBObject write(MongoConnection mc, boolean binaryTokens) {
+		BasicDBObject dbo = new BasicDBObject();
+		put(dbo, "_id", mc.getId());
+		put(dbo, "userId", mc.getUserId());
+		put(dbo, "providerId", mc.getProviderId());
+		put(dbo, "providerUserId", mc.getProviderUserId());
+		dbo.put("rank", mc.getRank());
+		put(dbo, "displayName", mc.getDisplayName());
+		put(dbo, "profileUrl", mc.getProfileUrl());
+		put(dbo, "imageUrl", mc.getImageUrl());
+		put(dbo, "accessToken", writeToken(mc.getAccessToken(), binaryTokens));
+		put(dbo, "secret", writeToken(mc.getSecret(), binaryTokens));
+		put(dbo, "refreshToken", writeToken(mc.getRefreshToken(), binaryTokens));
+		put(dbo, "expireTime", mc.getExpireTime());
+		put(dbo, "keyId", mc.getKeyId());
+		return dbo;
+	}
+
+	/**
+	 * Returns the token as stored: the bytes of a lower case hex token when binary,
+	 * otherwise the token itself.
+	 */
+	static Object writeToken(String token, boolean binary) {
+		if (!binary || token == null || !isHex(token)) {
+			return token;
+		}
+		byte[] bytes = new byte[token.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) (Character.digit(token.charAt(2 * i), 16) << 4 | Character.digit(token.charAt(2 * i + 1), 16));
+		}
+		return bytes;
+	}
+
+	/**
+	 * Returns the token of a field stored either as a string or as binary.
+	 */
+	static String readToken(Object value) {
+		if (value instanceof Binary) {
+			value = ((Binary) value).getData();
+		}
+		if (!(value instanceof byte[])) {
+			return (String) value;
+		}
+		byte[] bytes = (byte[]) value;
+		char[] hex = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			hex[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+			hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+		}
+		return new String(hex);
+	}
+
+	// written back identically from its bytes
+	private static boolean isHex(String token) {
+		if (token.length() == 0 || token.length() % 2 != 0) {
+			return false;
+		}
+		for (int i = 0; i < token.length(); i++) {
+			char c = token.charAt(i);
+			if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void put(DBObject dbo, String key, Object value) {
+		if (value != null) {
+			dbo.put(key, value);
+		}
+	}
+
+	@ReadingConverter
+	public static enum MongoConnectionReadConverter implements Converter<DBObject, MongoConnection> {
+		INSTANCE;
+
+		public MongoConnection convert(DBObject source) {
+			return read(source);
+		}
+	}
+}
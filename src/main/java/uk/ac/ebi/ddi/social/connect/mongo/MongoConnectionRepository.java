@@ -17,15 +17,20 @@ package uk.ac.ebi.ddi.social.connect.mongo;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
 
+import org.springframework.dao.DataAccessResourceFailureException;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.security.crypto.encrypt.TextEncryptor;
 import org.springframework.social.connect.Connection;
-import org.springframework.social.connect.ConnectionData;
 import org.springframework.social.connect.ConnectionFactoryLocator;
 import org.springframework.social.connect.ConnectionKey;
 import org.springframework.social.connect.ConnectionRepository;
@@ -34,7 +39,22 @@ import org.springframework.social.connect.NoSuchConnectionException;
 import org.springframework.social.connect.NotConnectedException;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
+import org.springframework.util.concurrent.ListenableFuture;
 
+/**
+ * The connections of a single user.
+ * <p>
+ * In snapshot mode all the connections of the user are loaded with a single query
+ * the first time they are needed and every read is answered from them. Updates and
+ * removals made through this repository are applied to the snapshot as well, an
+ * updated connection being returned as it was given rather than converted again,
+ * while a new connection drops it, to be loaded again with its rank on the next read.
+ * Changes made elsewhere are not seen, so the repository should not outlive the
+ * request it was created for.
+ * <p>
+ * Given an {@link AsyncConnectionService}, the repository loads the connections of
+ * all the providers with one concurrent query per provider.
+ */
 class MongoConnectionRepository implements ConnectionRepository {
 
 	private final String userId;
@@ -45,16 +65,52 @@ class MongoConnectionRepository implements ConnectionRepository {
 
 	//private final TextEncryptor textEncryptor;
 
+	// set in snapshot mode only
+	private final ConnectionConverter converter;
+	
+	// the connections of the user in provider and rank order, null until loaded
+	private List<MongoConnection> snapshot;
+
+	// the connections of the snapshot updated through this repository
+	private final Map<ConnectionKey, Connection<?>> updatedConnections = new HashMap<ConnectionKey, Connection<?>>();
+
+	// wrapping the connection service, null to load all the connections with one query
+	private AsyncConnectionService asyncService;
+
 	public MongoConnectionRepository(String userId, 
 		ConnectionService connectionService, 
 		ConnectionFactoryLocator connectionFactoryLocator,
 		TextEncryptor textEncryptor) {
 		
+		this(userId, connectionService, connectionFactoryLocator, (ConnectionConverter) null, false);
+	}
+
+	/**
+	 * Creates the repository; in snapshot mode the documents of the snapshot are
+	 * converted by the given converter, which must be the one of the connection
+	 * service for the tokens to be decrypted with the keys they were written with.
+	 */
+	public MongoConnectionRepository(String userId, 
+		ConnectionService connectionService, 
+		ConnectionFactoryLocator connectionFactoryLocator,
+		ConnectionConverter converter,
+		boolean snapshotMode) {
+		
 		this.userId = userId;
 		this.connService = connectionService;
 		this.connectionFactoryLocator = connectionFactoryLocator;
 		//this.textEncryptor = textEncryptor;
 		//this.connectionMapper = new ConnectionMapper(connectionFactoryLocator, textEncryptor);
+		this.converter = snapshotMode ? converter : null;
+	}
+
+	/**
+	 * Sets the service loading the connections of each provider concurrently in
+	 * {@link #findAllConnections()}; it must wrap the connection service of this
+	 * repository.
+	 */
+	void setAsyncService(AsyncConnectionService asyncService) {
+		this.asyncService = asyncService;
 	}
 
 //	private String encrypt(String text) {
@@ -67,13 +123,11 @@ class MongoConnectionRepository implements ConnectionRepository {
 	@Override
 	public void addConnection(Connection<?> connection) {
 		try {
-			ConnectionData data = connection.createData();
-			
-			int rank = connService.getMaxRank(userId, data.getProviderId());
-			connService.create(userId, connection, rank);
-			
+			connService.create(userId, connection);
 		} catch (DuplicateKeyException e) {
 			throw new DuplicateConnectionException(connection.getKey());
+		} finally {
+			invalidateSnapshot();
 		}
 	}
 	
@@ -82,10 +136,17 @@ class MongoConnectionRepository implements ConnectionRepository {
 	 */
 	@Override
 	public MultiValueMap<String, Connection<?>> findAllConnections() {
-		List<Connection<?>> resultList = connService.getConnections(this.userId);
+		Set<String> registeredProviderIds = this.connectionFactoryLocator.registeredProviderIds();
+		List<Connection<?>> resultList;
+		if (isSnapshotMode()) {
+			resultList = convert(snapshot(), null);
+		} else if (asyncService != null && registeredProviderIds.size() > 1) {
+			resultList = findConnections(registeredProviderIds);
+		} else {
+			resultList = connService.getConnections(this.userId);
+		}
 		
 		MultiValueMap<String, Connection<?>> connections = new LinkedMultiValueMap<String, Connection<?>>();
-		Set<String> registeredProviderIds = this.connectionFactoryLocator.registeredProviderIds();
 		for (String registeredProviderId : registeredProviderIds) {
 			connections.put(registeredProviderId, Collections.<Connection<?>>emptyList());
 		}
@@ -115,6 +176,9 @@ class MongoConnectionRepository implements ConnectionRepository {
 	 */
 	@Override
 	public List<Connection<?>> findConnections(String providerId) {
+		if (isSnapshotMode()) {
+			return convert(snapshot(), providerId);
+		}
 		return connService.getConnections(this.userId, providerId);
 	}
 
@@ -127,22 +191,44 @@ class MongoConnectionRepository implements ConnectionRepository {
 			throw new IllegalArgumentException("Unable to execute find: no providerUsers provided");
 		}
 		
-		List<Connection<?>> resultList = connService.getConnections(userId, providerUsers);
+		// the position of each provider user id in its list, the first one for repeated ids
+		Map<String, Map<String, Integer>> positions = new HashMap<String, Map<String, Integer>>(providerUsers.size());
+		for (Entry<String, List<String>> entry : providerUsers.entrySet()) {
+			// iterated, as the lists of a LinkedMultiValueMap are linked ones
+			Map<String, Integer> providerPositions = new HashMap<String, Integer>(entry.getValue().size() * 4 / 3 + 1);
+			int position = 0;
+			for (String providerUserId : entry.getValue()) {
+				if (!providerPositions.containsKey(providerUserId)) {
+					providerPositions.put(providerUserId, position);
+				}
+				position++;
+			}
+			positions.put(entry.getKey(), providerPositions);
+		}
+		
+		List<Connection<?>> resultList;
+		if (isSnapshotMode()) {
+			resultList = new ArrayList<Connection<?>>();
+			for (MongoConnection mc : snapshot()) {
+				Map<String, Integer> providerPositions = positions.get(mc.getProviderId());
+				if (providerPositions != null && providerPositions.containsKey(mc.getProviderUserId())) {
+					resultList.add(toConnection(mc));
+				}
+			}
+		} else {
+			resultList = connService.getConnections(userId, providerUsers);
+		}
 		
 		MultiValueMap<String, Connection<?>> connectionsForUsers = new LinkedMultiValueMap<String, Connection<?>>();
 		for (Connection<?> connection : resultList) {
 			String providerId = connection.getKey().getProviderId();
-			List<String> userIds = providerUsers.get(providerId);
 			List<Connection<?>> connections = connectionsForUsers.get(providerId);
 			if (connections == null) {
-				connections = new ArrayList<Connection<?>>(userIds.size());
-				for (int i = 0; i < userIds.size(); i++) {
-					connections.add(null);
-				}
+				connections = new ArrayList<Connection<?>>(Collections.<Connection<?>>nCopies(
+						providerUsers.get(providerId).size(), null));
 				connectionsForUsers.put(providerId, connections);
 			}
-			String providerUserId = connection.getKey().getProviderUserId();
-			int connectionIndex = userIds.indexOf(providerUserId);
+			int connectionIndex = positions.get(providerId).get(connection.getKey().getProviderUserId());
 			connections.set(connectionIndex, connection);
 		}
 		return connectionsForUsers;
@@ -153,6 +239,14 @@ class MongoConnectionRepository implements ConnectionRepository {
 	 */
 	@Override
 	public Connection<?> getConnection(ConnectionKey connectionKey) {
+		if (isSnapshotMode()) {
+			for (MongoConnection mc : snapshot()) {
+				if (matches(mc, connectionKey)) {
+					return toConnection(mc);
+				}
+			}
+			return null;
+		}
 		try {
 			return connService.getConnection(userId, 
 				connectionKey.getProviderId(), 
@@ -201,7 +295,24 @@ class MongoConnectionRepository implements ConnectionRepository {
 	 */
 	@Override
 	public void updateConnection(Connection<?> connection) {
-		connService.update(userId, connection);
+		try {
+			connService.update(userId, connection);
+		} catch (RuntimeException e) {
+			invalidateSnapshot();
+			throw e;
+		}
+		
+		if (snapshot != null) {
+			// key and rank are unchanged, the document stays to keep its place
+			for (MongoConnection mc : snapshot) {
+				if (matches(mc, connection.getKey())) {
+					updatedConnections.put(connection.getKey(), connection);
+					return;
+				}
+			}
+			// upserted
+			invalidateSnapshot();
+		}
 	}
 
 	/**
@@ -209,7 +320,22 @@ class MongoConnectionRepository implements ConnectionRepository {
 	 */
 	@Override
 	public void removeConnections(String providerId) {
-		connService.remove(userId, providerId);
+		try {
+			connService.remove(userId, providerId);
+		} catch (RuntimeException e) {
+			invalidateSnapshot();
+			throw e;
+		}
+		
+		if (snapshot != null) {
+			for (Iterator<MongoConnection> it = snapshot.iterator(); it.hasNext(); ) {
+				MongoConnection mc = it.next();
+				if (providerId.equals(mc.getProviderId())) {
+					updatedConnections.remove(new ConnectionKey(mc.getProviderId(), mc.getProviderUserId()));
+					it.remove();
+				}
+			}
+		}
 	}
 
 	/**
@@ -217,7 +343,21 @@ class MongoConnectionRepository implements ConnectionRepository {
 	 */
 	@Override
 	public void removeConnection(ConnectionKey connectionKey) {
-		connService.remove(userId, connectionKey);
+		try {
+			connService.remove(userId, connectionKey);
+		} catch (RuntimeException e) {
+			invalidateSnapshot();
+			throw e;
+		}
+		
+		if (snapshot != null) {
+			for (Iterator<MongoConnection> it = snapshot.iterator(); it.hasNext(); ) {
+				if (matches(it.next(), connectionKey)) {
+					it.remove();
+				}
+			}
+			updatedConnections.remove(connectionKey);
+		}
 	}
 
 	// helper methods
@@ -226,8 +366,85 @@ class MongoConnectionRepository implements ConnectionRepository {
 		return connectionFactoryLocator.getConnectionFactory(apiType).getProviderId();
 	}
 
+	// the connections to each provider, loaded concurrently
+	private List<Connection<?>> findConnections(Set<String> providerIds) {
+		List<ListenableFuture<List<Connection<?>>>> futures =
+				new ArrayList<ListenableFuture<List<Connection<?>>>>(providerIds.size());
+		try {
+			for (String providerId : providerIds) {
+				futures.add(asyncService.getConnections(userId, providerId));
+			}
+			List<Connection<?>> connections = new ArrayList<Connection<?>>();
+			for (ListenableFuture<List<Connection<?>>> future : futures) {
+				connections.addAll(future.get());
+			}
+			return connections;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DataAccessResourceFailureException("Interrupted while loading the connections of " + userId, e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw new DataAccessResourceFailureException("Unable to load the connections of " + userId, e.getCause());
+		} finally {
+			for (ListenableFuture<?> future : futures) {
+				future.cancel(true);
+			}
+		}
+	}
+
 	private Connection<?> findPrimaryConnection(String providerId) {
+		if (isSnapshotMode()) {
+			for (MongoConnection mc : snapshot()) {
+				if (providerId.equals(mc.getProviderId()) && mc.getRank() == 1) {
+					return toConnection(mc);
+				}
+			}
+			return null;
+		}
 		// where userId = ? and providerId = ? and rank = 1
 		return connService.getPrimaryConnection(userId, providerId);
 	}
+	
+	private boolean isSnapshotMode() {
+		return converter != null;
+	}
+	
+	private List<MongoConnection> snapshot() {
+		if (snapshot == null) {
+			snapshot = new ArrayList<MongoConnection>(connService.getMongoConnections(userId));
+		}
+		return snapshot;
+	}
+	
+	private void invalidateSnapshot() {
+		snapshot = null;
+		updatedConnections.clear();
+	}
+	
+	private Connection<?> toConnection(MongoConnection mc) {
+		Connection<?> updated = updatedConnections.isEmpty() ? null
+				: updatedConnections.get(new ConnectionKey(mc.getProviderId(), mc.getProviderUserId()));
+		return updated != null ? updated : converter.convert(mc);
+	}
+	
+	// the connections in the snapshot, of a provider or all of them
+	private List<Connection<?>> convert(List<MongoConnection> connections, String providerId) {
+		List<Connection<?>> l = new ArrayList<Connection<?>>();
+		for (MongoConnection mc : connections) {
+			if (providerId == null || providerId.equals(mc.getProviderId())) {
+				l.add(toConnection(mc));
+			}
+		}
+		return l;
+	}
+	
+	private static boolean matches(MongoConnection mc, ConnectionKey key) {
+		return key.getProviderId().equals(mc.getProviderId()) &&
+				key.getProviderUserId().equals(mc.getProviderUserId());
+	}
 }
\ No newline at end of file
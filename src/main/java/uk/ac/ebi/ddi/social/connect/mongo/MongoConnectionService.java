@@ -15,23 +15,54 @@
  */
 package uk.ac.ebi.ddi.social.connect.mongo;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.query.*;
+import org.springframework.data.util.CloseableIterator;
 import org.springframework.social.connect.Connection;
 import org.springframework.social.connect.ConnectionKey;
 import org.springframework.util.MultiValueMap;
+import org.springframework.dao.DataAccessResourceFailureException;
 import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.CollectionCallback;
+import org.springframework.data.mongodb.core.MongoAction;
+import org.springframework.data.mongodb.core.MongoActionOperation;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.util.ReflectionUtils;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteResult;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.ReadPreference;
 import com.mongodb.WriteConcern;
 
 import static org.springframework.data.mongodb.core.query.Query.query;
@@ -39,20 +70,103 @@ import static org.springframework.data.mongodb.core.query.Criteria.*;
 
 /**
  * A service for the spring connections management using Mongodb.
+ * <p>
+ * Each operation runs with the write concern, read preference and time limit
+ * configured for it in the {@link ConnectionOperationPolicy}; the writes without a write
+ * concern of their own use the one configured on the {@code MongoTemplate}. The connection documents
+ * are read and written by the {@link MongoConnectionCodec}.
  *
  * @author Carlo P. Micieli
  */
 @Service
 public class MongoConnectionService implements ConnectionService {
 
+	private static final String RANK_INDEX = "connections_rank_idx";
+	private static final String PROVIDER_USER_INDEX = "connections_provider_user_idx";
+	private static final int RANK_ALLOCATION_ATTEMPTS = 3;
+	private static final int DEFAULT_REVERSE_LOOKUP_CHUNK_SIZE = 1000;
+	private static final int IMPORT_SLICE_SIZE = 500;
+	private static final int DUPLICATE_KEY = 11000;
+	private static final int DUPLICATE_KEY_ON_UPDATE = 11001;
+	
+	// the template exposes neither its write concern nor the one it resolves for an action
+	private static final Field TEMPLATE_WRITE_CONCERN =
+			ReflectionUtils.findField(MongoTemplate.class, "writeConcern");
+	private static final Method PREPARE_WRITE_CONCERN =
+			ReflectionUtils.findMethod(MongoTemplate.class, "prepareWriteConcern", MongoAction.class);
+	
+	static {
+		ReflectionUtils.makeAccessible(TEMPLATE_WRITE_CONCERN);
+		ReflectionUtils.makeAccessible(PREPARE_WRITE_CONCERN);
+	}
+
 	private final MongoTemplate mongoTemplate;
 	private final ConnectionConverter converter;
 	
+	private ConnectionOperationPolicy operationPolicy = new ConnectionOperationPolicy();
+	
+	private int reverseLookupChunkSize = DEFAULT_REVERSE_LOOKUP_CHUNK_SIZE;
+	private ExecutorService reverseLookupExecutor;
+	private ExecutorService importExecutor;
+	private SlowQueryLog slowQueryLog;
+	private boolean binaryTokens;
+	
 	@Autowired
 	public MongoConnectionService(MongoTemplate mongoTemplate, ConnectionConverter converter) {
 		this.mongoTemplate = mongoTemplate;
 		this.converter = converter;
 	}
+	
+	public void setOperationPolicy(ConnectionOperationPolicy operationPolicy) {
+		this.operationPolicy = operationPolicy;
+	}
+	
+	/**
+	 * Sets the max number of provider user ids sent in a single query
+	 * by {@link #getUserIds(String, Set)}; larger sets are split in chunks.
+	 */
+	public void setReverseLookupChunkSize(int reverseLookupChunkSize) {
+		if (reverseLookupChunkSize < 1) {
+			throw new IllegalArgumentException("reverseLookupChunkSize must be positive");
+		}
+		this.reverseLookupChunkSize = reverseLookupChunkSize;
+	}
+	
+	/**
+	 * Sets the executor running the chunks of {@link #getUserIds(String, Set)}, and the
+	 * per provider queries of {@link #getConnections(String, MultiValueMap)}, concurrently.
+	 * Without an executor they are run one after the other on the calling thread, as are
+	 * the ones the executor rejects.
+	 */
+	public void setReverseLookupExecutor(ExecutorService reverseLookupExecutor) {
+		this.reverseLookupExecutor = reverseLookupExecutor;
+	}
+	
+	/**
+	 * Sets the executor encrypting the connections of {@link #importConnections(List)}
+	 * concurrently, in slices of {@value #IMPORT_SLICE_SIZE}. Without an executor they
+	 * are encrypted on the calling thread, as are the slices the executor rejects.
+	 */
+	public void setImportExecutor(ExecutorService importExecutor) {
+		this.importExecutor = importExecutor;
+	}
+	
+	/**
+	 * Sets the log of the lookups slower than its threshold; none by default.
+	 */
+	public void setSlowQueryLog(SlowQueryLog slowQueryLog) {
+		this.slowQueryLog = slowQueryLog;
+	}
+	
+	/**
+	 * Sets whether the tokens encrypted by a hex encoding text encryptor are written
+	 * as binary, in half the space; see {@link MongoConnectionCodec}. The tokens are
+	 * read back either way, and {@link BinaryTokenConverter} converts the documents
+	 * already written.
+	 */
+	public void setBinaryTokens(boolean binaryTokens) {
+		this.binaryTokens = binaryTokens;
+	}
 		
 	/**
 	 * Returns the max connection rank for the user and the provider.
@@ -65,7 +179,7 @@ public class MongoConnectionService implements ConnectionService {
 		Query q = query(where("userId").is(userId).and("providerId").is(providerId));
 		//q.sort().on("rank", Order.DESCENDING);
 		Sort sort = new Sort(Sort.Direction.DESC, "rank");
-		MongoConnection cnn = mongoTemplate.findOne(q.with(sort), MongoConnection.class);
+		MongoConnection cnn = findOne(ConnectionOperation.PRIMARY_LOOKUP, q.with(sort), MongoConnection.class);
 		
 		if (cnn==null)
 			return 1;
@@ -73,6 +187,34 @@ public class MongoConnectionService implements ConnectionService {
 		return cnn.getRank() + 1;
 	}
 	
+	/**
+	 * Create a new connection for the user, with the next rank available on the provider.
+	 * <p>
+	 * The rank is taken from a per user and provider counter in a single atomic
+	 * round trip, so concurrent connections do not race on the same rank. Should the
+	 * counter be behind the connections (for instance for documents written before
+	 * it existed) it is moved forward to the current max rank and the insert retried.
+	 * 
+	 * @see ConnectionService#create(java.lang.String, org.springframework.social.connect.Connection)
+	 */
+	@Override
+	public void create(String userId, Connection<?> userConn) {
+		MongoConnection mongoCnn = converter.convert(userConn);
+		mongoCnn.setUserId(userId);
+		for (int attempt = 1; ; attempt++) {
+			mongoCnn.setRank(nextRank(userId, mongoCnn.getProviderId()));
+			try {
+				insert(ConnectionOperation.CREATE, mongoCnn);
+				return;
+			} catch (DuplicateKeyException e) {
+				if (attempt >= RANK_ALLOCATION_ATTEMPTS || !isRankCollision(e)) {
+					throw e;
+				}
+				syncRank(userId, mongoCnn.getProviderId());
+			}
+		}
+	}
+	
 	/**
 	 * Create a new connection for the user.
 	 * 
@@ -83,37 +225,165 @@ public class MongoConnectionService implements ConnectionService {
 		MongoConnection mongoCnn = converter.convert(userConn);
 		mongoCnn.setUserId(userId);
 		mongoCnn.setRank(rank);
-		mongoTemplate.insert(mongoCnn);
+		insert(ConnectionOperation.CREATE, mongoCnn);
+	}
+	
+	/**
+	 * Import a batch of connections with a single unordered bulk insert.
+	 * <p>
+	 * The ranks are handed out in memory, in the order the connections are given, after
+	 * the rank counter of each user and provider or, without a counter, after its stored
+	 * connections; both are read for the whole batch with one query each. The counters
+	 * are then moved past the ranks handed out with a single unordered bulk write, before
+	 * the insert. The connections given a rank a concurrent {@link #create(String, Connection)}
+	 * took meanwhile are ranked again from their counters and inserted once more. The
+	 * connections violating a unique index are reported as duplicates while the rest of
+	 * the batch is written.
+	 * 
+	 * @see ConnectionService#importConnections(java.util.List)
+	 */
+	@Override
+	public ConnectionImportResult importConnections(List<UserConnection> connections) {
+		if (connections.isEmpty()) {
+			return new ConnectionImportResult(0, new ArrayList<UserConnection>());
+		}
+		
+		MongoConnection[] documents = encrypt(connections);
+		rankAndReserve(groupByUserAndProvider(Arrays.asList(documents)));
+		
+		List<Integer> duplicateIndexes = new ArrayList<Integer>();
+		List<Integer> collisions = new ArrayList<Integer>();
+		int imported = bulkInsert(ConnectionOperation.CREATE, Arrays.asList(documents), duplicateIndexes, collisions);
+		
+		for (int attempt = 2; !collisions.isEmpty(); attempt++) {
+			if (attempt > RANK_ALLOCATION_ATTEMPTS) {
+				duplicateIndexes.addAll(collisions);
+				break;
+			}
+			List<MongoConnection> retried = new ArrayList<MongoConnection>(collisions.size());
+			for (int index : collisions) {
+				retried.add(documents[index]);
+			}
+			for (Entry<List<String>, List<MongoConnection>> group : groupByUserAndProvider(retried).entrySet()) {
+				List<MongoConnection> ranked = group.getValue();
+				int rank = reserveRanks(group.getKey().get(0), group.getKey().get(1), ranked.size()) - ranked.size();
+				for (MongoConnection mc : ranked) {
+					mc.setRank(++rank);
+				}
+			}
+			
+			List<Integer> retriedDuplicates = new ArrayList<Integer>();
+			List<Integer> retriedCollisions = new ArrayList<Integer>();
+			imported += bulkInsert(ConnectionOperation.CREATE, retried, retriedDuplicates, retriedCollisions);
+			for (int index : retriedDuplicates) {
+				duplicateIndexes.add(collisions.get(index));
+			}
+			List<Integer> next = new ArrayList<Integer>(retriedCollisions.size());
+			for (int index : retriedCollisions) {
+				next.add(collisions.get(index));
+			}
+			collisions = next;
+		}
+		Collections.sort(duplicateIndexes);
+		
+		List<UserConnection> duplicates = new ArrayList<UserConnection>(duplicateIndexes.size());
+		for (int index : duplicateIndexes) {
+			duplicates.add(connections.get(index));
+		}
+		return new ConnectionImportResult(imported, duplicates);
+	}
+	
+	/**
+	 * Insert connection documents as they are, ranks and tokens included, with a single
+	 * unordered bulk insert. The documents violating a unique index are skipped, so
+	 * writing the same batch twice is harmless.
+	 * 
+	 * @return the number of documents inserted
+	 */
+	public int importMongoConnections(List<MongoConnection> connections) {
+		return importMongoConnections(connections, null);
+	}
+	
+	/**
+	 * Insert connection documents as {@link #importMongoConnections(List)} does, and tell
+	 * the skipped documents already stored apart from the ones colliding with another
+	 * connection: a different document with the same key, or another connection holding
+	 * the same rank. These are added to {@code rejected}, in the order they were given.
+	 * 
+	 * @return the number of documents inserted
+	 */
+	public int importMongoConnections(List<MongoConnection> connections, List<MongoConnection> rejected) {
+		if (connections.isEmpty()) {
+			return 0;
+		}
+		List<Integer> duplicateIndexes = new ArrayList<Integer>();
+		int imported = bulkInsert(ConnectionOperation.CREATE, connections, duplicateIndexes, null);
+		if (rejected != null && !duplicateIndexes.isEmpty()) {
+			List<MongoConnection> duplicates = new ArrayList<MongoConnection>(duplicateIndexes.size());
+			for (int index : duplicateIndexes) {
+				duplicates.add(connections.get(index));
+			}
+			rejected.addAll(notStored(duplicates));
+		}
+		return imported;
 	}
 	
 	/**
 	 * Update a connection.
+	 * <p>
+	 * A single upsert keyed by user, provider and provider user id, which is
+	 * the unique {@code connections_primary_idx} index.
 	 * 
 	 * @see ConnectionService#update(java.lang.String, org.springframework.social.connect.Connection)
 	 */
 	@Override
 	public void update(String userId, Connection<?> userConn) {
 		MongoConnection mongoCnn = converter.convert(userConn);
-		mongoCnn.setUserId(userId);
-		try {
-			mongoTemplate.setWriteConcern(WriteConcern.SAFE);
-			mongoTemplate.save(mongoCnn); 
-		} catch (DuplicateKeyException e) {
-			Query q = query(where("userId").is(userId).and("providerId").is(mongoCnn.getProviderId())
-					.and("providerUserId").is(mongoCnn.getProviderUserId()));
-			
-			Update update = Update.update("expireTime", mongoCnn.getExpireTime())
-					.set("accessToken", mongoCnn.getAccessToken())
-					.set("profileUrl", mongoCnn.getProfileUrl())
-					.set("imageUrl", mongoCnn.getImageUrl())
-					.set("displayName", mongoCnn.getDisplayName());
-			
-			mongoTemplate.findAndModify(q, update, MongoConnection.class);
+		update(ConnectionOperation.UPDATE, updateQuery(userId, mongoCnn), updateOf(mongoCnn), true,
+				MongoConnection.class);
+	}
+	
+	/**
+	 * Update a batch of connections with a single ordered bulk write, one upsert
+	 * per connection as {@link #update(String, Connection)} does.
+	 * 
+	 * @see ConnectionService#updateConnections(java.util.List)
+	 */
+	@Override
+	public void updateConnections(List<UserConnection> connections) {
+		if (connections.isEmpty()) {
+			return;
+		}
+		
+		final List<Query> queries = new ArrayList<Query>(connections.size());
+		final List<Update> updates = new ArrayList<Update>(connections.size());
+		for (UserConnection uc : connections) {
+			MongoConnection mongoCnn = converter.convert(uc.getConnection());
+			queries.add(updateQuery(uc.getUserId(), mongoCnn));
+			updates.add(updateOf(mongoCnn));
 		}
+		
+		mongoTemplate.execute(MongoConnection.class, new CollectionCallback<Void>() {
+			public Void doInCollection(DBCollection collection) {
+				BulkWriteOperation bulk = collection.initializeOrderedBulkOperation();
+				for (int i = 0; i < queries.size(); i++) {
+					bulk.find(queries.get(i).getQueryObject()).upsert()
+						.updateOne(updates.get(i).getUpdateObject());
+				}
+				bulk.execute(writeConcern(ConnectionOperation.UPDATE, MongoActionOperation.BULK, collection,
+						MongoConnection.class, null, null));
+				return null;
+			}
+		});
 	}
 	
 	/**
 	 * Remove a connection.
+	 * <p>
+	 * Once the last connection of the provider is gone its rank counter is dropped, so
+	 * that the next connection is the primary one again. The counter is read before the
+	 * removal and dropped only while it still holds that value: a concurrent create
+	 * which took a rank from it meanwhile keeps it.
 	 * 
 	 * @see ConnectionService#remove(java.lang.String, org.springframework.social.connect.ConnectionKey)
 	 */
@@ -123,7 +393,16 @@ public class MongoConnectionService implements ConnectionService {
 		Query q = query(where("userId").is(userId)
 				.and("providerId").is(connectionKey.getProviderId())
 				.and("providerUserId").is(connectionKey.getProviderUserId()));
-		mongoTemplate.remove(q, MongoConnection.class);		
+		Query rq = query(where("userId").is(userId)
+				.and("providerId").is(connectionKey.getProviderId()));
+		Integer rank = currentRank(rq);
+		remove(ConnectionOperation.REMOVE, q, MongoConnection.class);
+		
+		if (rank != null && !exists(rq, MongoConnection.class)) {
+			remove(ConnectionOperation.REMOVE, query(where("userId").is(userId)
+					.and("providerId").is(connectionKey.getProviderId())
+					.and("rank").is(rank)), MongoConnectionRank.class);
+		}
 	}
 	
 	/**
@@ -137,7 +416,8 @@ public class MongoConnectionService implements ConnectionService {
 		Query q = query(where("userId").is(userId)
 				.and("providerId").is(providerId));
 				
-		mongoTemplate.remove(q, MongoConnection.class);
+		remove(ConnectionOperation.REMOVE, q, MongoConnection.class);
+		remove(ConnectionOperation.REMOVE, q, MongoConnectionRank.class);
 	}
 	
 	/**
@@ -152,7 +432,7 @@ public class MongoConnectionService implements ConnectionService {
 				and("providerId").is(providerId).
 				and("rank").is(1));
 		
-		MongoConnection mc = mongoTemplate.findOne(q, MongoConnection.class);
+		MongoConnection mc = findOne(ConnectionOperation.PRIMARY_LOOKUP, q, MongoConnection.class);
 		return converter.convert(mc);
 	}
 	
@@ -168,7 +448,7 @@ public class MongoConnectionService implements ConnectionService {
 				.and("providerId").is(providerId)
 				.and("providerUserId").is(providerUserId));
 					
-		MongoConnection mc = mongoTemplate.findOne(q, MongoConnection.class);
+		MongoConnection mc = findOne(ConnectionOperation.PRIMARY_LOOKUP, q, MongoConnection.class);
 		return converter.convert(mc);
 	}
 	
@@ -179,12 +459,28 @@ public class MongoConnectionService implements ConnectionService {
 	 */
 	@Override
 	public List<Connection<?>> getConnections(String userId) {
+		List<MongoConnection> results = getMongoConnections(userId);
+		List<Connection<?>> l = new ArrayList<Connection<?>>(results.size());
+		for (MongoConnection mc : results) {
+			l.add(converter.convert(mc));
+		}
+
+		return l;
+	}
+
+	/**
+	 * Get all the connection documents for an user id, with the tokens still encrypted.
+	 *
+	 * @see ConnectionService#getMongoConnections(java.lang.String)
+	 */
+	@Override
+	public List<MongoConnection> getMongoConnections(String userId) {
 		// select where userId = ? order by providerId, rank
 		Query q = query(where("userId").is(userId));
 		Sort sort = new Sort(Sort.Direction.ASC, "providerId");
 		Sort sort2 = new Sort(Sort.Direction.ASC, "rank");
 		//q.sort().on("providerId", Order.ASCENDING).on("rank", Order.ASCENDING);
-		return runQuery(q.with(sort).with(sort2));
+		return find(ConnectionOperation.PRIMARY_LOOKUP, q.with(sort).with(sort2), MongoConnection.class);
 	}
 	
 	/**
@@ -202,54 +498,69 @@ public class MongoConnectionService implements ConnectionService {
 	}
 	
 	/**
-	 * Get all the connections for an user.
+	 * Get the connections of an user to the given provider users.
+	 * <p>
+	 * One query per provider, with the provider user ids in a single {@code $in},
+	 * run concurrently on the reverse lookup executor when there are several providers.
 	 * 
 	 * @see ConnectionService#getConnections(java.lang.String, org.springframework.util.MultiValueMap)
 	 */
 	@Override
-	public List<Connection<?>> getConnections(String userId, MultiValueMap<String, String> providerUsers) {
-		// userId? and providerId = ? and providerUserId in (?, ?, ...) order by providerId, rank
+	public List<Connection<?>> getConnections(final String userId, MultiValueMap<String, String> providerUsers) {
+		// where userId = ? and providerId = ? and providerUserId in (?, ?, ...) order by rank, for each provider
 		
 		if (providerUsers == null || providerUsers.isEmpty()) {
 			throw new IllegalArgumentException("Unable to execute find: no providerUsers provided");
 		}
 		
-		List<Criteria> lc = new ArrayList<Criteria>();
-		for (Entry<String, List<String>> entry : providerUsers.entrySet()) {
-			String providerId = entry.getKey();
-			
-			lc.add(where("providerId").is(providerId)
-				.and("providerUserId").in(entry.getValue()));
+		// in provider order, as the results are sorted
+		List<Callable<List<Connection<?>>>> queries = new ArrayList<Callable<List<Connection<?>>>>();
+		for (Entry<String, List<String>> entry : new TreeMap<String, List<String>>(providerUsers).entrySet()) {
+			final Query q = query(where("userId").is(userId)
+					.and("providerId").is(entry.getKey())
+					.and("providerUserId").in(entry.getValue()));
+			q.with(new Sort(Sort.Direction.ASC, "rank"));
+			queries.add(new Callable<List<Connection<?>>>() {
+				public List<Connection<?>> call() {
+					return runQuery(q);
+				}
+			});
 		}
 		
-		Criteria criteria = where("userId").is(userId);
-		criteria.orOperator(lc.toArray(new Criteria[lc.size()]));
-		
-		Query q = new Query(criteria);
-		//q.sort().on("providerId", Order.ASCENDING).on("rank", Order.ASCENDING);
-		Sort sort = new Sort(Sort.Direction.ASC, "providerId");
-		Sort sort2 = new Sort(Sort.Direction.ASC, "rank");
-		return runQuery(q.with(sort).with(sort2));
+		List<Connection<?>> connections = new ArrayList<Connection<?>>();
+		for (List<Connection<?>> results : invokeAll(queries, "look up the connections")) {
+			connections.addAll(results);
+		}
+		return connections;
 	}
 
 	/**
 	 * Get the user ids on the provider.
+	 * <p>
+	 * The provider user ids are split in chunks of at most {@code reverseLookupChunkSize},
+	 * queried concurrently when a reverse lookup executor is set.
 	 * 
 	 * @see ConnectionService#getUserIds(java.lang.String, java.util.Set)
 	 */
 	@Override
-	public Set<String> getUserIds(String providerId, Set<String> providerUserIds) {
-		//select userId from " + tablePrefix + "UserConnection where providerId = :providerId and providerUserId in (:providerUserIds)
-		Query q = query(where("providerId").is(providerId)
-				.and("providerUserId").in(new ArrayList<String>(providerUserIds)));
-		q.fields().include("userId");
+	public Set<String> getUserIds(final String providerId, Set<String> providerUserIds) {
+		List<String> ids = new ArrayList<String>(providerUserIds);
+		int chunkSize = reverseLookupChunkSize;
 		
-		List<MongoConnection> results = mongoTemplate.find(q, MongoConnection.class);
-		Set<String> userIds = new HashSet<String>();
-		for (MongoConnection mc : results) {
-			userIds.add(mc.getUserId());
+		List<Callable<List<String>>> chunks = new ArrayList<Callable<List<String>>>();
+		for (int from = 0; from < ids.size(); from += chunkSize) {
+			final List<String> chunk = ids.subList(from, Math.min(from + chunkSize, ids.size()));
+			chunks.add(new Callable<List<String>>() {
+				public List<String> call() {
+					return findUserIds(providerId, chunk);
+				}
+			});
 		}
 		
+		Set<String> userIds = new HashSet<String>();
+		for (List<String> results : invokeAll(chunks, "look up the user ids")) {
+			userIds.addAll(results);
+		}
 		return userIds;
 	}
 	
@@ -260,24 +571,399 @@ public class MongoConnectionService implements ConnectionService {
 	 */
 	@Override
 	public List<String> getUserIds(String providerId, String providerUserId) {
-		 //select userId where providerId = ? and providerUserId = ?", 		
-		Query q = query(where("providerId").is(providerId)
-				.and("providerUserId").is(providerUserId));
-		q.fields().include("userId");
+		return findUserIds(userIdsQuery(providerId, providerUserId));
+	}
+	
+	/**
+	 * Stream all the connections on a provider.
+	 * <p>
+	 * The documents are read {@code batchSize} at a time and converted one by one
+	 * while iterating; close the iterator when stopping before its end.
+	 * 
+	 * @see ConnectionService#streamConnections(java.lang.String, int)
+	 */
+	@Override
+	public CloseableIterator<Connection<?>> streamConnections(String providerId, int batchSize) {
+		// where providerId = ?
+		Query q = query(where("providerId").is(providerId));
+		return stream(q, batchSize);
+	}
+	
+	/**
+	 * Stream all the connections expiring before the given time, in milliseconds.
+	 * 
+	 * @see ConnectionService#streamExpiringConnections(long, int)
+	 */
+	@Override
+	public CloseableIterator<Connection<?>> streamExpiringConnections(long expireTime, int batchSize) {
+		// where expireTime < ?
+		Query q = query(where("expireTime").lt(expireTime));
+		return stream(q, batchSize);
+	}
+	
+	/**
+	 * Stream the provider identity of all the connections, read from the
+	 * {@code connections_provider_user_idx} index without fetching the documents.
+	 * 
+	 * @see ConnectionService#streamConnectionKeys(int)
+	 */
+	@Override
+	public CloseableIterator<ConnectionKey> streamConnectionKeys(final int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be positive");
+		}
+		final Query q = new Query();
+		q.fields().include("providerId").include("providerUserId").exclude("_id");
+		DBCursor cursor = mongoTemplate.execute(MongoConnection.class, new CollectionCallback<DBCursor>() {
+			public DBCursor doInCollection(DBCollection collection) {
+				return openCursor(ConnectionOperation.SCAN, q, collection)
+						.hint(PROVIDER_USER_INDEX)
+						.batchSize(batchSize);
+			}
+		});
+		return new DocumentCursor<ConnectionKey>(cursor) {
+			@Override
+			protected ConnectionKey convert(DBObject dbo) {
+				return new ConnectionKey((String) dbo.get("providerId"), (String) dbo.get("providerUserId"));
+			}
+		};
+	}
+	
+	// helper methods
+	
+	private int nextRank(String userId, String providerId) {
+		Query q = query(where("userId").is(userId).and("providerId").is(providerId));
+		Update inc = new Update().inc("rank", 1);
+		MongoConnectionRank rank;
+		try {
+			rank = upsertAndGet(ConnectionOperation.CREATE, q, inc, MongoConnectionRank.class);
+		} catch (DuplicateKeyException e) {
+			// a concurrent upsert created the counter first
+			rank = upsertAndGet(ConnectionOperation.CREATE, q, inc, MongoConnectionRank.class);
+		}
+		return rank.getRank();
+	}
+	
+	private void syncRank(String userId, String providerId) {
+		Query q = query(where("userId").is(userId).and("providerId").is(providerId));
+		Update max = new Update().max("rank", getMaxRank(userId, providerId) - 1);
+		try {
+			update(ConnectionOperation.CREATE, q, max, true, MongoConnectionRank.class);
+		} catch (DuplicateKeyException e) {
+			update(ConnectionOperation.CREATE, q, max, false, MongoConnectionRank.class);
+		}
+	}
+	
+	private static Map<List<String>, List<MongoConnection>> groupByUserAndProvider(List<MongoConnection> documents) {
+		Map<List<String>, List<MongoConnection>> groups = new LinkedHashMap<List<String>, List<MongoConnection>>();
+		for (MongoConnection mc : documents) {
+			List<String> key = Arrays.asList(mc.getUserId(), mc.getProviderId());
+			List<MongoConnection> group = groups.get(key);
+			if (group == null) {
+				group = new ArrayList<MongoConnection>();
+				groups.put(key, group);
+			}
+			group.add(mc);
+		}
+		return groups;
+	}
+	
+	/**
+	 * Ranks the connections of each user and provider after its last rank, and moves
+	 * the rank counters past the ranks handed out, in three round trips for the batch.
+	 */
+	private void rankAndReserve(Map<List<String>, List<MongoConnection>> groups) {
+		Map<List<String>, Integer> lastRanks = new HashMap<List<String>, Integer>();
+		Set<String> userIds = new HashSet<String>();
+		Set<String> providerIds = new HashSet<String>();
+		for (List<String> key : groups.keySet()) {
+			userIds.add(key.get(0));
+			providerIds.add(key.get(1));
+		}
+		for (DBObject dbo : findRanks(MongoConnectionRank.class, userIds, providerIds)) {
+			lastRanks.put(rankKey(dbo), ((Number) dbo.get("rank")).intValue());
+		}
 		
-		List<MongoConnection> results = mongoTemplate.find(q, MongoConnection.class);
-		List<String> userIds = new ArrayList<String>();
-		for (MongoConnection mc : results) {
+		// the groups without a counter follow their stored connections, if any
+		Set<List<String>> counted = new HashSet<List<String>>(lastRanks.keySet());
+		userIds.clear();
+		providerIds.clear();
+		for (List<String> key : groups.keySet()) {
+			if (!counted.contains(key)) {
+				userIds.add(key.get(0));
+				providerIds.add(key.get(1));
+			}
+		}
+		if (!userIds.isEmpty()) {
+			for (DBObject dbo : findRanks(MongoConnection.class, userIds, providerIds)) {
+				List<String> key = rankKey(dbo);
+				int rank = ((Number) dbo.get("rank")).intValue();
+				Integer last = lastRanks.get(key);
+				if (!counted.contains(key) && (last == null || last < rank)) {
+					lastRanks.put(key, rank);
+				}
+			}
+		}
+		
+		final List<DBObject> queries = new ArrayList<DBObject>(groups.size());
+		final List<DBObject> updates = new ArrayList<DBObject>(groups.size());
+		for (Entry<List<String>, List<MongoConnection>> group : groups.entrySet()) {
+			Integer last = lastRanks.get(group.getKey());
+			int rank = last != null ? last : 0;
+			for (MongoConnection mc : group.getValue()) {
+				mc.setRank(++rank);
+			}
+			queries.add(new BasicDBObject("userId", group.getKey().get(0))
+					.append("providerId", group.getKey().get(1)));
+			updates.add(new BasicDBObject("$max", new BasicDBObject("rank", rank)));
+		}
+		
+		mongoTemplate.execute(MongoConnectionRank.class, new CollectionCallback<Void>() {
+			public Void doInCollection(DBCollection collection) {
+				BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+				for (int i = 0; i < queries.size(); i++) {
+					bulk.find(queries.get(i)).upsert().updateOne(updates.get(i));
+				}
+				try {
+					bulk.execute(writeConcern(ConnectionOperation.CREATE, MongoActionOperation.BULK, collection,
+							MongoConnectionRank.class, null, null));
+				} catch (BulkWriteException e) {
+					if (e.getWriteConcernError() != null) {
+						throw e;
+					}
+					// a concurrent upsert created the counter first
+					for (BulkWriteError error : e.getWriteErrors()) {
+						if (error.getCode() != DUPLICATE_KEY && error.getCode() != DUPLICATE_KEY_ON_UPDATE) {
+							throw e;
+						}
+						DBObject q = queries.get(error.getIndex());
+						DBObject max = updates.get(error.getIndex());
+						collection.update(q, max, false, false, writeConcern(ConnectionOperation.CREATE,
+								MongoActionOperation.UPDATE, collection, MongoConnectionRank.class, max, q));
+					}
+				}
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 * Reads the user id, provider id and rank of the documents of the given users
+	 * and providers, on the primary as the ranks handed out depend on them.
+	 */
+	private List<DBObject> findRanks(Class<?> entityClass, Collection<String> userIds,
+			Collection<String> providerIds) {
+		Query q = query(where("userId").in(userIds).and("providerId").in(providerIds));
+		q.fields().include("userId").include("providerId").include("rank").exclude("_id");
+		return findOnPrimary(entityClass, q);
+	}
+	
+	private List<MongoConnection> notStored(List<MongoConnection> connections) {
+		Set<String> userIds = new HashSet<String>();
+		Set<String> providerIds = new HashSet<String>();
+		Set<String> providerUserIds = new HashSet<String>();
+		for (MongoConnection mc : connections) {
 			userIds.add(mc.getUserId());
+			providerIds.add(mc.getProviderId());
+			providerUserIds.add(mc.getProviderUserId());
 		}
+		Query q = query(where("userId").in(userIds).and("providerId").in(providerIds)
+				.and("providerUserId").in(providerUserIds));
+		q.fields().include("userId").include("providerId").include("providerUserId").include("rank")
+				.exclude("_id");
 		
-		return userIds;
+		Set<List<Object>> stored = new HashSet<List<Object>>();
+		for (DBObject dbo : findOnPrimary(MongoConnection.class, q)) {
+			stored.add(Arrays.asList(dbo.get("userId"), dbo.get("providerId"), dbo.get("providerUserId"),
+					dbo.get("rank")));
+		}
+		List<MongoConnection> notStored = new ArrayList<MongoConnection>();
+		for (MongoConnection mc : connections) {
+			if (!stored.contains(Arrays.<Object>asList(mc.getUserId(), mc.getProviderId(),
+					mc.getProviderUserId(), mc.getRank()))) {
+				notStored.add(mc);
+			}
+		}
+		return notStored;
 	}
 	
-	// helper methods
+	private List<DBObject> findOnPrimary(Class<?> entityClass, final Query q) {
+		return mongoTemplate.execute(entityClass, new CollectionCallback<List<DBObject>>() {
+			public List<DBObject> doInCollection(DBCollection collection) {
+				DBCursor cursor = collection.find(q.getQueryObject(), q.getFieldsObject())
+						.setReadPreference(ReadPreference.primary());
+				try {
+					return cursor.toArray();
+				} finally {
+					cursor.close();
+				}
+			}
+		});
+	}
+	
+	private static List<String> rankKey(DBObject dbo) {
+		return Arrays.asList((String) dbo.get("userId"), (String) dbo.get("providerId"));
+	}
+	
+	private int reserveRanks(String userId, String providerId, int count) {
+		syncRank(userId, providerId);
+		Query q = query(where("userId").is(userId).and("providerId").is(providerId));
+		return upsertAndGet(ConnectionOperation.CREATE, q, new Update().inc("rank", count),
+				MongoConnectionRank.class).getRank();
+	}
+	
+	private MongoConnection[] encrypt(final List<UserConnection> connections) {
+		final MongoConnection[] documents = new MongoConnection[connections.size()];
+		ExecutorService executor = importExecutor;
+		if (executor == null || connections.size() <= IMPORT_SLICE_SIZE) {
+			encrypt(connections, documents, 0, connections.size());
+			return documents;
+		}
+		
+		// the first slice runs on the calling thread, the others on the executor
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		try {
+			for (int from = IMPORT_SLICE_SIZE; from < connections.size(); from += IMPORT_SLICE_SIZE) {
+				final int start = from;
+				final int end = Math.min(from + IMPORT_SLICE_SIZE, connections.size());
+				try {
+					futures.add(executor.submit(new Runnable() {
+						public void run() {
+							encrypt(connections, documents, start, end);
+						}
+					}));
+				} catch (RejectedExecutionException e) {
+					encrypt(connections, documents, start, end);
+				}
+			}
+			encrypt(connections, documents, 0, IMPORT_SLICE_SIZE);
+			
+			for (Future<?> future : futures) {
+				await(future, "encrypt the connections");
+			}
+		} finally {
+			for (Future<?> future : futures) {
+				future.cancel(true);
+			}
+		}
+		return documents;
+	}
+	
+	private void encrypt(List<UserConnection> connections, MongoConnection[] documents, int from, int to) {
+		for (int i = from; i < to; i++) {
+			UserConnection uc = connections.get(i);
+			MongoConnection mc = converter.convert(uc.getConnection());
+			mc.setUserId(uc.getUserId());
+			documents[i] = mc;
+		}
+	}
+	
+	/**
+	 * Runs the queries on the reverse lookup executor, the first one on the calling thread,
+	 * and returns their results in the same order. Without an executor they all run
+	 * on the calling thread, as do the ones the executor rejects.
+	 */
+	private <T> List<T> invokeAll(List<Callable<T>> queries, String task) {
+		ExecutorService executor = reverseLookupExecutor;
+		List<FutureTask<T>> futures = new ArrayList<FutureTask<T>>(queries.size());
+		try {
+			for (int i = 0; i < queries.size(); i++) {
+				FutureTask<T> future = new FutureTask<T>(queries.get(i));
+				futures.add(future);
+				if (i == 0 || executor == null) {
+					continue;
+				}
+				try {
+					executor.execute(future);
+				} catch (RejectedExecutionException e) {
+					future.run();
+				}
+			}
+			
+			List<T> results = new ArrayList<T>(queries.size());
+			for (int i = 0; i < futures.size(); i++) {
+				if (i == 0 || executor == null) {
+					futures.get(i).run();
+				}
+				results.add(await(futures.get(i), task));
+			}
+			return results;
+		} finally {
+			for (Future<T> future : futures) {
+				future.cancel(true);
+			}
+		}
+	}
+	
+	private static <T> T await(Future<T> future, String task) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DataAccessResourceFailureException("Interrupted while waiting to " + task, e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw new DataAccessResourceFailureException("Unable to " + task, e.getCause());
+		}
+	}
+	
+	private List<String> findUserIds(String providerId, List<String> providerUserIds) {
+		return findUserIds(userIdsQuery(providerId, providerUserIds));
+	}
+	
+	/**
+	 * The reverse lookup of a provider user, covered by the {@code connections_provider_user_idx}
+	 * index: only the user id is returned and no document needs to be fetched.
+	 */
+	static Query userIdsQuery(String providerId, String providerUserId) {
+		//select userId where providerId = ? and providerUserId = ?
+		Query q = query(where("providerId").is(providerId)
+				.and("providerUserId").is(providerUserId));
+		q.fields().include("userId").exclude("_id");
+		return q;
+	}
+	
+	/**
+	 * The reverse lookup of a set of provider users, covered by the
+	 * {@code connections_provider_user_idx} index.
+	 */
+	static Query userIdsQuery(String providerId, Collection<String> providerUserIds) {
+		//select userId where providerId = ? and providerUserId in (?, ?, ...)
+		Query q = query(where("providerId").is(providerId)
+				.and("providerUserId").in(providerUserIds));
+		q.fields().include("userId").exclude("_id");
+		return q;
+	}
+	
+	private static Query updateQuery(String userId, MongoConnection mongoCnn) {
+		// where userId = ? and providerId = ? and providerUserId = ?
+		return query(where("userId").is(userId)
+				.and("providerId").is(mongoCnn.getProviderId())
+				.and("providerUserId").is(mongoCnn.getProviderUserId()));
+	}
+	
+	private Update updateOf(MongoConnection mongoCnn) {
+		return Update.update("displayName", mongoCnn.getDisplayName())
+				.set("profileUrl", mongoCnn.getProfileUrl())
+				.set("imageUrl", mongoCnn.getImageUrl())
+				.set("accessToken", MongoConnectionCodec.writeToken(mongoCnn.getAccessToken(), binaryTokens))
+				.set("secret", MongoConnectionCodec.writeToken(mongoCnn.getSecret(), binaryTokens))
+				.set("refreshToken", MongoConnectionCodec.writeToken(mongoCnn.getRefreshToken(), binaryTokens))
+				.set("expireTime", mongoCnn.getExpireTime())
+				.set("keyId", mongoCnn.getKeyId());
+	}
+	
+	private static boolean isRankCollision(DuplicateKeyException e) {
+		return e.getMessage() != null && e.getMessage().contains(RANK_INDEX);
+	}
 	
 	private List<Connection<?>> runQuery(Query query) {
-		List<MongoConnection> results = mongoTemplate.find(query, MongoConnection.class);
+		List<MongoConnection> results = find(ConnectionOperation.PRIMARY_LOOKUP, query, MongoConnection.class);
 		List<Connection<?>> l = new ArrayList<Connection<?>>();
 		for (MongoConnection mc : results) {
 			l.add(converter.convert(mc));
@@ -285,4 +971,247 @@ public class MongoConnectionService implements ConnectionService {
 		
 		return l;
 	}
+	
+	// operations on the collections, applying the operation policy
+	
+	private <T> List<T> find(final ConnectionOperation operation, final Query query, final Class<T> entityClass) {
+		return mongoTemplate.execute(entityClass, new CollectionCallback<List<T>>() {
+			public List<T> doInCollection(DBCollection collection) {
+				long start = System.nanoTime();
+				DBCursor cursor = openCursor(operation, query, collection);
+				try {
+					List<T> results = new ArrayList<T>();
+					while (cursor.hasNext()) {
+						results.add(read(entityClass, cursor.next()));
+					}
+					logIfSlow(operation, collection, query, start, results.size());
+					return results;
+				} finally {
+					cursor.close();
+				}
+			}
+		});
+	}
+	
+	private List<String> findUserIds(final Query query) {
+		// reads the user id straight from the documents, without mapping them
+		return mongoTemplate.execute(MongoConnection.class, new CollectionCallback<List<String>>() {
+			public List<String> doInCollection(DBCollection collection) {
+				long start = System.nanoTime();
+				DBCursor cursor = openCursor(ConnectionOperation.REVERSE_LOOKUP, query, collection);
+				try {
+					List<String> userIds = new ArrayList<String>();
+					while (cursor.hasNext()) {
+						userIds.add((String) cursor.next().get("userId"));
+					}
+					logIfSlow(ConnectionOperation.REVERSE_LOOKUP, collection, query, start, userIds.size());
+					return userIds;
+				} finally {
+					cursor.close();
+				}
+			}
+		});
+	}
+	
+	private CloseableIterator<Connection<?>> stream(final Query query, final int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be positive");
+		}
+		DBCursor cursor = mongoTemplate.execute(MongoConnection.class, new CollectionCallback<DBCursor>() {
+			public DBCursor doInCollection(DBCollection collection) {
+				return openCursor(ConnectionOperation.SCAN, query, collection).batchSize(batchSize);
+			}
+		});
+		return new DocumentCursor<Connection<?>>(cursor) {
+			@Override
+			protected Connection<?> convert(DBObject dbo) {
+				return converter.convert(MongoConnectionCodec.read(dbo));
+			}
+		};
+	}
+	
+	private <T> T findOne(ConnectionOperation operation, Query query, Class<T> entityClass) {
+		List<T> results = find(operation, query.limit(1), entityClass);
+		return results.isEmpty() ? null : results.get(0);
+	}
+	
+	private Integer currentRank(final Query query) {
+		// on the primary, as the removal depending on it
+		return mongoTemplate.execute(MongoConnectionRank.class, new CollectionCallback<Integer>() {
+			public Integer doInCollection(DBCollection collection) {
+				DBObject dbo = collection.findOne(query.getQueryObject(), new BasicDBObject("rank", 1),
+						ReadPreference.primary());
+				return dbo != null ? ((Number) dbo.get("rank")).intValue() : null;
+			}
+		});
+	}
+	
+	private boolean exists(final Query query, Class<?> entityClass) {
+		// always on the primary, to see the writes just made
+		return mongoTemplate.execute(entityClass, new CollectionCallback<Boolean>() {
+			public Boolean doInCollection(DBCollection collection) {
+				long start = System.nanoTime();
+				DBObject id = new BasicDBObject("_id", 1);
+				boolean found = collection.findOne(query.getQueryObject(), id, ReadPreference.primary()) != null;
+				logIfSlow(ConnectionOperation.PRIMARY_LOOKUP, collection, query, start, found ? 1 : 0);
+				return found;
+			}
+		});
+	}
+	
+	private void insert(final ConnectionOperation operation, final Object objectToSave) {
+		final DBObject dbo = write(objectToSave);
+		mongoTemplate.execute(objectToSave.getClass(), new CollectionCallback<Void>() {
+			public Void doInCollection(DBCollection collection) {
+				collection.insert(dbo, writeConcern(operation, MongoActionOperation.INSERT, collection,
+						objectToSave.getClass(), dbo, null));
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 * Inserts the documents with an unordered bulk write, collecting the index of the
+	 * ones violating a unique index, those violating the rank index apart when a list
+	 * is given for them; any other write error fails the whole call. Returns the number
+	 * of documents inserted, or all of them when the write is not acknowledged.
+	 */
+	private int bulkInsert(final ConnectionOperation operation, final List<?> objectsToSave,
+			final List<Integer> duplicateIndexes, final List<Integer> rankCollisionIndexes) {
+		return mongoTemplate.execute(objectsToSave.get(0).getClass(), new CollectionCallback<Integer>() {
+			public Integer doInCollection(DBCollection collection) {
+				BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+				for (Object objectToSave : objectsToSave) {
+					bulk.insert(write(objectToSave));
+				}
+				
+				BulkWriteResult result;
+				try {
+					result = bulk.execute(writeConcern(operation, MongoActionOperation.INSERT_LIST, collection,
+							objectsToSave.get(0).getClass(), null, null));
+				} catch (BulkWriteException e) {
+					if (e.getWriteConcernError() != null) {
+						throw e;
+					}
+					for (BulkWriteError error : e.getWriteErrors()) {
+						if (error.getCode() != DUPLICATE_KEY && error.getCode() != DUPLICATE_KEY_ON_UPDATE) {
+							throw e;
+						}
+						if (rankCollisionIndexes != null && error.getMessage() != null
+								&& error.getMessage().contains(RANK_INDEX)) {
+							rankCollisionIndexes.add(error.getIndex());
+						} else {
+							duplicateIndexes.add(error.getIndex());
+						}
+					}
+					Collections.sort(duplicateIndexes);
+					if (rankCollisionIndexes != null) {
+						Collections.sort(rankCollisionIndexes);
+					}
+					result = e.getWriteResult();
+				}
+				return result.isAcknowledged() ? result.getInsertedCount() : objectsToSave.size();
+			}
+		});
+	}
+	
+	private void update(final ConnectionOperation operation, final Query query, final Update update,
+			final boolean upsert, final Class<?> entityClass) {
+		mongoTemplate.execute(entityClass, new CollectionCallback<Void>() {
+			public Void doInCollection(DBCollection collection) {
+				collection.update(query.getQueryObject(), update.getUpdateObject(), upsert, false,
+						writeConcern(operation, MongoActionOperation.UPDATE, collection, entityClass,
+								update.getUpdateObject(), query.getQueryObject()));
+				return null;
+			}
+		});
+	}
+	
+	private <T> T upsertAndGet(final ConnectionOperation operation, final Query query, final Update update,
+			final Class<T> entityClass) {
+		return mongoTemplate.execute(entityClass, new CollectionCallback<T>() {
+			public T doInCollection(DBCollection collection) {
+				DBObject dbo = collection.findAndModify(query.getQueryObject(), null, null, false,
+						update.getUpdateObject(), true, true,
+						operationPolicy.getMaxTimeMillis(operation), TimeUnit.MILLISECONDS,
+						writeConcern(operation, MongoActionOperation.UPDATE, collection, entityClass,
+								update.getUpdateObject(), query.getQueryObject()));
+				return read(entityClass, dbo);
+			}
+		});
+	}
+	
+	private void remove(final ConnectionOperation operation, final Query query, final Class<?> entityClass) {
+		mongoTemplate.execute(entityClass, new CollectionCallback<Void>() {
+			public Void doInCollection(DBCollection collection) {
+				collection.remove(query.getQueryObject(), writeConcern(operation, MongoActionOperation.REMOVE,
+						collection, entityClass, null, query.getQueryObject()));
+				return null;
+			}
+		});
+	}
+	
+	// the connection documents go through the codec, the others through the mapping converter
+	
+	private <T> T read(Class<T> entityClass, DBObject dbo) {
+		if (entityClass == MongoConnection.class) {
+			return entityClass.cast(MongoConnectionCodec.read(dbo));
+		}
+		return mongoTemplate.getConverter().read(entityClass, dbo);
+	}
+	
+	private DBObject write(Object objectToSave) {
+		if (objectToSave instanceof MongoConnection) {
+			return MongoConnectionCodec.write((MongoConnection) objectToSave, binaryTokens);
+		}
+		DBObject dbo = new BasicDBObject();
+		mongoTemplate.getConverter().write(objectToSave, dbo);
+		return dbo;
+	}
+	
+	/**
+	 * The write concern of the policy for the operation or, without one, the write concern
+	 * the template would apply to the same action, through its {@code WriteConcernResolver}
+	 * or its own setting; the collection default when neither is set.
+	 */
+	private WriteConcern writeConcern(ConnectionOperation operation, MongoActionOperation action,
+			DBCollection collection, Class<?> entityClass, DBObject document, DBObject query) {
+		WriteConcern writeConcern = operationPolicy.getWriteConcern(operation);
+		if (writeConcern == null) {
+			MongoAction mongoAction = new MongoAction(
+					(WriteConcern) ReflectionUtils.getField(TEMPLATE_WRITE_CONCERN, mongoTemplate),
+					action, collection.getName(), entityClass, document, query);
+			writeConcern = (WriteConcern) ReflectionUtils.invokeMethod(PREPARE_WRITE_CONCERN,
+					mongoTemplate, mongoAction);
+		}
+		return writeConcern != null ? writeConcern : collection.getWriteConcern();
+	}
+	
+	private void logIfSlow(ConnectionOperation operation, DBCollection collection, Query query,
+			long start, int documents) {
+		if (slowQueryLog != null) {
+			slowQueryLog.record(operation, collection, query.getQueryObject(), query.getFieldsObject(),
+					query.getSortObject(), System.nanoTime() - start, documents);
+		}
+	}
+	
+	private DBCursor openCursor(ConnectionOperation operation, Query query, DBCollection collection) {
+		DBCursor cursor = collection.find(query.getQueryObject(), query.getFieldsObject());
+		if (query.getSortObject() != null) {
+			cursor.sort(query.getSortObject());
+		}
+		if (query.getLimit() > 0) {
+			cursor.limit(query.getLimit());
+		}
+		
+		ReadPreference readPreference = operationPolicy.getReadPreference(operation);
+		if (readPreference != null) {
+			cursor.setReadPreference(readPreference);
+		}
+		long maxTime = operationPolicy.getMaxTimeMillis(operation);
+		if (maxTime > 0) {
+			cursor.maxTime(maxTime, TimeUnit.MILLISECONDS);
+		}
+		return cursor;
+	}
 }
\ No newline at end of file
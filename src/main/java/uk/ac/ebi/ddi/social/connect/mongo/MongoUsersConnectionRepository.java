@@ -16,8 +16,11 @@
 package uk.ac.ebi.ddi.social.connect.mongo;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.springframework.security.crypto.encrypt.TextEncryptor;
 import org.springframework.social.connect.Connection;
@@ -26,6 +29,8 @@ import org.springframework.social.connect.ConnectionKey;
 import org.springframework.social.connect.ConnectionRepository;
 import org.springframework.social.connect.ConnectionSignUp;
 import org.springframework.social.connect.UsersConnectionRepository;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
 
 /**
  * {@link UsersConnectionRepository} that uses the JDBC API to persist connection data to a relational database.
@@ -37,38 +42,130 @@ public class MongoUsersConnectionRepository implements UsersConnectionRepository
 
 	private final ConnectionFactoryLocator connectionFactoryLocator;
 
-	private final TextEncryptor textEncryptor;
+	private final ConnectionConverter converter;
 
 	private ConnectionSignUp connectionSignUp;
 
+	private boolean snapshotMode;
+
+	private Executor lookupExecutor;
+
+	private Executor signUpExecutor;
+
+	private AsyncConnectionService asyncService;
+
+	/**
+	 * Creates the repository; the repositories created in snapshot mode convert
+	 * their connections with a converter of their own, decrypting the tokens with
+	 * the given text encryptor. Use {@link #MongoUsersConnectionRepository(ConnectionService,
+	 * ConnectionFactoryLocator, ConnectionConverter)} to share the converter of the
+	 * connection service, with its encryption keys, lazy decryption and metrics.
+	 */
 	public MongoUsersConnectionRepository(ConnectionService mongoService, 
 			ConnectionFactoryLocator connectionFactoryLocator, 
 			TextEncryptor textEncryptor) {
 		
+		this(mongoService, connectionFactoryLocator,
+				new ConnectionConverter(connectionFactoryLocator, textEncryptor));
+	}
+
+	/**
+	 * Creates the repository; the repositories created in snapshot mode convert
+	 * their connections with the given converter, which must be the one of the
+	 * connection service.
+	 */
+	public MongoUsersConnectionRepository(ConnectionService mongoService, 
+			ConnectionFactoryLocator connectionFactoryLocator, 
+			ConnectionConverter converter) {
+		
 		this.mongoService = mongoService;
 		this.connectionFactoryLocator = connectionFactoryLocator;
-		this.textEncryptor = textEncryptor;
+		this.converter = converter;
 	}
 
 	public void setConnectionSignUp(ConnectionSignUp connectionSignUp) {
 		this.connectionSignUp = connectionSignUp;
 	}
 
+	/**
+	 * Sets whether the repositories created load all the connections of their user
+	 * with a single query and answer every read from them. Meant for repositories
+	 * living as long as a request.
+	 */
+	public void setSnapshotMode(boolean snapshotMode) {
+		this.snapshotMode = snapshotMode;
+	}
+
+	/**
+	 * Sets the executor running the user id lookups of
+	 * {@link #findUserIdsWithConnectionAsync(Connection)}, which needs one.
+	 */
+	public void setLookupExecutor(Executor lookupExecutor) {
+		this.lookupExecutor = lookupExecutor;
+	}
+
+	/**
+	 * Sets the executor running the {@link ConnectionSignUp} of
+	 * {@link #findUserIdsWithConnectionAsync(Connection)}, and adding the connection
+	 * of the new user. A sign up may call remote services, so it is kept apart from
+	 * the lookups.
+	 */
+	public void setSignUpExecutor(Executor signUpExecutor) {
+		this.signUpExecutor = signUpExecutor;
+	}
+
+	/**
+	 * Sets the service the repositories created use to load the connections of
+	 * each provider concurrently; it must wrap the connection service of this
+	 * repository. Not used in snapshot mode.
+	 */
+	public void setAsyncConnectionService(AsyncConnectionService asyncService) {
+		this.asyncService = asyncService;
+	}
+
 	@Override
 	public List<String> findUserIdsWithConnection(Connection<?> connection) {
-		ConnectionKey key = connection.getKey();
-		List<String> localUserIds = mongoService.getUserIds(key.getProviderId(), key.getProviderUserId());
+		List<String> localUserIds = findUserIds(connection);
 		if (localUserIds.size() == 0 && connectionSignUp != null) {
-			String newUserId = connectionSignUp.execute(connection);
-			if (newUserId != null)
-			{
-				createConnectionRepository(newUserId).addConnection(connection);
-				return Arrays.asList(newUserId);
-			}
+			return signUp(connection);
 		}
 		return localUserIds;
 	}
 
+	/**
+	 * Finds the user ids with the connection as {@link #findUserIdsWithConnection(Connection)}
+	 * does, without blocking the calling thread: the lookup runs on the lookup executor
+	 * and the sign up, when needed, on the sign up executor, or after the lookup on its
+	 * thread when there is none. When an executor rejects a step the future fails with
+	 * the {@link RejectedExecutionException}.
+	 * <p>
+	 * The other operations of the {@link ConnectionService} are available without
+	 * blocking from an {@link AsyncConnectionService} wrapping it.
+	 * 
+	 * @throws IllegalStateException if no lookup executor is set
+	 */
+	public ListenableFuture<List<String>> findUserIdsWithConnectionAsync(final Connection<?> connection) {
+		if (lookupExecutor == null) {
+			throw new IllegalStateException("No lookup executor set");
+		}
+		final SettableListenableFuture<List<String>> result = new SettableListenableFuture<List<String>>();
+		execute(lookupExecutor, result, new Runnable() {
+			public void run() {
+				List<String> localUserIds = findUserIds(connection);
+				if (localUserIds.size() == 0 && connectionSignUp != null) {
+					execute(signUpExecutor, result, new Runnable() {
+						public void run() {
+							result.set(signUp(connection));
+						}
+					});
+				} else {
+					result.set(localUserIds);
+				}
+			}
+		});
+		return result;
+	}
+
 	@Override
 	public Set<String> findUserIdsConnectedTo(String providerId,
 			Set<String> providerUserIds) {
@@ -81,7 +178,47 @@ public class MongoUsersConnectionRepository implements UsersConnectionRepository
 		if (userId == null) {
 			throw new IllegalArgumentException("userId cannot be null");
 		}
-		return new MongoConnectionRepository(userId, mongoService, connectionFactoryLocator, textEncryptor);
+		MongoConnectionRepository repository = new MongoConnectionRepository(userId, mongoService,
+				connectionFactoryLocator, converter, snapshotMode);
+		repository.setAsyncService(asyncService);
+		return repository;
+	}
+
+	private List<String> findUserIds(Connection<?> connection) {
+		ConnectionKey key = connection.getKey();
+		return mongoService.getUserIds(key.getProviderId(), key.getProviderUserId());
+	}
+
+	private List<String> signUp(Connection<?> connection) {
+		String newUserId = connectionSignUp.execute(connection);
+		if (newUserId != null)
+		{
+			createConnectionRepository(newUserId).addConnection(connection);
+			return Arrays.asList(newUserId);
+		}
+		return Collections.emptyList();
+	}
+
+	private static void execute(Executor executor, final SettableListenableFuture<?> result, final Runnable step) {
+		Runnable task = new Runnable() {
+			public void run() {
+				try {
+					step.run();
+				} catch (Throwable e) {
+					result.setException(e);
+				}
+			}
+		};
+		if (executor == null) {
+			// the sign up without an executor of its own, on the lookup thread
+			task.run();
+			return;
+		}
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			result.setException(e);
+		}
 	}
 
 }
\ No newline at end of file
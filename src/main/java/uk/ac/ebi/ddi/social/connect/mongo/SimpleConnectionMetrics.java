@@ -0,0 +1,183 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.springframework.dao.DuplicateKeyException;
+
+/**
+ * Connection metrics kept in memory, without any dependency.
+ * <p>
+ * The latencies of each operation go into a histogram of power of two buckets,
+ * from 1 microsecond to about 35 minutes, so the percentiles are the upper bound
+ * of their bucket: within a factor of two of the actual value.
+ *
+ * @author Carlo P. Micieli
+ */
+public class SimpleConnectionMetrics implements ConnectionMetrics {
+
+	private static final int BUCKETS = 32;
+
+	private final ConcurrentMap<String, OperationStats> operations = new ConcurrentHashMap<String, OperationStats>();
+
+	private final AtomicLong duplicateKeyCount = new AtomicLong();
+	private final AtomicLong decryptCount = new AtomicLong();
+	private final AtomicLong decryptNanos = new AtomicLong();
+
+	public void recordOperation(String operation, long elapsedNanos, int documents) {
+		OperationStats stats = stats(operation);
+		stats.record(elapsedNanos);
+		stats.documents.addAndGet(documents);
+	}
+
+	public void recordError(String operation, long elapsedNanos, RuntimeException error) {
+		OperationStats stats = stats(operation);
+		stats.record(elapsedNanos);
+		stats.errors.incrementAndGet();
+		if (error instanceof DuplicateKeyException) {
+			duplicateKeyCount.incrementAndGet();
+		}
+	}
+
+	public void recordDecrypt(long elapsedNanos) {
+		decryptCount.incrementAndGet();
+		decryptNanos.addAndGet(elapsedNanos);
+	}
+
+	/**
+	 * Returns the names of the operations recorded so far.
+	 */
+	public Set<String> getOperations() {
+		return new TreeSet<String>(operations.keySet());
+	}
+
+	/**
+	 * Returns the number of times the operation ran, failures included.
+	 */
+	public long getCount(String operation) {
+		OperationStats stats = operations.get(operation);
+		return stats != null ? stats.count.get() : 0;
+	}
+
+	/**
+	 * Returns the number of times the operation failed.
+	 */
+	public long getErrorCount(String operation) {
+		OperationStats stats = operations.get(operation);
+		return stats != null ? stats.errors.get() : 0;
+	}
+
+	/**
+	 * Returns the number of documents the operation returned or wrote.
+	 */
+	public long getDocumentCount(String operation) {
+		OperationStats stats = operations.get(operation);
+		return stats != null ? stats.documents.get() : 0;
+	}
+
+	/**
+	 * Returns the mean latency of the operation, in milliseconds.
+	 */
+	public double getMeanMillis(String operation) {
+		OperationStats stats = operations.get(operation);
+		long count = stats != null ? stats.count.get() : 0;
+		return count > 0 ? stats.totalNanos.get() / 1e6 / count : 0;
+	}
+
+	/**
+	 * Returns the latency under which the given fraction of the runs of the
+	 * operation completed, in nanoseconds, rounded up to a power of two microseconds.
+	 *
+	 * @param percentile between 0 and 1, e.g. 0.99
+	 */
+	public long getLatencyPercentile(String operation, double percentile) {
+		OperationStats stats = operations.get(operation);
+		if (stats == null) {
+			return 0;
+		}
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = stats.buckets.get(i);
+			total += counts[i];
+		}
+		long rank = (long) Math.ceil(percentile * total);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank && seen > 0) {
+				return 1000L << i;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns the number of {@code DuplicateKeyException} thrown by all operations.
+	 */
+	public long getDuplicateKeyCount() {
+		return duplicateKeyCount.get();
+	}
+
+	/**
+	 * Returns the number of tokens decrypted.
+	 */
+	public long getDecryptCount() {
+		return decryptCount.get();
+	}
+
+	/**
+	 * Returns the time spent decrypting tokens, in nanoseconds.
+	 */
+	public long getDecryptNanos() {
+		return decryptNanos.get();
+	}
+
+	private OperationStats stats(String operation) {
+		OperationStats stats = operations.get(operation);
+		if (stats == null) {
+			OperationStats created = new OperationStats();
+			stats = operations.putIfAbsent(operation, created);
+			if (stats == null) {
+				stats = created;
+			}
+		}
+		return stats;
+	}
+
+	private static final class OperationStats {
+		final AtomicLong count = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+		final AtomicLong documents = new AtomicLong();
+		final AtomicLong totalNanos = new AtomicLong();
+		final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+		void record(long elapsedNanos) {
+			count.incrementAndGet();
+			totalNanos.addAndGet(elapsedNanos);
+			// bucket i holds the latencies up to 2^i microseconds
+			long micros = (elapsedNanos + 999) / 1000;
+			int bucket = micros <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+			buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+		}
+	}
+}
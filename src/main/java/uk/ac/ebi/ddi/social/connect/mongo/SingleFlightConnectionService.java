@@ -0,0 +1,342 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.util.MultiValueMap;
+
+/**
+ * A {@link ConnectionService} decorator that runs concurrent identical reads once.
+ * <p>
+ * The first caller of a read with given arguments runs it, and every caller asking
+ * for the same read before it completes waits for its result instead of running its
+ * own query; each of them gets its own copy of the returned list or set, and the
+ * exception thrown, if any. A caller waiting longer than the configured time runs
+ * the read itself. Once a write through this service completes, the reads of the
+ * user it touched that are still running (and the reverse lookups, for any user)
+ * no longer take new callers, so a read never returns what was there before a write
+ * that completed before it started.
+ *
+ * @author Carlo P. Micieli
+ */
+public class SingleFlightConnectionService implements ConnectionService {
+
+	private final ConnectionService connectionService;
+	private final long maxWaitNanos;
+
+	// the reads running, by operation and arguments; the user id, if any, comes second
+	private final ConcurrentMap<List<Object>, FutureTask<Object>> inFlight =
+			new ConcurrentHashMap<List<Object>, FutureTask<Object>>();
+
+	private final AtomicLong executedCount = new AtomicLong();
+	private final AtomicLong coalescedCount = new AtomicLong();
+	private final AtomicLong timeoutCount = new AtomicLong();
+
+	public SingleFlightConnectionService(ConnectionService connectionService,
+			long maxWait, TimeUnit unit) {
+
+		if (maxWait <= 0) {
+			throw new IllegalArgumentException("maxWait must be positive");
+		}
+		this.connectionService = connectionService;
+		this.maxWaitNanos = unit.toNanos(maxWait);
+	}
+
+	/**
+	 * Returns the number of reads run against the underlying service.
+	 */
+	public long getExecutedCount() {
+		return executedCount.get();
+	}
+
+	/**
+	 * Returns the number of reads answered with the result of a read already running.
+	 */
+	public long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+
+	/**
+	 * Returns the number of callers that stopped waiting for a running read and
+	 * ran their own; they are counted as executed too.
+	 */
+	public long getTimeoutCount() {
+		return timeoutCount.get();
+	}
+
+	@Override
+	public int getMaxRank(final String userId, final String providerId) {
+		return coalesce(key("getMaxRank", userId, providerId), new Callable<Integer>() {
+			public Integer call() {
+				return connectionService.getMaxRank(userId, providerId);
+			}
+		});
+	}
+
+	@Override
+	public void create(String userId, Connection<?> userConn) {
+		try {
+			connectionService.create(userId, userConn);
+		} finally {
+			detach(userId);
+		}
+	}
+
+	@Override
+	public void create(String userId, Connection<?> userConn, int rank) {
+		try {
+			connectionService.create(userId, userConn, rank);
+		} finally {
+			detach(userId);
+		}
+	}
+
+	@Override
+	public ConnectionImportResult importConnections(List<UserConnection> connections) {
+		try {
+			return connectionService.importConnections(connections);
+		} finally {
+			detachAll();
+		}
+	}
+
+	@Override
+	public void update(String userId, Connection<?> userConn) {
+		try {
+			connectionService.update(userId, userConn);
+		} finally {
+			detach(userId);
+		}
+	}
+
+	@Override
+	public void updateConnections(List<UserConnection> connections) {
+		try {
+			connectionService.updateConnections(connections);
+		} finally {
+			for (UserConnection uc : connections) {
+				detach(uc.getUserId());
+			}
+		}
+	}
+
+	@Override
+	public void remove(String userId, ConnectionKey connectionKey) {
+		try {
+			connectionService.remove(userId, connectionKey);
+		} finally {
+			detach(userId);
+		}
+	}
+
+	@Override
+	public void remove(String userId, String providerId) {
+		try {
+			connectionService.remove(userId, providerId);
+		} finally {
+			detach(userId);
+		}
+	}
+
+	@Override
+	public Connection<?> getPrimaryConnection(final String userId, final String providerId) {
+		return coalesce(key("getPrimaryConnection", userId, providerId), new Callable<Connection<?>>() {
+			public Connection<?> call() {
+				return connectionService.getPrimaryConnection(userId, providerId);
+			}
+		});
+	}
+
+	@Override
+	public Connection<?> getConnection(final String userId, final String providerId, final String providerUserId) {
+		return coalesce(key("getConnection", userId, providerId, providerUserId), new Callable<Connection<?>>() {
+			public Connection<?> call() {
+				return connectionService.getConnection(userId, providerId, providerUserId);
+			}
+		});
+	}
+
+	@Override
+	public List<Connection<?>> getConnections(final String userId) {
+		return new ArrayList<Connection<?>>(coalesce(key("getConnections", userId),
+				new Callable<List<Connection<?>>>() {
+					public List<Connection<?>> call() {
+						return connectionService.getConnections(userId);
+					}
+				}));
+	}
+
+	@Override
+	public List<MongoConnection> getMongoConnections(final String userId) {
+		return new ArrayList<MongoConnection>(coalesce(key("getMongoConnections", userId),
+				new Callable<List<MongoConnection>>() {
+					public List<MongoConnection> call() {
+						return connectionService.getMongoConnections(userId);
+					}
+				}));
+	}
+
+	@Override
+	public List<Connection<?>> getConnections(final String userId, final String providerId) {
+		return new ArrayList<Connection<?>>(coalesce(key("getConnections", userId, providerId),
+				new Callable<List<Connection<?>>>() {
+					public List<Connection<?>> call() {
+						return connectionService.getConnections(userId, providerId);
+					}
+				}));
+	}
+
+	@Override
+	public List<Connection<?>> getConnections(String userId, MultiValueMap<String, String> providerUsers) {
+		// seldom repeated as it is, not worth a key
+		return connectionService.getConnections(userId, providerUsers);
+	}
+
+	@Override
+	public Set<String> getUserIds(final String providerId, final Set<String> providerUserIds) {
+		// copied, the key must not change while in use
+		Set<String> ids = new HashSet<String>(providerUserIds);
+		return new HashSet<String>(coalesce(key("getUserIds", null, providerId, ids),
+				new Callable<Set<String>>() {
+					public Set<String> call() {
+						return connectionService.getUserIds(providerId, providerUserIds);
+					}
+				}));
+	}
+
+	@Override
+	public List<String> getUserIds(final String providerId, final String providerUserId) {
+		return new ArrayList<String>(coalesce(key("getUserIds", null, providerId, providerUserId),
+				new Callable<List<String>>() {
+					public List<String> call() {
+						return connectionService.getUserIds(providerId, providerUserId);
+					}
+				}));
+	}
+
+	@Override
+	public CloseableIterator<Connection<?>> streamConnections(String providerId, int batchSize) {
+		return connectionService.streamConnections(providerId, batchSize);
+	}
+
+	@Override
+	public CloseableIterator<Connection<?>> streamExpiringConnections(long expireTime, int batchSize) {
+		return connectionService.streamExpiringConnections(expireTime, batchSize);
+	}
+
+	@Override
+	public CloseableIterator<ConnectionKey> streamConnectionKeys(int batchSize) {
+		return connectionService.streamConnectionKeys(batchSize);
+	}
+
+	// helper methods
+
+	private static List<Object> key(String operation, String userId, Object... args) {
+		List<Object> key = new ArrayList<Object>(args.length + 2);
+		key.add(operation);
+		key.add(userId);
+		key.addAll(Arrays.asList(args));
+		return key;
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> T coalesce(List<Object> key, Callable<T> read) {
+		FutureTask<Object> task = new FutureTask<Object>((Callable<Object>) read);
+		FutureTask<Object> running = inFlight.putIfAbsent(key, task);
+		if (running == null) {
+			executedCount.incrementAndGet();
+			try {
+				task.run();
+			} finally {
+				inFlight.remove(key, task);
+			}
+			return (T) result(task);
+		}
+
+		if (!await(running)) {
+			timeoutCount.incrementAndGet();
+			executedCount.incrementAndGet();
+			task.run();
+			return (T) result(task);
+		}
+		coalescedCount.incrementAndGet();
+		return (T) result(running);
+	}
+
+	// whether the read completed within the max wait
+	private boolean await(Future<Object> running) {
+		try {
+			running.get(maxWaitNanos, TimeUnit.NANOSECONDS);
+			return true;
+		} catch (TimeoutException e) {
+			return false;
+		} catch (ExecutionException e) {
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DataAccessResourceFailureException("Interrupted while waiting for a running read", e);
+		}
+	}
+
+	private static Object result(Future<Object> completed) {
+		try {
+			return completed.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DataAccessResourceFailureException("Interrupted while waiting for a running read", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw new DataAccessResourceFailureException("Unable to run the read", e.getCause());
+		}
+	}
+
+	private void detach(String userId) {
+		for (Iterator<List<Object>> it = inFlight.keySet().iterator(); it.hasNext(); ) {
+			Object keyUserId = it.next().get(1);
+			if (keyUserId == null || keyUserId.equals(userId)) {
+				it.remove();
+			}
+		}
+	}
+
+	private void detachAll() {
+		inFlight.clear();
+	}
+}
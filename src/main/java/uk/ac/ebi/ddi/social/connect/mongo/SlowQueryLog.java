@@ -0,0 +1,294 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * Logs the queries of the {@link MongoConnectionService} slower than a threshold,
+ * with the plan the server chose for them.
+ * <p>
+ * Each slow query is logged at warn level with its operation, query shape, elapsed
+ * time, number of documents and number of {@code $in} values; the full query, fields
+ * and sort are logged at debug level only. The shape is the query with its values
+ * left out, so the reverse lookups of different users share theirs.
+ * <p>
+ * The first time a query shape is seen slow, and then at most once per explain
+ * interval, the query is explained on a single background thread and its winning
+ * plan logged at warn level: {@code COLLSCAN} among its stages means no index was
+ * used. The explains never run on the thread of the slow query, and those arriving
+ * while the background thread is busy with a full queue are dropped.
+ *
+ * @author Carlo P. Micieli
+ */
+public class SlowQueryLog {
+
+	private static final Logger log = LoggerFactory.getLogger(SlowQueryLog.class);
+
+	private static final Set<String> LOGICAL_OPERATORS = new HashSet<String>(Arrays.asList("$and", "$or", "$nor"));
+
+	private static final int EXPLAIN_QUEUE_CAPACITY = 16;
+
+	private final long thresholdNanos;
+	private long explainIntervalNanos = TimeUnit.MINUTES.toNanos(1);
+
+	// by query shape, the time of the last explain and the plan it found
+	private final ConcurrentMap<String, Long> lastExplains = new ConcurrentHashMap<String, Long>();
+	private final ConcurrentMap<String, String> plans = new ConcurrentHashMap<String, String>();
+
+	private final AtomicLong slowQueryCount = new AtomicLong();
+	private final AtomicLong explainCount = new AtomicLong();
+
+	private final ThreadPoolExecutor ownExplainExecutor;
+	private Executor explainExecutor;
+
+	public SlowQueryLog(long threshold, TimeUnit unit) {
+		if (threshold < 0) {
+			throw new IllegalArgumentException("threshold must not be negative");
+		}
+		this.thresholdNanos = unit.toNanos(threshold);
+		this.ownExplainExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(EXPLAIN_QUEUE_CAPACITY), new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "connection-slow-query-explain");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		this.explainExecutor = ownExplainExecutor;
+	}
+
+	/**
+	 * Sets the executor running the explains, instead of the single thread of this log.
+	 */
+	public void setExplainExecutor(Executor explainExecutor) {
+		this.explainExecutor = explainExecutor;
+	}
+
+	/**
+	 * Stops the thread running the explains.
+	 */
+	public void shutdown() {
+		ownExplainExecutor.shutdownNow();
+	}
+
+	/**
+	 * Sets the min time between two explains of the same query shape, one minute
+	 * by default.
+	 */
+	public void setExplainInterval(long explainInterval, TimeUnit unit) {
+		this.explainIntervalNanos = unit.toNanos(explainInterval);
+	}
+
+	/**
+	 * Returns the number of slow queries logged.
+	 */
+	public long getSlowQueryCount() {
+		return slowQueryCount.get();
+	}
+
+	/**
+	 * Returns the number of slow queries explained so far.
+	 */
+	public long getExplainCount() {
+		return explainCount.get();
+	}
+
+	/**
+	 * Returns the last plan found for each slow query shape, as the stages of the
+	 * winning plan from the outermost one.
+	 */
+	public Map<String, String> getPlans() {
+		return new HashMap<String, String>(plans);
+	}
+
+	/**
+	 * Records a query run by the given operation, logging it when slow.
+	 */
+	void record(ConnectionOperation operation, DBCollection collection, DBObject query, DBObject fields,
+			DBObject sort, long elapsedNanos, int documents) {
+
+		if (elapsedNanos < thresholdNanos) {
+			return;
+		}
+		slowQueryCount.incrementAndGet();
+
+		String shape = operation + " " + collection.getName() + " " + shape(query) +
+				(sort != null ? " sort " + shape(sort) : "");
+		if (log.isWarnEnabled()) {
+			StringBuilder message = new StringBuilder("Slow ").append(shape)
+					.append(": ").append(TimeUnit.NANOSECONDS.toMillis(elapsedNanos)).append(" ms, ")
+					.append(documents).append(" documents");
+			int inSize = inSize(query);
+			if (inSize > 0) {
+				message.append(", ").append(inSize).append(" $in values");
+			}
+			log.warn(message.toString());
+		}
+		if (log.isDebugEnabled()) {
+			StringBuilder message = new StringBuilder("Slow ").append(operation)
+					.append(" on ").append(collection.getName()).append(", query ").append(query);
+			if (fields != null) {
+				message.append(" fields ").append(fields);
+			}
+			if (sort != null) {
+				message.append(" sort ").append(sort);
+			}
+			log.debug(message.toString());
+		}
+
+		if (isExplainDue(shape)) {
+			try {
+				explainExecutor.execute(explain(shape, collection, query, fields, sort));
+			} catch (RejectedExecutionException e) {
+				log.debug("Explain of " + shape + " dropped", e);
+			}
+		}
+	}
+
+	private Runnable explain(final String shape, final DBCollection collection, final DBObject query,
+			final DBObject fields, final DBObject sort) {
+		return new Runnable() {
+			public void run() {
+				try {
+					DBCursor cursor = collection.find(query, fields);
+					if (sort != null) {
+						cursor.sort(sort);
+					}
+					String plan = summarize(cursor.explain());
+					plans.put(shape, plan);
+					explainCount.incrementAndGet();
+					log.warn("Plan of slow " + shape + ": " + plan);
+				} catch (RuntimeException e) {
+					log.debug("Unable to explain " + shape, e);
+				}
+			}
+		};
+	}
+
+	private boolean isExplainDue(String shape) {
+		long now = System.nanoTime();
+		Long last = lastExplains.get(shape);
+		if (last == null) {
+			return lastExplains.putIfAbsent(shape, now) == null;
+		}
+		return now - last >= explainIntervalNanos && lastExplains.replace(shape, last, now);
+	}
+
+	/**
+	 * Returns the query with every value replaced by {@code ?}, keeping the fields
+	 * and the operators.
+	 */
+	static String shape(DBObject query) {
+		StringBuilder shape = new StringBuilder("{");
+		for (String key : query.keySet()) {
+			if (shape.length() > 1) {
+				shape.append(", ");
+			}
+			shape.append(key).append(": ");
+			Object value = query.get(key);
+			if (value instanceof List && LOGICAL_OPERATORS.contains(key)) {
+				shape.append("[");
+				List<?> clauses = (List<?>) value;
+				for (int i = 0; i < clauses.size(); i++) {
+					shape.append(i > 0 ? ", " : "").append(clauses.get(i) instanceof DBObject ?
+							shape((DBObject) clauses.get(i)) : "?");
+				}
+				shape.append("]");
+			} else if (value instanceof DBObject && !key.startsWith("$")) {
+				shape.append(shape((DBObject) value));
+			} else if (value instanceof DBObject) {
+				shape.append("?");
+			} else {
+				shape.append(key.startsWith("$") || !isSortOrder(value) ? "?" : value);
+			}
+		}
+		return shape.append("}").toString();
+	}
+
+	/**
+	 * Returns the number of values of the {@code $in} operators of the query.
+	 */
+	static int inSize(DBObject query) {
+		int size = 0;
+		for (String key : query.keySet()) {
+			Object value = query.get(key);
+			if ("$in".equals(key) && value instanceof Collection) {
+				size += ((Collection<?>) value).size();
+			} else if ("$in".equals(key) && value instanceof Object[]) {
+				size += ((Object[]) value).length;
+			} else if (value instanceof List && LOGICAL_OPERATORS.contains(key)) {
+				for (Object clause : (List<?>) value) {
+					size += clause instanceof DBObject ? inSize((DBObject) clause) : 0;
+				}
+			} else if (value instanceof DBObject) {
+				size += inSize((DBObject) value);
+			}
+		}
+		return size;
+	}
+
+	private static boolean isSortOrder(Object value) {
+		return value instanceof Number && Math.abs(((Number) value).intValue()) == 1;
+	}
+
+	/**
+	 * Returns the stages of the winning plan, with the index of the index scans.
+	 */
+	static String summarize(DBObject explain) {
+		DBObject queryPlanner = (DBObject) explain.get("queryPlanner");
+		if (queryPlanner == null) {
+			// servers before 3.0
+			String cursor = String.valueOf(explain.get("cursor"));
+			return cursor.startsWith("BasicCursor") ? "COLLSCAN" : "IXSCAN " + cursor;
+		}
+		List<String> stages = new ArrayList<String>();
+		DBObject stage = (DBObject) queryPlanner.get("winningPlan");
+		while (stage != null) {
+			String name = String.valueOf(stage.get("stage"));
+			stages.add(stage.get("indexName") != null ? name + " " + stage.get("indexName") : name);
+			stage = (DBObject) stage.get("inputStage");
+		}
+		StringBuilder summary = new StringBuilder();
+		for (String name : stages) {
+			summary.append(summary.length() > 0 ? " <- " : "").append(name);
+		}
+		return summary.toString();
+	}
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import org.springframework.social.connect.Connection;
+
+/**
+ * A connection together with the local user it belongs to,
+ * the unit of a {@link ConnectionService#importConnections(java.util.List) bulk import}.
+ *
+ * @author Carlo P. Micieli
+ */
+public class UserConnection {
+	private final String userId;
+	private final Connection<?> connection;
+
+	public UserConnection(String userId, Connection<?> connection) {
+		this.userId = userId;
+		this.connection = connection;
+	}
+
+	public String getUserId() {
+		return userId;
+	}
+
+	public Connection<?> getConnection() {
+		return connection;
+	}
+
+	@Override
+	public String toString() {
+		return "{" + userId + ", " + connection.getKey() + "}";
+	}
+}
@@ -0,0 +1,478 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.util.MultiValueMap;
+
+/**
+ * A {@link ConnectionService} decorator that buffers the connection updates and
+ * writes them behind the callers.
+ * <p>
+ * An update waits in memory until the next flush, replacing any update of the same
+ * connection still waiting, so a burst of token refreshes is written once. The
+ * buffer is flushed as a single bulk write every {@code window}, when it holds
+ * {@code maxPending} updates, and by {@link #shutdown()}. Every other operation
+ * first writes the updates of the user (or, for the reverse lookups, of the provider
+ * users) it concerns, so reads through this service always see the updates made
+ * through it. Updates are lost if the process dies before they are flushed.
+ * <p>
+ * A flush that fails puts its updates back in the buffer, unless newer updates of
+ * the same connections arrived meanwhile or the buffer is full, in which case they
+ * are dropped and counted. The failures of the periodic flushes are logged at
+ * warn level at most once a minute, with the number of failures in between.
+ *
+ * @author Carlo P. Micieli
+ */
+public class WriteBehindConnectionService implements ConnectionService {
+
+	private static final Logger log = LoggerFactory.getLogger(WriteBehindConnectionService.class);
+	private static final long FAILURE_LOG_INTERVAL = TimeUnit.MINUTES.toNanos(1);
+
+	private final ConnectionService connectionService;
+	private final int maxPending;
+	private final ScheduledExecutorService scheduler;
+
+	// the updates waiting, by user and connection key; guarded by itself
+	private final Map<String, Map<ConnectionKey, Connection<?>>> pending =
+			new HashMap<String, Map<ConnectionKey, Connection<?>>>();
+	private int pendingCount;
+	// the users whose updates are being written, guarded by pending
+	private Set<String> flushingUsers = Collections.emptySet();
+	// held while writing, one flush at a time
+	private final ReentrantLock flushLock = new ReentrantLock();
+
+	private volatile boolean shutdown;
+
+	private final AtomicLong coalescedCount = new AtomicLong();
+	private final AtomicLong flushedCount = new AtomicLong();
+	private final AtomicLong flushCount = new AtomicLong();
+	private final AtomicLong failedFlushCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final AtomicLong totalFlushNanos = new AtomicLong();
+	private volatile long maxFlushNanos;
+
+	// the periodic flush failures logged, only touched by the scheduler thread;
+	// no failure logged yet while failuresNotLogged is negative
+	private long lastFailureLogged;
+	private int failuresNotLogged = -1;
+
+	public WriteBehindConnectionService(ConnectionService connectionService,
+			long window, TimeUnit unit,
+			int maxPending) {
+
+		if (window <= 0) {
+			throw new IllegalArgumentException("window must be positive");
+		}
+		if (maxPending < 1) {
+			throw new IllegalArgumentException("maxPending must be positive");
+		}
+
+		this.connectionService = connectionService;
+		this.maxPending = maxPending;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "connection-write-behind");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					flush(null);
+				} catch (RuntimeException e) {
+					// counted, and retried with the next flush
+					logFailure(e);
+				}
+			}
+		}, window, window, unit);
+	}
+
+	/**
+	 * Stops the periodic flushes and writes the updates still waiting. The updates
+	 * made afterwards are written straight away.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		scheduler.shutdown();
+		try {
+			scheduler.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush(null);
+	}
+
+	/**
+	 * Writes all the updates waiting.
+	 */
+	public void flush() {
+		flush(null);
+	}
+
+	/**
+	 * Returns the number of updates waiting to be written.
+	 */
+	public int getQueueDepth() {
+		synchronized (pending) {
+			return pendingCount;
+		}
+	}
+
+	/**
+	 * Returns the number of updates replaced by a newer update of the same
+	 * connection before being written.
+	 */
+	public long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+
+	/**
+	 * Returns the number of updates written.
+	 */
+	public long getFlushedCount() {
+		return flushedCount.get();
+	}
+
+	/**
+	 * Returns the number of bulk writes made.
+	 */
+	public long getFlushCount() {
+		return flushCount.get();
+	}
+
+	/**
+	 * Returns the number of bulk writes that failed.
+	 */
+	public long getFailedFlushCount() {
+		return failedFlushCount.get();
+	}
+
+	/**
+	 * Returns the number of updates of failed flushes that could not be put back.
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	/**
+	 * Returns the average time taken by a successful bulk write, in milliseconds.
+	 */
+	public double getAverageFlushMillis() {
+		long flushes = flushCount.get();
+		return flushes == 0 ? 0 : totalFlushNanos.get() / 1e6 / flushes;
+	}
+
+	/**
+	 * Returns the longest time taken by a successful bulk write, in milliseconds.
+	 */
+	public double getMaxFlushMillis() {
+		return maxFlushNanos / 1e6;
+	}
+
+	@Override
+	public int getMaxRank(String userId, String providerId) {
+		flushUser(userId);
+		return connectionService.getMaxRank(userId, providerId);
+	}
+
+	@Override
+	public void create(String userId, Connection<?> userConn) {
+		flushUser(userId);
+		connectionService.create(userId, userConn);
+	}
+
+	@Override
+	public void create(String userId, Connection<?> userConn, int rank) {
+		flushUser(userId);
+		connectionService.create(userId, userConn, rank);
+	}
+
+	@Override
+	public ConnectionImportResult importConnections(List<UserConnection> connections) {
+		flushUsers(connections);
+		return connectionService.importConnections(connections);
+	}
+
+	@Override
+	public void update(String userId, Connection<?> userConn) {
+		if (shutdown) {
+			flushUser(userId);
+			connectionService.update(userId, userConn);
+			return;
+		}
+		if (buffer(userId, userConn)) {
+			return;
+		}
+		flush(null);
+		if (!buffer(userId, userConn)) {
+			// filled again by the other writers, written straight away
+			connectionService.update(userId, userConn);
+		}
+	}
+
+	@Override
+	public void updateConnections(List<UserConnection> connections) {
+		flushUsers(connections);
+		connectionService.updateConnections(connections);
+	}
+
+	@Override
+	public void remove(String userId, ConnectionKey connectionKey) {
+		flushUser(userId);
+		connectionService.remove(userId, connectionKey);
+	}
+
+	@Override
+	public void remove(String userId, String providerId) {
+		flushUser(userId);
+		connectionService.remove(userId, providerId);
+	}
+
+	@Override
+	public Connection<?> getPrimaryConnection(String userId, String providerId) {
+		flushUser(userId);
+		return connectionService.getPrimaryConnection(userId, providerId);
+	}
+
+	@Override
+	public Connection<?> getConnection(String userId, String providerId, String providerUserId) {
+		flushUser(userId);
+		return connectionService.getConnection(userId, providerId, providerUserId);
+	}
+
+	@Override
+	public List<Connection<?>> getConnections(String userId) {
+		flushUser(userId);
+		return connectionService.getConnections(userId);
+	}
+
+	@Override
+	public List<MongoConnection> getMongoConnections(String userId) {
+		flushUser(userId);
+		return connectionService.getMongoConnections(userId);
+	}
+
+	@Override
+	public List<Connection<?>> getConnections(String userId, String providerId) {
+		flushUser(userId);
+		return connectionService.getConnections(userId, providerId);
+	}
+
+	@Override
+	public List<Connection<?>> getConnections(String userId, MultiValueMap<String, String> providerUsers) {
+		flushUser(userId);
+		return connectionService.getConnections(userId, providerUsers);
+	}
+
+	@Override
+	public Set<String> getUserIds(String providerId, Set<String> providerUserIds) {
+		flushProviderUsers(providerId, providerUserIds);
+		return connectionService.getUserIds(providerId, providerUserIds);
+	}
+
+	@Override
+	public List<String> getUserIds(String providerId, String providerUserId) {
+		flushProviderUsers(providerId, Collections.singleton(providerUserId));
+		return connectionService.getUserIds(providerId, providerUserId);
+	}
+
+	@Override
+	public CloseableIterator<Connection<?>> streamConnections(String providerId, int batchSize) {
+		flush(null);
+		return connectionService.streamConnections(providerId, batchSize);
+	}
+
+	@Override
+	public CloseableIterator<Connection<?>> streamExpiringConnections(long expireTime, int batchSize) {
+		flush(null);
+		return connectionService.streamExpiringConnections(expireTime, batchSize);
+	}
+
+	@Override
+	public CloseableIterator<ConnectionKey> streamConnectionKeys(int batchSize) {
+		flush(null);
+		return connectionService.streamConnectionKeys(batchSize);
+	}
+
+	// helper methods
+
+	// false when the buffer is full
+	private boolean buffer(String userId, Connection<?> userConn) {
+		synchronized (pending) {
+			Map<ConnectionKey, Connection<?>> updates = pending.get(userId);
+			if (updates != null && updates.containsKey(userConn.getKey())) {
+				updates.put(userConn.getKey(), userConn);
+				coalescedCount.incrementAndGet();
+				return true;
+			}
+			if (pendingCount >= maxPending) {
+				return false;
+			}
+			if (updates == null) {
+				updates = new HashMap<ConnectionKey, Connection<?>>();
+				pending.put(userId, updates);
+			}
+			updates.put(userConn.getKey(), userConn);
+			pendingCount++;
+			return true;
+		}
+	}
+
+	private void flushUser(String userId) {
+		synchronized (pending) {
+			if (!pending.containsKey(userId) && !flushingUsers.contains(userId)) {
+				return;
+			}
+		}
+		flush(Collections.singleton(userId));
+	}
+
+	private void flushUsers(List<UserConnection> connections) {
+		Set<String> userIds = new HashSet<String>();
+		for (UserConnection uc : connections) {
+			userIds.add(uc.getUserId());
+		}
+		flush(userIds);
+	}
+
+	private void flushProviderUsers(String providerId, Collection<String> providerUserIds) {
+		Set<String> userIds = new HashSet<String>();
+		synchronized (pending) {
+			if (pendingCount == 0 && flushingUsers.isEmpty()) {
+				return;
+			}
+			// the updates being written may be for these provider users too
+			userIds.addAll(flushingUsers);
+			for (Entry<String, Map<ConnectionKey, Connection<?>>> entry : pending.entrySet()) {
+				for (ConnectionKey key : entry.getValue().keySet()) {
+					if (key.getProviderId().equals(providerId) && providerUserIds.contains(key.getProviderUserId())) {
+						userIds.add(entry.getKey());
+						break;
+					}
+				}
+			}
+		}
+		if (!userIds.isEmpty()) {
+			flush(userIds);
+		}
+	}
+
+	// writes the updates of the given users, or all of them
+	private void flush(Collection<String> userIds) {
+		flushLock.lock();
+		try {
+			List<UserConnection> batch = new ArrayList<UserConnection>();
+			synchronized (pending) {
+				Collection<String> users = userIds != null ? userIds : new ArrayList<String>(pending.keySet());
+				Set<String> flushing = new HashSet<String>();
+				for (String userId : users) {
+					Map<ConnectionKey, Connection<?>> updates = pending.remove(userId);
+					if (updates != null) {
+						for (Connection<?> userConn : updates.values()) {
+							batch.add(new UserConnection(userId, userConn));
+						}
+						pendingCount -= updates.size();
+						flushing.add(userId);
+					}
+				}
+				if (batch.isEmpty()) {
+					return;
+				}
+				flushingUsers = flushing;
+			}
+
+			long start = System.nanoTime();
+			try {
+				connectionService.updateConnections(batch);
+			} catch (RuntimeException e) {
+				failedFlushCount.incrementAndGet();
+				putBack(batch);
+				throw e;
+			} finally {
+				synchronized (pending) {
+					flushingUsers = Collections.emptySet();
+				}
+			}
+			long elapsed = System.nanoTime() - start;
+			flushCount.incrementAndGet();
+			flushedCount.addAndGet(batch.size());
+			totalFlushNanos.addAndGet(elapsed);
+			if (elapsed > maxFlushNanos) {
+				maxFlushNanos = elapsed;
+			}
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	private void putBack(List<UserConnection> batch) {
+		synchronized (pending) {
+			for (UserConnection uc : batch) {
+				Map<ConnectionKey, Connection<?>> updates = pending.get(uc.getUserId());
+				if (updates != null && updates.containsKey(uc.getConnection().getKey())) {
+					// superseded by a newer update
+					coalescedCount.incrementAndGet();
+					continue;
+				}
+				if (pendingCount >= maxPending) {
+					droppedCount.incrementAndGet();
+					continue;
+				}
+				if (updates == null) {
+					updates = new HashMap<ConnectionKey, Connection<?>>();
+					pending.put(uc.getUserId(), updates);
+				}
+				updates.put(uc.getConnection().getKey(), uc.getConnection());
+				pendingCount++;
+			}
+		}
+	}
+
+	private void logFailure(RuntimeException e) {
+		long now = System.nanoTime();
+		if (failuresNotLogged >= 0 && now - lastFailureLogged < FAILURE_LOG_INTERVAL) {
+			failuresNotLogged++;
+			log.debug("Flush of the pending updates failed", e);
+			return;
+		}
+		log.warn("Flush of the pending updates failed, " + getQueueDepth() + " updates waiting"
+				+ (failuresNotLogged > 0 ? ", " + failuresNotLogged + " failures not logged" : ""), e);
+		lastFailureLogged = now;
+		failuresNotLogged = 0;
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.security.crypto.encrypt.TextEncryptor;
+
+import uk.ac.ebi.ddi.social.connect.mongo.AesTextEncryptor.Algorithm;
+
+import static org.junit.Assert.*;
+
+/**
+ * The test class for the AES encryptor.
+ *
+ * @author Carlo P. Micieli
+ */
+public class AesTextEncryptorTests {
+
+	private static final String PASSWORD = "password";
+	private static final String SALT = "5c0744940b5c369b";
+	private static final String TOKEN = "b6ff8c7b2b5a3e7d4d3e1c2a9f8e7d6c \u00e9";
+
+	@Test
+	public void shouldReadAndWriteTheTextOfTheSpringEncryptors() {
+		assertCompatible(new AesTextEncryptor(PASSWORD, SALT, Algorithm.CBC), Encryptors.text(PASSWORD, SALT));
+		assertCompatible(new AesTextEncryptor(PASSWORD, SALT), Encryptors.delux(PASSWORD, SALT));
+	}
+
+	@Test
+	public void shouldReadAndWriteTheBytesOfTheSpringEncryptors() {
+		byte[] bytes = TOKEN.getBytes();
+		AesTextEncryptor gcm = new AesTextEncryptor(PASSWORD, SALT);
+		assertArrayEquals(bytes, gcm.decrypt(Encryptors.stronger(PASSWORD, SALT).encrypt(bytes)));
+		assertArrayEquals(bytes, Encryptors.stronger(PASSWORD, SALT).decrypt(gcm.encrypt(bytes)));
+		AesTextEncryptor cbc = new AesTextEncryptor(PASSWORD, SALT, Algorithm.CBC);
+		assertArrayEquals(bytes, cbc.decrypt(Encryptors.standard(PASSWORD, SALT).encrypt(bytes)));
+		assertArrayEquals(bytes, Encryptors.standard(PASSWORD, SALT).decrypt(cbc.encrypt(bytes)));
+	}
+
+	@Test
+	public void shouldUseANewIvForEachValue() {
+		AesTextEncryptor encryptor = new AesTextEncryptor(PASSWORD, SALT);
+		assertFalse(encryptor.encrypt(TOKEN).equals(encryptor.encrypt(TOKEN)));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void shouldRejectATamperedValue() {
+		AesTextEncryptor encryptor = new AesTextEncryptor(PASSWORD, SALT);
+		byte[] encrypted = encryptor.encrypt(TOKEN.getBytes());
+		encrypted[encrypted.length - 1] ^= 1;
+		encryptor.decrypt(encrypted);
+	}
+
+	@Test
+	public void shouldEncryptAndDecryptConcurrently() throws Exception {
+		final AesTextEncryptor encryptor = new AesTextEncryptor(PASSWORD, SALT);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+		try {
+			for (int i = 0; i < 64; i++) {
+				final String token = TOKEN + i;
+				futures.add(executor.submit(new Callable<Boolean>() {
+					public Boolean call() {
+						for (int j = 0; j < 100; j++) {
+							if (!token.equals(encryptor.decrypt(encryptor.encrypt(token)))) {
+								return false;
+							}
+						}
+						return true;
+					}
+				}));
+			}
+			for (Future<Boolean> future : futures) {
+				assertTrue(future.get(1, TimeUnit.MINUTES));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static void assertCompatible(TextEncryptor encryptor, TextEncryptor springEncryptor) {
+		assertEquals(TOKEN, encryptor.decrypt(springEncryptor.encrypt(TOKEN)));
+		assertEquals(TOKEN, springEncryptor.decrypt(encryptor.encrypt(TOKEN)));
+	}
+}
@@ -24,6 +24,10 @@ import org.springframework.core.env.Environment;
 import org.springframework.data.mongodb.MongoDbFactory;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.SimpleMongoDbFactory;
+import org.springframework.data.mongodb.core.convert.CustomConversions;
+import org.springframework.data.mongodb.core.convert.DefaultDbRefResolver;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
 import org.springframework.security.crypto.encrypt.Encryptors;
 import org.springframework.security.crypto.encrypt.TextEncryptor;
 import org.springframework.social.connect.ConnectionFactoryLocator;
@@ -52,7 +56,12 @@ public class ApplicationConfig {
 	}
 	
 	public @Bean MongoTemplate mongoTemplate() throws Exception {
-		MongoTemplate mongoTemplate = new MongoTemplate(mongoDbFactory());
+		MongoDbFactory mongoDbFactory = mongoDbFactory();
+		MappingMongoConverter converter = new MappingMongoConverter(
+				new DefaultDbRefResolver(mongoDbFactory), new MongoMappingContext());
+		converter.setCustomConversions(new CustomConversions(MongoConnectionCodec.getConvertersToRegister()));
+		converter.afterPropertiesSet();
+		MongoTemplate mongoTemplate = new MongoTemplate(mongoDbFactory, converter);
 		mongoTemplate.setWriteConcern(WriteConcern.SAFE);
 		return mongoTemplate;
 	}
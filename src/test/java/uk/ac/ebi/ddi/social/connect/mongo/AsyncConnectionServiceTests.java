@@ -0,0 +1,135 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.QueryTimeoutException;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * The test class for the asynchronous connection service.
+ *
+ * @author Carlo P. Micieli
+ */
+public class AsyncConnectionServiceTests {
+
+	private ConnectionService delegate;
+	private SimpleConnectionMetrics metrics;
+	private AsyncConnectionService service;
+
+	@Before
+	public void setup() {
+		delegate = mock(ConnectionService.class);
+		metrics = new SimpleConnectionMetrics();
+		service = new AsyncConnectionService(delegate, 2, 2);
+		service.setMetrics(metrics);
+	}
+
+	@After
+	public void tearDown() {
+		service.shutdown();
+	}
+
+	@Test
+	public void shouldRunTheCallsOnTheExecutor() throws Exception {
+		when(delegate.getUserIds("twitter", "@joey")).thenReturn(Arrays.asList("joey"));
+
+		assertEquals(Arrays.asList("joey"), service.getUserIds("twitter", "@joey").get(1, TimeUnit.MINUTES));
+		assertEquals(0, service.getPendingCount());
+	}
+
+	@Test
+	public void shouldFailWithTheErrorOfTheCall() throws Exception {
+		when(delegate.getMaxRank("joey", "twitter")).thenThrow(new DataAccessResourceFailureException("down"));
+
+		try {
+			service.getMaxRank("joey", "twitter").get(1, TimeUnit.MINUTES);
+			fail("Expected the error of the call");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof DataAccessResourceFailureException);
+		}
+	}
+
+	@Test
+	public void shouldRejectTheCallsOverThePendingLimit() throws Exception {
+		final List<Runnable> queued = new ArrayList<Runnable>();
+		AsyncConnectionService bounded = new AsyncConnectionService(delegate, new Executor() {
+			public void execute(Runnable command) {
+				queued.add(command);
+			}
+		}, 1);
+		bounded.setMetrics(metrics);
+		try {
+			bounded.getUserIds("twitter", "@joey");
+			try {
+				bounded.getUserIds("twitter", "@dee dee").get();
+				fail("Expected the call to be rejected");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof RejectedExecutionException);
+			}
+			assertEquals(1, bounded.getRejectedCount());
+			assertEquals(1, bounded.getPendingCount());
+			assertEquals(1, metrics.getErrorCount("getUserIds"));
+
+			queued.get(0).run();
+			assertEquals(0, bounded.getPendingCount());
+		} finally {
+			bounded.shutdown();
+		}
+	}
+
+	@Test
+	public void shouldFailAndInterruptTheCallsRunningPastTheTimeout() throws Exception {
+		final CountDownLatch interrupted = new CountDownLatch(1);
+		when(delegate.getUserIds("twitter", "@joey")).thenAnswer(new Answer<List<String>>() {
+			public List<String> answer(InvocationOnMock invocation) {
+				try {
+					Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+				} catch (InterruptedException e) {
+					interrupted.countDown();
+				}
+				return Arrays.asList("joey");
+			}
+		});
+		service.setTimeout(50, TimeUnit.MILLISECONDS);
+
+		try {
+			service.getUserIds("twitter", "@joey").get(1, TimeUnit.MINUTES);
+			fail("Expected the call to time out");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof QueryTimeoutException);
+		}
+		assertTrue(interrupted.await(1, TimeUnit.MINUTES));
+		assertEquals(1, service.getTimedOutCount());
+		assertEquals(1, metrics.getErrorCount("getUserIds"));
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.List;
+
+import org.bson.BasicBSONEncoder;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.security.crypto.encrypt.TextEncryptor;
+import org.springframework.social.connect.ConnectionData;
+
+import com.mongodb.DBObject;
+
+import static org.junit.Assert.*;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * The test class for the tokens stored as binary.
+ *
+ * @author Carlo P. Micieli
+ */
+public class BinaryTokenConverterTests extends SpringTest {
+
+	private static final String HEX_TOKEN = "b6ff8c7b2b5a3e7d4d3e1c2a9f8e7d6c";
+
+	private @Autowired MongoTemplate mongoOps;
+	private @Autowired MongoConnectionService service;
+
+	@After
+	public void tearDown() {
+		service.setBinaryTokens(false);
+		mongoOps.remove(new Query(), MongoConnection.class);
+		mongoOps.remove(new Query(), MongoConnectionRank.class);
+	}
+
+	@Test
+	public void shouldWriteTheHexTokensAsBinary() {
+		service.setBinaryTokens(true);
+		service.create("joey", connection("@joey_ramones", "not hex"));
+
+		DBObject dbo = document("@joey_ramones");
+		assertArrayEquals((byte[]) MongoConnectionCodec.writeToken(HEX_TOKEN, true), (byte[]) dbo.get("accessToken"));
+		assertEquals(16, ((byte[]) dbo.get("accessToken")).length);
+		assertEquals("not hex", dbo.get("secret"));
+
+		MongoConnection mc = service.getMongoConnections("joey").get(0);
+		assertEquals(HEX_TOKEN, mc.getAccessToken());
+		assertEquals("not hex", mc.getSecret());
+		assertNull(mc.getRefreshToken());
+
+		service.update("joey", connection("@joey_ramones", HEX_TOKEN));
+		assertTrue(document("@joey_ramones").get("secret") instanceof byte[]);
+	}
+
+	@Test
+	public void shouldConvertTheDocumentsWrittenAsStrings() {
+		service.create("joey", connection("@joey_ramones", HEX_TOKEN));
+		service.create("joey", connection("@JeffreyHyman", "not hex"));
+		service.create("tommy", connection("@tommy_ramone", HEX_TOKEN));
+		assertTrue(document("@joey_ramones").get("accessToken") instanceof String);
+
+		BinaryTokenConverter converter = new BinaryTokenConverter(mongoOps);
+		converter.setBatchSize(2);
+		assertEquals(3, converter.convert());
+
+		for (String providerUserId : new String[] { "@joey_ramones", "@JeffreyHyman", "@tommy_ramone" }) {
+			assertTrue(document(providerUserId).get("accessToken") instanceof byte[]);
+		}
+		assertTrue(document("@joey_ramones").get("secret") instanceof byte[]);
+		assertEquals("not hex", document("@JeffreyHyman").get("secret"));
+
+		List<MongoConnection> connections = service.getMongoConnections("joey");
+		assertEquals(HEX_TOKEN, connections.get(0).getAccessToken());
+		assertEquals("not hex", connections.get(1).getSecret());
+
+		// only the tokens that are not hex are left, and they are not converted again
+		assertEquals(0, converter.convert());
+	}
+
+	@Test
+	public void shouldReadBackTheTokensUnchanged() {
+		for (String token : new String[] { HEX_TOKEN, "B6FF", "abc", "", "not hex" }) {
+			assertEquals(token, MongoConnectionCodec.readToken(MongoConnectionCodec.writeToken(token, true)));
+		}
+	}
+
+	@Test
+	public void shouldHalveTheSizeOfTheEncryptedTokens() {
+		TextEncryptor encryptor = Encryptors.text("benchmark", "5c0744940b5c369b");
+		MongoConnection mc = new MongoConnection();
+		mc.setUserId("joey");
+		mc.setProviderId("twitter");
+		mc.setProviderUserId("@joey_ramones");
+		mc.setRank(1);
+		mc.setDisplayName("joey r.");
+		mc.setAccessToken(encryptor.encrypt("b6ff8c7b2b5a3e7d4d3e1c2a9f8e7d6c"));
+		mc.setSecret(encryptor.encrypt("5a4b3c2d1e0f9e8d7c6b5a4b3c2d1e0f"));
+		mc.setRefreshToken(encryptor.encrypt("0f1e2d3c4b5a6978e7d6c5b4a3928170"));
+		mc.setExpireTime(1500000000000L);
+
+		int stringSize = new BasicBSONEncoder().encode(MongoConnectionCodec.write(mc, false)).length;
+		int binarySize = new BasicBSONEncoder().encode(MongoConnectionCodec.write(mc, true)).length;
+		// a hex string takes two bytes for each byte of the token, as well as a trailing
+		// zero where the binary has its subtype
+		int hexLength = mc.getAccessToken().length() + mc.getSecret().length() + mc.getRefreshToken().length();
+		assertEquals(hexLength / 2, stringSize - binarySize);
+		assertTrue("Not a third smaller: " + stringSize + " -> " + binarySize, binarySize * 3 < stringSize * 2);
+	}
+
+	private DBObject document(String providerUserId) {
+		return mongoOps.getCollection("connections").findOne(
+				query(where("providerUserId").is(providerUserId)).getQueryObject());
+	}
+
+	private static FakeConnection<FakeProvider> connection(String providerUserId, String secret) {
+		return new FakeConnection<FakeProvider>(new ConnectionData("twitter", providerUserId, providerUserId,
+				null, null, HEX_TOKEN, secret, null, null));
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+
+import static org.junit.Assert.*;
+
+/**
+ * The test class for the Bloom filter in front of the reverse lookups.
+ *
+ * @author Carlo P. Micieli
+ */
+public class BloomFilterConnectionServiceTests extends SpringTest {
+
+	private @Autowired MongoTemplate mongoOps;
+	private @Autowired MongoConnectionService mongoService;
+
+	private final FakeConnectionFactory<FakeProvider> factory =
+			new FakeConnectionFactory<FakeProvider>("fake", null, null);
+
+	private BloomFilterConnectionService service;
+
+	@Before
+	public void setup() {
+		mongoService.create("joey", factory.createConnection("joey.ramones", "joey r."));
+		mongoService.create("johnny", factory.createConnection("johnny.ramones", "johnny r."));
+		service = new BloomFilterConnectionService(mongoService, 1000, 0.001);
+	}
+
+	@After
+	public void tearDown() {
+		mongoOps.remove(new Query(), MongoConnection.class);
+		mongoOps.remove(new Query(), MongoConnectionRank.class);
+	}
+
+	@Test
+	public void shouldSkipTheLookupsOfUnknownIdentities() {
+		assertEquals(Arrays.asList("joey"), service.getUserIds("fake", "joey.ramones"));
+		assertEquals(0, service.getUserIds("fake", "dee.dee").size());
+		assertEquals(new HashSet<String>(Arrays.asList("johnny")),
+				service.getUserIds("fake", new HashSet<String>(Arrays.asList("johnny.ramones", "marky"))));
+
+		assertEquals(2, service.getSkippedLookupCount());
+		assertEquals(0, service.getFalsePositiveCount());
+		assertTrue(service.getMemoryUsage() > 0);
+		assertTrue(service.getLastRebuildMillis() >= 0);
+	}
+
+	@Test
+	public void shouldFindTheConnectionsCreatedAfterTheRebuild() {
+		service.create("dee", factory.createConnection("dee.dee", "dee dee"));
+
+		List<String> userIds = service.getUserIds("fake", "dee.dee");
+		assertEquals(Arrays.asList("dee"), userIds);
+	}
+
+	@Test
+	public void shouldKeepRemovedIdentitiesUntilTheNextRebuild() {
+		service.remove("joey", "fake");
+
+		assertEquals(0, service.getUserIds("fake", "joey.ramones").size());
+		assertEquals(1, service.getFalsePositiveCount());
+		assertEquals(1, service.getRemovalCount());
+
+		service.rebuild();
+		assertEquals(0, service.getUserIds("fake", "joey.ramones").size());
+		assertEquals(1, service.getSkippedLookupCount());
+		assertEquals(0, service.getRemovalCount());
+	}
+
+	@Test
+	public void shouldLookUpEverythingOnceInvalidated() {
+		mongoService.create("dee", factory.createConnection("dee.dee", "dee dee"));
+		service.invalidate();
+
+		assertEquals(Arrays.asList("dee"), service.getUserIds("fake", "dee.dee"));
+		assertEquals(0, service.getUserIds("fake", "marky").size());
+		assertEquals(0, service.getSkippedLookupCount());
+
+		service.rebuild();
+		assertEquals(Arrays.asList("dee"), service.getUserIds("fake", "dee.dee"));
+		assertEquals(0, service.getUserIds("fake", "marky").size());
+		assertEquals(1, service.getSkippedLookupCount());
+	}
+
+	@Test
+	public void shouldSeeTheOutsideWritesAfterARefresh() throws InterruptedException {
+		BloomFilterConnectionService refreshed =
+				new BloomFilterConnectionService(mongoService, 1000, 0.001, 50, TimeUnit.MILLISECONDS);
+		try {
+			assertEquals(0, refreshed.getUserIds("fake", "dee.dee").size());
+			mongoService.create("dee", factory.createConnection("dee.dee", "dee dee"));
+
+			long deadline = System.currentTimeMillis() + 10000;
+			while (refreshed.getUserIds("fake", "dee.dee").isEmpty()
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(20);
+			}
+			assertEquals(Arrays.asList("dee"), refreshed.getUserIds("fake", "dee.dee"));
+		} finally {
+			refreshed.shutdown();
+		}
+	}
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionKey;
+
+import static org.junit.Assert.*;
+
+/**
+ * The test class for the read-through cache of the user connections.
+ *
+ * @author Carlo P. Micieli
+ */
+public class CachingConnectionServiceTests {
+
+	private final FakeConnectionFactory<FakeProvider> factory =
+			new FakeConnectionFactory<FakeProvider>("fake", null, null);
+
+	private ConnectionConverter converter;
+	private InMemoryConnectionService delegate;
+	private CachingConnectionService service;
+
+	@Before
+	public void setup() {
+		converter = new ConnectionConverter(new FakeConnectionFactoryLocator(), Encryptors.noOpText());
+		delegate = new InMemoryConnectionService(converter);
+		delegate.create("joey", factory.createConnection("twitter", "@joey_ramones", "joey r."));
+		delegate.create("johnny", factory.createConnection("facebook", "JohnnyRamones", "johnny r."));
+		delegate.create("tommy", factory.createConnection("twitter", "@tommy_ramone", "tommy r."));
+		service = new CachingConnectionService(delegate, converter, 10, 1, TimeUnit.MINUTES);
+	}
+
+	@Test
+	public void shouldCountTheHitsAndTheMisses() {
+		assertEquals(1, service.getConnections("joey").size());
+		assertEquals("@joey_ramones", service.getPrimaryConnection("joey", "twitter").getKey().getProviderUserId());
+		assertEquals(2, service.getMaxRank("joey", "twitter"));
+		assertNull(service.getConnection("joey", "facebook", "joey.ramones"));
+
+		assertEquals(1, service.getMissCount());
+		assertEquals(3, service.getHitCount());
+		assertEquals(0, service.getEvictionCount());
+		assertEquals(1, service.getSize());
+	}
+
+	@Test
+	public void shouldEvictTheLeastRecentlyUsedUsers() {
+		service = new CachingConnectionService(delegate, converter, 2, 1, TimeUnit.MINUTES);
+		service.getConnections("joey");
+		service.getConnections("johnny");
+		service.getConnections("joey");
+		service.getConnections("tommy");
+
+		assertEquals(2, service.getSize());
+		assertEquals(1, service.getEvictionCount());
+
+		service.getConnections("joey");
+		assertEquals(3, service.getMissCount());
+		service.getConnections("johnny");
+		assertEquals(4, service.getMissCount());
+		assertEquals(2, service.getEvictionCount());
+	}
+
+	@Test
+	public void shouldExpireTheEntriesAfterTheirTimeToLive() throws InterruptedException {
+		service = new CachingConnectionService(delegate, converter, 10, 50, TimeUnit.MILLISECONDS);
+		service.getConnections("joey");
+		service.getConnections("joey");
+		assertEquals(1, service.getHitCount());
+
+		Thread.sleep(100);
+		service.getConnections("joey");
+		assertEquals(2, service.getMissCount());
+		assertEquals(1, service.getEvictionCount());
+	}
+
+	@Test
+	public void shouldInvalidateTheUserOnCreate() {
+		service.getConnections("joey");
+		service.create("joey", factory.createConnection("facebook", "joey.ramones", "joey r."));
+		assertEquals(2, service.getConnections("joey").size());
+
+		service.create("joey", factory.createConnection("twitter", "@JeffreyHyman", "joey r."), 3);
+		assertEquals(3, service.getConnections("joey").size());
+		assertEquals(3, service.getMissCount());
+	}
+
+	@Test
+	public void shouldInvalidateTheUserOnUpdate() {
+		service.getConnections("joey");
+		service.update("joey", connection("@joey_ramones", "jeffrey h."));
+		assertEquals("jeffrey h.", service.getMongoConnections("joey").get(0).getDisplayName());
+
+		service.updateConnections(Arrays.asList(new UserConnection("joey", connection("@joey_ramones", "joey"))));
+		assertEquals("joey", service.getMongoConnections("joey").get(0).getDisplayName());
+		assertEquals(3, service.getMissCount());
+	}
+
+	@Test
+	public void shouldInvalidateTheUsersOfAnImport() {
+		service.getConnections("joey");
+		service.getConnections("johnny");
+		service.importConnections(Arrays.asList(
+				new UserConnection("joey", factory.createConnection("facebook", "joey.ramones", "joey r.")),
+				new UserConnection("johnny", factory.createConnection("twitter", "@johnny", "johnny r."))));
+
+		assertEquals(2, service.getConnections("joey").size());
+		assertEquals(2, service.getConnections("johnny").size());
+		assertEquals(4, service.getMissCount());
+	}
+
+	@Test
+	public void shouldInvalidateTheUserOnRemove() {
+		service.create("joey", factory.createConnection("facebook", "joey.ramones", "joey r."));
+		service.getConnections("joey");
+		service.remove("joey", new ConnectionKey("facebook", "joey.ramones"));
+		assertEquals(1, service.getConnections("joey").size());
+
+		service.remove("joey", "twitter");
+		assertTrue(service.getConnections("joey").isEmpty());
+		assertEquals(3, service.getMissCount());
+	}
+
+	@Test
+	public void shouldNotCacheALoadRacingWithAWrite() throws Exception {
+		final CountDownLatch loading = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		InMemoryConnectionService blocking = new InMemoryConnectionService(converter) {
+			@Override
+			public List<MongoConnection> getMongoConnections(String userId) {
+				List<MongoConnection> connections = super.getMongoConnections(userId);
+				if (loading.getCount() > 0) {
+					loading.countDown();
+					await(release);
+				}
+				return connections;
+			}
+		};
+		blocking.create("joey", factory.createConnection("twitter", "@joey_ramones", "joey r."));
+		service = new CachingConnectionService(blocking, converter, 10, 1, TimeUnit.MINUTES);
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<List<Connection<?>>> stale = executor.submit(new Callable<List<Connection<?>>>() {
+				public List<Connection<?>> call() {
+					return service.getConnections("joey");
+				}
+			});
+			assertTrue(loading.await(10, TimeUnit.SECONDS));
+			// the write lands while the load holds the connections read before it
+			service.create("joey", factory.createConnection("facebook", "joey.ramones", "joey r."));
+			release.countDown();
+
+			assertEquals(1, stale.get(10, TimeUnit.SECONDS).size());
+			assertEquals(0, service.getSize());
+			assertEquals(2, service.getConnections("joey").size());
+			assertEquals(2, service.getMissCount());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	// helper methods
+
+	private Connection<?> connection(String providerUserId, String displayName) {
+		return new FakeConnection<FakeProvider>(new ConnectionData("twitter", providerUserId, displayName,
+				null, null, "accessToken", null, null, null));
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
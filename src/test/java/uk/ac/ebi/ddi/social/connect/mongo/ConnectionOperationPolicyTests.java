@@ -0,0 +1,136 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.CollectionCallback;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * The test class for the per operation settings applied by the connection service.
+ *
+ * @author Carlo P. Micieli
+ */
+public class ConnectionOperationPolicyTests extends SpringTest {
+
+	private @Autowired MongoTemplate mongoTemplate;
+	private @Autowired ConnectionConverter converter;
+
+	private final FakeConnectionFactory<FakeProvider> factory =
+			new FakeConnectionFactory<FakeProvider>("fake", null, null);
+
+	private MongoTemplate template;
+	private DBCollection collection;
+	private DBCursor cursor;
+	private ConnectionOperationPolicy policy;
+	private MongoConnectionService service;
+
+	@Before
+	@SuppressWarnings("unchecked")
+	public void setup() {
+		collection = mock(DBCollection.class);
+		cursor = mock(DBCursor.class);
+		when(collection.getName()).thenReturn("connections");
+		when(collection.find(any(DBObject.class), any(DBObject.class))).thenReturn(cursor);
+		when(collection.findAndModify(any(DBObject.class), any(DBObject.class), any(DBObject.class), anyBoolean(),
+				any(DBObject.class), anyBoolean(), anyBoolean(), anyLong(), any(TimeUnit.class),
+				any(WriteConcern.class))).thenReturn(new BasicDBObject("userId", "joey")
+						.append("providerId", "fake").append("rank", 1));
+
+		// the template runs every callback against the mocked collection
+		template = spy(mongoTemplate);
+		doAnswer(new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				return ((CollectionCallback<?>) invocation.getArguments()[1]).doInCollection(collection);
+			}
+		}).when(template).execute(any(Class.class), any(CollectionCallback.class));
+
+		policy = new ConnectionOperationPolicy();
+		policy.setWriteConcern(ConnectionOperation.CREATE, WriteConcern.MAJORITY);
+		policy.setWriteConcern(ConnectionOperation.UPDATE, WriteConcern.UNACKNOWLEDGED);
+		policy.setMaxTime(ConnectionOperation.CREATE, 200, TimeUnit.MILLISECONDS);
+		policy.setReadPreference(ConnectionOperation.PRIMARY_LOOKUP, ReadPreference.primaryPreferred());
+		policy.setMaxTime(ConnectionOperation.PRIMARY_LOOKUP, 100, TimeUnit.MILLISECONDS);
+		policy.setReadPreference(ConnectionOperation.REVERSE_LOOKUP, ReadPreference.secondary());
+		policy.setMaxTime(ConnectionOperation.REVERSE_LOOKUP, 1, TimeUnit.SECONDS);
+
+		service = new MongoConnectionService(template, converter);
+		service.setOperationPolicy(policy);
+	}
+
+	@Test
+	public void shouldApplyTheWriteConcernOfEachOperation() {
+		service.create("joey", factory.createConnection("joey.ramones", "joey r."));
+		verify(collection).findAndModify(any(DBObject.class), any(DBObject.class), any(DBObject.class),
+				eq(false), any(DBObject.class), eq(true), eq(true), eq(200L), eq(TimeUnit.MILLISECONDS),
+				eq(WriteConcern.MAJORITY));
+		verify(collection).insert(any(DBObject.class), eq(WriteConcern.MAJORITY));
+
+		service.update("joey", factory.createConnection("joey.ramones", "joey r."));
+		verify(collection).update(any(DBObject.class), any(DBObject.class), eq(true), eq(false),
+				eq(WriteConcern.UNACKNOWLEDGED));
+
+		assertTemplateNotChanged();
+	}
+
+	@Test
+	public void shouldFallBackToTheWriteConcernOfTheTemplate() {
+		service.remove("joey", "fake");
+
+		// as set on the template by the application config
+		verify(collection, times(2)).remove(any(DBObject.class), eq(WriteConcern.SAFE));
+		assertTemplateNotChanged();
+	}
+
+	@Test
+	public void shouldApplyTheReadPreferenceAndTimeLimitOfEachLookup() {
+		service.getConnections("joey");
+		verify(cursor).setReadPreference(ReadPreference.primaryPreferred());
+		verify(cursor).maxTime(100, TimeUnit.MILLISECONDS);
+
+		service.getUserIds("fake", "joey.ramones");
+		verify(cursor).setReadPreference(ReadPreference.secondary());
+		verify(cursor).maxTime(1000, TimeUnit.MILLISECONDS);
+
+		assertTemplateNotChanged();
+	}
+
+	// helper methods
+
+	private void assertTemplateNotChanged() {
+		verify(template, never()).setWriteConcern(any(WriteConcern.class));
+		verify(template, never()).setReadPreference(any(ReadPreference.class));
+		verify(collection, never()).setWriteConcern(any(WriteConcern.class));
+		verify(collection, never()).setReadPreference(any(ReadPreference.class));
+	}
+}
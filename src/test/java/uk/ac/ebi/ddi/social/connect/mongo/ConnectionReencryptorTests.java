@@ -0,0 +1,161 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.security.crypto.encrypt.TextEncryptor;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * The test class for the key rotation of the connection tokens.
+ *
+ * @author Carlo P. Micieli
+ */
+public class ConnectionReencryptorTests extends SpringTest {
+
+	private @Autowired MongoTemplate mongoOps;
+	private @Autowired MongoConnectionService service;
+
+	private final Map<String, TextEncryptor> keys = new HashMap<String, TextEncryptor>();
+	private ConnectionConverter converter;
+	private int rank;
+
+	@Before
+	public void setup() {
+		keys.put("2017-01", Encryptors.text("first password", "5c0744940b5c369b"));
+		keys.put("2017-06", Encryptors.delux("second password", "8e0f0cd6a3b9e4ba"));
+
+		// connections holding the tokens of their data
+		converter = new ConnectionConverter(new FakeConnectionFactoryLocator() {
+			@Override
+			public ConnectionFactory<?> getConnectionFactory(String providerId) {
+				return new FakeConnectionFactory<Object>(providerId, null, null) {
+					@Override
+					public Connection<Object> createConnection(ConnectionData data) {
+						return new FakeConnection<Object>(data);
+					}
+				};
+			}
+		}, Encryptors.noOpText());
+	}
+
+	@After
+	public void tearDown() {
+		mongoOps.remove(new Query(), MongoConnection.class);
+		mongoOps.remove(new Query(), MongoConnectionRank.class);
+	}
+
+	@Test
+	public void shouldDecryptWithTheKeyOfEachDocument() {
+		MongoConnection legacy = converter.convert(connection("legacy"));
+		converter.setEncryptionKeys(keys, "2017-01");
+		MongoConnection first = converter.convert(connection("first"));
+		converter.setEncryptionKeys(keys, "2017-06");
+		MongoConnection second = converter.convert(connection("second"));
+
+		assertNull(legacy.getKeyId());
+		assertEquals("legacy-access", legacy.getAccessToken());
+		assertEquals("2017-01", first.getKeyId());
+		assertEquals("2017-06", second.getKeyId());
+		assertEquals("first-access", converter.convert(first).createData().getAccessToken());
+		assertEquals("second-secret", converter.convert(second).createData().getSecret());
+		assertEquals("legacy-refresh", converter.convert(legacy).createData().getRefreshToken());
+
+		keys.remove("2017-01");
+		converter.setEncryptionKeys(keys, "2017-06");
+		try {
+			converter.convert(first);
+			fail("Expected the key to be missing");
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage().contains("2017-01"));
+		}
+	}
+
+	@Test
+	public void shouldReencryptTheDocumentsOfTheOlderKeys() {
+		List<MongoConnection> cnns = new ArrayList<MongoConnection>();
+		cnns.add(document(converter.convert(connection("legacy"))));
+		converter.setEncryptionKeys(keys, "2017-01");
+		for (int i = 0; i < 4; i++) {
+			cnns.add(document(converter.convert(connection("first-" + i))));
+		}
+		converter.setEncryptionKeys(keys, "2017-06");
+		cnns.add(document(converter.convert(connection("second"))));
+		assertEquals(6, service.importMongoConnections(cnns));
+
+		ConnectionReencryptor reencryptor = new ConnectionReencryptor(mongoOps, converter);
+		reencryptor.setBatchSize(2);
+		assertEquals(5, reencryptor.reencrypt());
+
+		List<MongoConnection> reencrypted = service.getMongoConnections("joey");
+		assertEquals(6, reencrypted.size());
+		for (MongoConnection mc : reencrypted) {
+			assertEquals("2017-06", mc.getKeyId());
+			String name = mc.getProviderUserId();
+			ConnectionData data = converter.convert(mc).createData();
+			assertEquals(name + "-access", data.getAccessToken());
+			assertEquals(name + "-secret", data.getSecret());
+			assertEquals(name + "-refresh", data.getRefreshToken());
+		}
+		assertEquals(0, reencryptor.reencrypt());
+	}
+
+	@Test
+	public void shouldKeepUnderTheMaxRate() {
+		converter.setEncryptionKeys(keys, "2017-01");
+		List<MongoConnection> cnns = new ArrayList<MongoConnection>();
+		for (int i = 0; i < 10; i++) {
+			cnns.add(document(converter.convert(connection("first-" + i))));
+		}
+		service.importMongoConnections(cnns);
+		converter.setEncryptionKeys(keys, "2017-06");
+
+		ConnectionReencryptor reencryptor = new ConnectionReencryptor(mongoOps, converter);
+		reencryptor.setBatchSize(2);
+		reencryptor.setMaxDocumentsPerSecond(50);
+		long start = System.nanoTime();
+		assertEquals(10, reencryptor.reencrypt());
+		// the last batch written after the 8 documents before it, at 50 per second
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(160));
+	}
+
+	private MongoConnection document(MongoConnection mc) {
+		mc.setUserId("joey");
+		mc.setRank(++rank);
+		return mc;
+	}
+
+	private static Connection<?> connection(String name) {
+		return new FakeConnection<Object>(new ConnectionData("twitter", name, name, null, null,
+				name + "-access", name + "-secret", name + "-refresh", null));
+	}
+}
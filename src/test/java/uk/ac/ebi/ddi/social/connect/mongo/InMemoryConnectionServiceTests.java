@@ -0,0 +1,169 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * The test class for the in-memory connection service.
+ *
+ * @author Carlo P. Micieli
+ */
+public class InMemoryConnectionServiceTests {
+
+	private final FakeConnectionFactory<FakeProvider> factory =
+			new FakeConnectionFactory<FakeProvider>("fake", null, null);
+
+	private InMemoryConnectionService service;
+
+	@Before
+	public void setup() {
+		service = new InMemoryConnectionService(
+				new ConnectionConverter(new FakeConnectionFactoryLocator(), Encryptors.noOpText()));
+		service.create("joey", factory.createConnection("twitter", "@JeffreyHyman", "joey r."), 2);
+		service.create("joey", factory.createConnection("twitter", "@joey_ramones", "joey r."), 1);
+		service.create("joey", factory.createConnection("facebook", "joey.ramones", "joey r."), 1);
+		service.create("johnny", factory.createConnection("facebook", "JohnnyRamones", "johnny r."), 1);
+		service.create("tommy", factory.createConnection("twitter", "@joey_ramones", "joey r."), 1);
+	}
+
+	@Test
+	public void shouldReturnTheConnectionsInProviderAndRankOrder() {
+		assertEquals("[{facebook, joey.ramones, joey r.}, {twitter, @joey_ramones, joey r.}, {twitter, @JeffreyHyman, joey r.}]",
+				service.getConnections("joey").toString());
+
+		MultiValueMap<String, String> providerUsers = new LinkedMultiValueMap<String, String>();
+		providerUsers.put("twitter", Arrays.asList("@JeffreyHyman", "@joey_ramones"));
+		assertEquals("[{twitter, @joey_ramones, joey r.}, {twitter, @JeffreyHyman, joey r.}]",
+				service.getConnections("joey", providerUsers).toString());
+		assertEquals("@joey_ramones", service.getPrimaryConnection("joey", "twitter").getKey().getProviderUserId());
+	}
+
+	@Test
+	public void shouldReturnTheUserIds() {
+		assertEquals("[joey, tommy]", service.getUserIds("twitter", "@joey_ramones").toString());
+		assertEquals(new HashSet<String>(Arrays.asList("joey", "johnny")), service.getUserIds("facebook",
+				new HashSet<String>(Arrays.asList("joey.ramones", "JohnnyRamones", "DeeDeeRamone"))));
+
+		service.remove("tommy", new ConnectionKey("twitter", "@joey_ramones"));
+		assertEquals("[joey]", service.getUserIds("twitter", "@joey_ramones").toString());
+	}
+
+	@Test
+	public void shouldRejectTheDuplicatesOfTheUniqueIndexes() {
+		try {
+			service.create("joey", factory.createConnection("twitter", "@joey_ramones", "joey r."));
+			fail("Duplicate connection created");
+		} catch (DuplicateKeyException e) {
+			assertTrue(e.getMessage().contains("connections_primary_idx"));
+		}
+		try {
+			service.create("joey", factory.createConnection("twitter", "@joey", "joey r."), 2);
+			fail("Duplicate rank created");
+		} catch (DuplicateKeyException e) {
+			assertTrue(e.getMessage().contains("connections_rank_idx"));
+		}
+	}
+
+	@Test
+	public void shouldAllocateTheRanksAsTheMongoCounter() {
+		service.create("joey", factory.createConnection("twitter", "@joey", "joey r."));
+		assertEquals(4, service.getMaxRank("joey", "twitter"));
+
+		service.remove("joey", "twitter");
+		service.create("joey", factory.createConnection("twitter", "@joey", "joey r."));
+		assertEquals(2, service.getMaxRank("joey", "twitter"));
+		assertNotNull(service.getPrimaryConnection("joey", "twitter"));
+	}
+
+	@Test
+	public void shouldUpdateKeepingTheRank() {
+		ConnectionData data = new ConnectionData("twitter", "@JeffreyHyman", "jeffrey h.",
+				null, null, "newAccessToken", null, null, 42L);
+		service.update("joey", new FakeConnection<FakeProvider>(data));
+
+		MongoConnection mc = service.getMongoConnections("joey").get(2);
+		assertEquals("@JeffreyHyman", mc.getProviderUserId());
+		assertEquals(2, mc.getRank());
+		assertEquals("jeffrey h.", mc.getDisplayName());
+		assertEquals("newAccessToken", mc.getAccessToken());
+		assertEquals(Long.valueOf(42L), mc.getExpireTime());
+	}
+
+	@Test
+	public void shouldReportTheDuplicatesOfAnImport() {
+		UserConnection duplicate = new UserConnection("johnny",
+				factory.createConnection("facebook", "JohnnyRamones", "johnny r."));
+		ConnectionImportResult result = service.importConnections(Arrays.asList(
+				new UserConnection("deedee", factory.createConnection("twitter", "@deedee", "dee dee r.")),
+				duplicate,
+				new UserConnection("deedee", factory.createConnection("twitter", "@douglas", "dee dee r."))));
+
+		assertEquals(2, result.getImportedCount());
+		assertEquals(Arrays.asList(duplicate), result.getDuplicates());
+		assertEquals(3, service.getMaxRank("deedee", "twitter"));
+	}
+
+	@Test
+	public void shouldRankTheImportAfterTheStoredConnections() {
+		ConnectionImportResult result = service.importConnections(Arrays.asList(
+				new UserConnection("joey", factory.createConnection("twitter", "@joey", "joey r."))));
+
+		assertEquals(1, result.getImportedCount());
+		assertTrue(result.getDuplicates().isEmpty());
+		assertEquals(4, service.getMaxRank("joey", "twitter"));
+	}
+
+	@Test
+	public void shouldStreamTheConnectionKeysInIndexOrder() {
+		List<String> keys = new ArrayList<String>();
+		CloseableIterator<ConnectionKey> it = service.streamConnectionKeys(2);
+		try {
+			while (it.hasNext()) {
+				ConnectionKey key = it.next();
+				keys.add(key.getProviderId() + "/" + key.getProviderUserId());
+			}
+		} finally {
+			it.close();
+		}
+		assertEquals(Arrays.asList("facebook/JohnnyRamones", "facebook/joey.ramones",
+				"twitter/@JeffreyHyman", "twitter/@joey_ramones", "twitter/@joey_ramones"), keys);
+
+		CloseableIterator<Connection<?>> connections = service.streamConnections("facebook", 10);
+		int count = 0;
+		while (connections.hasNext()) {
+			assertEquals("facebook", connections.next().getKey().getProviderId());
+			count++;
+		}
+		assertEquals(2, count);
+	}
+}
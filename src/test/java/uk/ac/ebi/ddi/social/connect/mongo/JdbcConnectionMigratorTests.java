@@ -0,0 +1,177 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.security.crypto.encrypt.TextEncryptor;
+
+import static org.junit.Assert.*;
+
+/**
+ * The test class for the migration of the JDBC connections table.
+ *
+ * @author Carlo P. Micieli
+ */
+public class JdbcConnectionMigratorTests extends SpringTest {
+
+	private static final int ROWS = 25;
+
+	private @Autowired MongoTemplate mongoOps;
+	private @Autowired MongoConnectionService service;
+
+	private EmbeddedDatabase database;
+	private JdbcConnectionMigrator migrator;
+
+	@Before
+	public void setup() {
+		database = new EmbeddedDatabaseBuilder()
+			.setType(EmbeddedDatabaseType.H2)
+			.addScript("spring/JdbcUsersConnectionRepository.sql")
+			.build();
+
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(database);
+		for (int i = 0; i < ROWS; i++) {
+			jdbcTemplate.update("insert into UserConnection (userId, providerId, providerUserId, rank, "
+					+ "displayName, accessToken, expireTime) values (?, ?, ?, ?, ?, ?, ?)",
+					"user-" + i / 5, "twitter", "@user-" + i, i % 5 + 1, "user " + i, "token-" + i,
+					i % 2 == 0 ? null : Long.valueOf(i));
+		}
+
+		migrator = new JdbcConnectionMigrator(database, service, mongoOps);
+		migrator.setPageSize(10);
+	}
+
+	@After
+	public void tearDown() {
+		database.shutdown();
+		mongoOps.remove(new Query(), MongoConnection.class);
+		mongoOps.remove(new Query(), ConnectionMigrationCheckpoint.class);
+	}
+
+	@Test
+	public void shouldMigrateAllTheRows() {
+		ConnectionMigrationCheckpoint checkpoint = migrator.migrate();
+		assertEquals(ROWS, checkpoint.getMigratedCount());
+		assertEquals(0, checkpoint.getSkippedCount());
+		assertEquals("user-4", checkpoint.getUserId());
+
+		List<MongoConnection> connections = service.getMongoConnections("user-1");
+		assertEquals(5, connections.size());
+		assertEquals("@user-5", connections.get(0).getProviderUserId());
+		assertEquals(1, connections.get(0).getRank());
+		assertEquals("token-5", connections.get(0).getAccessToken());
+		assertEquals(Long.valueOf(5L), connections.get(0).getExpireTime());
+		assertNull(connections.get(1).getExpireTime());
+	}
+
+	@Test
+	public void shouldResumeWhereTheFailedRunStopped() {
+		migrator.setReencryption(new FailingEncryptor(15), converter(Encryptors.noOpText()));
+		try {
+			migrator.migrate();
+			fail("Migration not interrupted");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertEquals(10, mongoOps.count(new Query(), MongoConnection.class));
+
+		migrator.setReencryption(Encryptors.noOpText(), converter(new PrefixEncryptor()));
+		ConnectionMigrationCheckpoint checkpoint = migrator.migrate();
+		assertEquals(ROWS, checkpoint.getMigratedCount());
+		assertEquals(ROWS, mongoOps.count(new Query(), MongoConnection.class));
+
+		List<MongoConnection> connections = service.getMongoConnections("user-4");
+		assertEquals("enc:token-20", connections.get(0).getAccessToken());
+		assertEquals("current", connections.get(0).getKeyId());
+		assertNull(connections.get(0).getSecret());
+	}
+
+	@Test
+	public void shouldRejectTheRowsCollidingWithLiveConnections() {
+		// @user-0 was migrated already, @live holds the rank of @user-1
+		// and @user-2 is stored with another rank
+		service.importMongoConnections(Arrays.asList(document("@user-0", 1), document("@live", 2),
+				document("@user-2", 9)));
+
+		ConnectionMigrationCheckpoint checkpoint = migrator.migrate();
+		assertEquals(ROWS - 3, checkpoint.getMigratedCount());
+		assertEquals(1, checkpoint.getSkippedCount());
+		assertEquals(2, checkpoint.getRejectedCount());
+		assertEquals(Arrays.asList("user-0/twitter/@user-1", "user-0/twitter/@user-2"),
+				checkpoint.getRejectedKeys());
+	}
+
+	private static MongoConnection document(String providerUserId, int rank) {
+		MongoConnection mc = new MongoConnection();
+		mc.setUserId("user-0");
+		mc.setProviderId("twitter");
+		mc.setProviderUserId(providerUserId);
+		mc.setRank(rank);
+		mc.setAccessToken("token");
+		return mc;
+	}
+
+	private static ConnectionConverter converter(TextEncryptor currentKey) {
+		ConnectionConverter converter = new ConnectionConverter(new FakeConnectionFactoryLocator(),
+				Encryptors.noOpText());
+		converter.setEncryptionKeys(Collections.singletonMap("current", currentKey), "current");
+		return converter;
+	}
+
+	private static class FailingEncryptor implements TextEncryptor {
+		private int calls;
+		private final int failAt;
+
+		FailingEncryptor(int failAt) {
+			this.failAt = failAt;
+		}
+
+		public String encrypt(String text) {
+			return text;
+		}
+
+		public String decrypt(String encryptedText) {
+			if (++calls == failAt) {
+				throw new IllegalStateException("Decryption failed");
+			}
+			return encryptedText;
+		}
+	}
+
+	private static class PrefixEncryptor implements TextEncryptor {
+		public String encrypt(String text) {
+			return "enc:" + text;
+		}
+
+		public String decrypt(String encryptedText) {
+			return encryptedText.substring(4);
+		}
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionKey;
+
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.config.MeterFilter;
+import io.micrometer.core.instrument.distribution.DistributionStatisticConfig;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * The test class for the metrics of the connection operations.
+ *
+ * @author Carlo P. Micieli
+ */
+public class MetricsConnectionServiceTests {
+
+	private final FakeConnectionFactory<FakeProvider> factory =
+			new FakeConnectionFactory<FakeProvider>("fake", null, null);
+
+	private ConnectionService delegate;
+	private SimpleConnectionMetrics metrics;
+	private ConnectionService service;
+
+	@Before
+	public void setup() {
+		delegate = mock(ConnectionService.class);
+		metrics = new SimpleConnectionMetrics();
+		service = new MetricsConnectionService(delegate, metrics);
+	}
+
+	@Test
+	public void shouldRecordTheOperationsAndTheirDocuments() {
+		List<Connection<?>> connections = new ArrayList<Connection<?>>();
+		connections.add(factory.createConnection("joey.ramones", "joey"));
+		connections.add(factory.createConnection("johnny.ramones", "johnny"));
+		when(delegate.getConnections("joey")).thenReturn(connections);
+
+		assertSame(connections, service.getConnections("joey"));
+		service.getConnections("joey");
+		service.getConnection("joey", "fake", "dee.dee");
+
+		assertEquals(2, metrics.getCount("getConnections"));
+		assertEquals(4, metrics.getDocumentCount("getConnections"));
+		assertEquals(1, metrics.getCount("getConnection"));
+		assertEquals(0, metrics.getDocumentCount("getConnection"));
+		assertEquals(Arrays.asList("getConnection", "getConnections"), new ArrayList<String>(metrics.getOperations()));
+		assertTrue(metrics.getLatencyPercentile("getConnections", 0.99) >= 1000);
+	}
+
+	@Test
+	public void shouldRecordTheErrorsAndTheDuplicateKeys() {
+		Connection<?> connection = factory.createConnection("joey.ramones", "joey");
+		doThrow(new DuplicateKeyException("E11000")).when(delegate).create("joey", connection);
+
+		try {
+			service.create("joey", connection);
+			fail("Exception not rethrown");
+		} catch (DuplicateKeyException e) {
+			// expected
+		}
+		service.create("joey", connection, 1);
+
+		assertEquals(1, metrics.getCount("create"));
+		assertEquals(1, metrics.getErrorCount("create"));
+		assertEquals(0, metrics.getErrorCount("createWithRank"));
+		assertEquals(1, metrics.getDuplicateKeyCount());
+	}
+
+	@Test
+	public void shouldRecordAStreamOnceClosed() {
+		List<ConnectionKey> keys = Arrays.asList(new ConnectionKey("fake", "joey.ramones"),
+				new ConnectionKey("fake", "johnny.ramones"));
+		InMemoryConnectionService inMemory = new InMemoryConnectionService(
+				new ConnectionConverter(new FakeConnectionFactoryLocator(), Encryptors.noOpText()));
+		for (ConnectionKey key : keys) {
+			inMemory.create("joey", factory.createConnection(key.getProviderUserId(), "joey"));
+		}
+		service = new MetricsConnectionService(inMemory, metrics);
+
+		CloseableIterator<ConnectionKey> it = service.streamConnectionKeys(10);
+		it.next();
+		assertEquals(0, metrics.getCount("streamConnectionKeys"));
+		it.close();
+		it.close();
+		assertEquals(1, metrics.getCount("streamConnectionKeys"));
+		assertEquals(1, metrics.getDocumentCount("streamConnectionKeys"));
+	}
+
+	@Test
+	public void shouldTimeTheDecryptions() {
+		ConnectionConverter converter = new ConnectionConverter(new FakeConnectionFactoryLocator(), Encryptors.noOpText());
+		converter.setMetrics(metrics);
+		converter.convert(converter.convert(factory.createConnection("joey.ramones", "joey")));
+
+		// access token, secret and the empty refresh token
+		assertEquals(3, metrics.getDecryptCount());
+	}
+
+	@Test
+	public void shouldPublishToAMicrometerRegistry() {
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		service = new MetricsConnectionService(delegate, new MicrometerConnectionMetrics(registry));
+		// the configuration of the operation timers, once the filters before this one applied
+		final List<Boolean> histograms = new ArrayList<Boolean>();
+		registry.config().meterFilter(new MeterFilter() {
+			public DistributionStatisticConfig configure(Meter.Id id, DistributionStatisticConfig config) {
+				if (id.getName().equals("social.connections.operations")) {
+					histograms.add(config.isPercentileHistogram());
+				}
+				return config;
+			}
+		});
+		when(delegate.getUserIds(anyString(), anyString())).thenReturn(Arrays.asList("joey", "tommy"));
+		doThrow(new DuplicateKeyException("E11000")).when(delegate).update(anyString(), any(Connection.class));
+
+		service.getUserIds("fake", "joey.ramones");
+		try {
+			service.update("joey", factory.createConnection("joey.ramones", "joey"));
+		} catch (DuplicateKeyException e) {
+			// expected
+		}
+
+		assertEquals(1, registry.find("social.connections.operations")
+				.tags("operation", "getUserIds", "outcome", "success").timer().count());
+		assertEquals(Arrays.asList(Boolean.TRUE, Boolean.TRUE), histograms);
+		assertEquals(2.0, registry.find("social.connections.documents")
+				.tags("operation", "getUserIds").summary().totalAmount(), 0);
+		assertEquals(1.0, registry.find("social.connections.errors")
+				.tags("operation", "update", "exception", "DuplicateKeyException").counter().count(), 0);
+	}
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.security.crypto.encrypt.TextEncryptor;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionFactoryLocator;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.ConnectionRepository;
+import org.springframework.social.connect.ConnectionSignUp;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * The test class for the Mongodb connection repository.
+ *
+ * @author Carlo P. Micieli
+ */
+public class MongoConnectionRepositoryTests extends SpringTest {
+
+	private static final int THREADS = 16;
+	private static final int CONNECTIONS = 400;
+
+	private @Autowired MongoTemplate mongoOps;
+	private @Autowired MongoConnectionService service;
+	private @Autowired ConnectionFactoryLocator connectionFactoryLocator;
+	private @Autowired TextEncryptor textEncryptor;
+	private @Autowired ConnectionConverter converter;
+
+	private final FakeConnectionFactory<FakeProvider> factory =
+			new FakeConnectionFactory<FakeProvider>("fake", null, null);
+
+	private ConnectionRepository repository;
+
+	@Before
+	public void setup() {
+		repository = new MongoUsersConnectionRepository(service, connectionFactoryLocator, textEncryptor)
+			.createConnectionRepository("joey");
+	}
+
+	@After
+	public void tearDown() {
+		mongoOps.remove(new Query(), MongoConnection.class);
+		mongoOps.remove(new Query(), MongoConnectionRank.class);
+	}
+
+	@Test
+	public void shouldAllocateDistinctRanksUnderConcurrentConnects() throws Exception {
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		try {
+			for (int i = 0; i < CONNECTIONS; i++) {
+				final Connection<?> connection = factory.createConnection("user-" + i, "user " + i);
+				futures.add(executor.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						start.await();
+						repository.addConnection(connection);
+						return null;
+					}
+				}));
+			}
+			start.countDown();
+			for (Future<Void> future : futures) {
+				future.get(1, TimeUnit.MINUTES);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		List<MongoConnection> connections = service.getMongoConnections("joey");
+		assertEquals(CONNECTIONS, connections.size());
+
+		Set<Integer> ranks = new HashSet<Integer>();
+		for (MongoConnection mc : connections) {
+			ranks.add(mc.getRank());
+		}
+		assertEquals(CONNECTIONS, ranks.size());
+		assertEquals(1, connections.get(0).getRank());
+		assertEquals(CONNECTIONS, connections.get(CONNECTIONS - 1).getRank());
+	}
+
+	@Test
+	public void shouldContinueAfterConnectionsWithoutRankCounter() {
+		service.create("joey", factory.createConnection("first", "first"), 1);
+		service.create("joey", factory.createConnection("second", "second"), 2);
+
+		repository.addConnection(factory.createConnection("third", "third"));
+
+		assertEquals(4, service.getMaxRank("joey", "fake"));
+	}
+
+	@Test
+	public void shouldRestartFromThePrimaryRankOnceAllConnectionsAreRemoved() {
+		repository.addConnection(factory.createConnection("first", "first"));
+		repository.removeConnection(new ConnectionKey("fake", "first"));
+
+		repository.addConnection(factory.createConnection("second", "second"));
+
+		Connection<?> primary = service.getPrimaryConnection("joey", "fake");
+		assertNotNull("Primary connection not found", primary);
+		assertEquals("second", primary.getKey().getProviderUserId());
+	}
+
+	@Test
+	public void shouldPlaceTheConnectionsAtThePositionsOfTheProviderUsers() {
+		service.create("joey", factory.createConnection("twitter", "a", "a"));
+		service.create("joey", factory.createConnection("twitter", "b", "b"));
+		service.create("joey", factory.createConnection("facebook", "c", "c"));
+
+		MultiValueMap<String, String> providerUsers = new LinkedMultiValueMap<String, String>();
+		providerUsers.put("twitter", Arrays.asList("x", "b", "a", "b"));
+		providerUsers.put("facebook", Arrays.asList("c", "y"));
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		service.setReverseLookupExecutor(executor);
+		try {
+			MultiValueMap<String, Connection<?>> connections = repository.findConnectionsToUsers(providerUsers);
+			assertEquals("[null, {twitter, b, b}, {twitter, a, a}, null]", connections.get("twitter").toString());
+			assertEquals("[{facebook, c, c}, null]", connections.get("facebook").toString());
+		} finally {
+			service.setReverseLookupExecutor(null);
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void shouldLoadTheConnectionsOfEachProviderConcurrently() {
+		service.create("joey", factory.createConnection("twitter", "a", "a"));
+		service.create("joey", factory.createConnection("twitter", "b", "b"));
+		service.create("joey", factory.createConnection("facebook", "c", "c"));
+
+		ConnectionFactoryLocator locator = mock(ConnectionFactoryLocator.class);
+		when(locator.registeredProviderIds()).thenReturn(
+				new LinkedHashSet<String>(Arrays.asList("twitter", "facebook", "linkedin")));
+		ConnectionService spy = Mockito.spy(service);
+		AsyncConnectionService asyncService = new AsyncConnectionService(spy, 3, 10);
+		MongoUsersConnectionRepository usersRepository =
+				new MongoUsersConnectionRepository(spy, locator, textEncryptor);
+		usersRepository.setAsyncConnectionService(asyncService);
+		try {
+			MultiValueMap<String, Connection<?>> connections =
+					usersRepository.createConnectionRepository("joey").findAllConnections();
+			assertEquals("{twitter=[{twitter, a, a}, {twitter, b, b}], facebook=[{facebook, c, c}], linkedin=[]}",
+					connections.toString());
+			verify(spy, never()).getConnections("joey");
+			verify(spy, times(3)).getConnections(eq("joey"), anyString());
+		} finally {
+			asyncService.shutdown();
+		}
+	}
+
+	@Test
+	public void shouldAnswerTheReadsFromTheSnapshot() {
+		service.create("joey", factory.createConnection("first", "first"));
+		service.create("joey", factory.createConnection("second", "second"));
+
+		ConnectionService spy = Mockito.spy(service);
+		ConnectionRepository snapshot =
+				new MongoConnectionRepository("joey", spy, connectionFactoryLocator, converter, true);
+
+		assertEquals(2, snapshot.findConnections("fake").size());
+		assertEquals("second", snapshot.getConnection(new ConnectionKey("fake", "second")).getDisplayName());
+		MultiValueMap<String, String> providerUsers = new LinkedMultiValueMap<String, String>();
+		providerUsers.add("fake", "first");
+		assertEquals(1, snapshot.findConnectionsToUsers(providerUsers).get("fake").size());
+
+		snapshot.removeConnection(new ConnectionKey("fake", "first"));
+		assertEquals(1, snapshot.findConnections("fake").size());
+		assertNull(snapshot.getConnection(new ConnectionKey("fake", "first")));
+
+		verify(spy, times(1)).getMongoConnections("joey");
+		verify(spy, never()).getConnections(anyString(), anyString());
+		verify(spy, never()).getConnection(anyString(), anyString(), anyString());
+	}
+
+	@Test
+	public void shouldKeepAnUpdatedConnectionInTheSnapshotAsItWasGiven() {
+		service.create("joey", factory.createConnection("first", "first"));
+		service.create("joey", factory.createConnection("second", "second"));
+
+		ConnectionService spy = Mockito.spy(service);
+		ConnectionConverter spyConverter = Mockito.spy(converter);
+		ConnectionRepository snapshot =
+				new MongoConnectionRepository("joey", spy, connectionFactoryLocator, spyConverter, true);
+		assertEquals(2, snapshot.findConnections("fake").size());
+
+		Connection<?> updated = factory.createConnection("second", "renamed");
+		snapshot.updateConnection(updated);
+		assertSame(updated, snapshot.getConnection(new ConnectionKey("fake", "second")));
+		assertEquals("renamed", snapshot.findConnections("fake").get(1).getDisplayName());
+
+		verify(spyConverter, never()).convert(any(Connection.class));
+		verify(spy, times(1)).getMongoConnections("joey");
+		assertEquals("renamed", service.getConnection("joey", "fake", "second").getDisplayName());
+	}
+
+	@Test
+	public void shouldReloadTheSnapshotAfterAddingAConnection() {
+		MongoUsersConnectionRepository usersRepository =
+				new MongoUsersConnectionRepository(service, connectionFactoryLocator, textEncryptor);
+		usersRepository.setSnapshotMode(true);
+		repository = usersRepository.createConnectionRepository("joey");
+
+		assertEquals(0, repository.findConnections("fake").size());
+		repository.addConnection(factory.createConnection("first", "first"));
+		assertEquals(1, repository.findConnections("fake").size());
+	}
+
+	@Test
+	public void shouldReadTheSnapshotWithTheKeysOfTheConnectionService() {
+		ConnectionConverter rotatingConverter = new ConnectionConverter(connectionFactoryLocator, textEncryptor);
+		MongoConnectionService rotatingService = new MongoConnectionService(mongoOps, rotatingConverter);
+		rotatingService.create("joey", factory.createConnection("first", "first"));
+		rotatingConverter.setEncryptionKeys(Collections.singletonMap("2017-01",
+				Encryptors.text("first password", "5c0744940b5c369b")), "2017-01");
+		rotatingService.create("joey", factory.createConnection("second", "second"));
+
+		MongoUsersConnectionRepository usersRepository =
+				new MongoUsersConnectionRepository(rotatingService, connectionFactoryLocator, rotatingConverter);
+		usersRepository.setSnapshotMode(true);
+		ConnectionRepository snapshot = usersRepository.createConnectionRepository("joey");
+
+		assertEquals(2, snapshot.findConnections("fake").size());
+		// the access token, secret and empty refresh token of each connection
+		assertEquals(6, rotatingConverter.getDecryptCount());
+	}
+
+	@Test
+	public void shouldSignUpOnTheSignUpExecutor() throws Exception {
+		service.create("joey", factory.createConnection("first", "first"));
+		final List<String> signUpThreads = new ArrayList<String>();
+		MongoUsersConnectionRepository usersRepository =
+				new MongoUsersConnectionRepository(service, connectionFactoryLocator, textEncryptor);
+		usersRepository.setConnectionSignUp(new ConnectionSignUp() {
+			public String execute(Connection<?> connection) {
+				signUpThreads.add(Thread.currentThread().getName());
+				return "dee dee";
+			}
+		});
+
+		ExecutorService lookupExecutor = Executors.newSingleThreadExecutor();
+		ExecutorService signUpExecutor = Executors.newSingleThreadExecutor(new CustomizableThreadFactory("sign-up-"));
+		usersRepository.setLookupExecutor(lookupExecutor);
+		usersRepository.setSignUpExecutor(signUpExecutor);
+		try {
+			assertEquals(Arrays.asList("joey"), usersRepository.findUserIdsWithConnectionAsync(
+					factory.createConnection("first", "first")).get(1, TimeUnit.MINUTES));
+			assertTrue(signUpThreads.isEmpty());
+
+			assertEquals(Arrays.asList("dee dee"), usersRepository.findUserIdsWithConnectionAsync(
+					factory.createConnection("second", "second")).get(1, TimeUnit.MINUTES));
+			assertEquals(Arrays.asList("sign-up-1"), signUpThreads);
+			assertNotNull(service.getConnection("dee dee", "fake", "second"));
+		} finally {
+			lookupExecutor.shutdownNow();
+			signUpExecutor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void shouldFailTheSignInRejectedByTheExecutor() throws Exception {
+		MongoUsersConnectionRepository usersRepository =
+				new MongoUsersConnectionRepository(service, connectionFactoryLocator, textEncryptor);
+		ExecutorService lookupExecutor = Executors.newSingleThreadExecutor();
+		lookupExecutor.shutdown();
+		usersRepository.setLookupExecutor(lookupExecutor);
+
+		try {
+			usersRepository.findUserIdsWithConnectionAsync(factory.createConnection("first", "first")).get();
+			fail("Expected the sign in to be rejected");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof RejectedExecutionException);
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void shouldNotSignInAsynchronouslyWithoutALookupExecutor() {
+		new MongoUsersConnectionRepository(service, connectionFactoryLocator, textEncryptor)
+			.findUserIdsWithConnectionAsync(factory.createConnection("first", "first"));
+	}
+}
@@ -15,6 +15,7 @@
  */
 package uk.ac.ebi.ddi.social.connect.mongo;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
@@ -27,12 +28,20 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.security.crypto.encrypt.Encryptors;
 import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
 import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.support.AbstractConnection;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 
+import com.mongodb.DBObject;
+
 import static org.junit.Assert.*;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
 
 /**
  * The test class for the Mongodb connection service.
@@ -79,6 +88,7 @@ public class MongoConnectionServiceTests extends SpringTest {
 	@After
 	public void tearDown() {
 		mongoOps.remove(new Query(), MongoConnection.class);
+		mongoOps.remove(new Query(), MongoConnectionRank.class);
 	}
 	
 	@Test
@@ -113,6 +123,17 @@ public class MongoConnectionServiceTests extends SpringTest {
 		assertEquals("[joey, johnny]", userIds.toString());
 	}
 	
+	@Test
+	public void shouldCoverTheReverseLookupWithTheProviderIndex() {
+		assertCoveredByProviderIndex(MongoConnectionService.userIdsQuery("twitter", "@joey_ramones"));
+	}
+	
+	@Test
+	public void shouldCoverTheSetReverseLookupWithTheProviderIndex() {
+		assertCoveredByProviderIndex(MongoConnectionService.userIdsQuery("facebook",
+				Arrays.asList("joey.ramones", "JohnnyRamones")));
+	}
+	
 	@Test
 	public void shouldReturnTheDefaultRank() {
 		int rank = service.getMaxRank("deedee", "twitter");
@@ -167,6 +188,26 @@ public class MongoConnectionServiceTests extends SpringTest {
 				connections.toString());
 	}
 	
+	@Test
+	public void shouldStreamTheConnectionsOfAProvider() {
+		CloseableIterator<Connection<?>> it = service.streamConnections("twitter", 2);
+		Set<String> providerUserIds = new HashSet<String>();
+		while (it.hasNext()) {
+			providerUserIds.add(it.next().getKey().getProviderUserId());
+		}
+		assertEquals(2, providerUserIds.size());
+		assertFalse(it.hasNext());
+	}
+	
+	@Test
+	public void shouldStopStreamingOnceClosed() {
+		CloseableIterator<Connection<?>> it = service.streamConnections("twitter", 1);
+		assertTrue(it.hasNext());
+		it.next();
+		it.close();
+		assertFalse(it.hasNext());
+	}
+	
 	@Test
 	public void shouldCreateNewConnection() {
 		Connection<?> userConn = factory.createConnection("userName", "user name");
@@ -182,6 +223,98 @@ public class MongoConnectionServiceTests extends SpringTest {
 		assertEquals("user name", conn.getData().getDisplayName());
 	}
 	
+	@Test
+	public void shouldImportConnectionsReportingTheDuplicates() {
+		List<UserConnection> connections = Arrays.asList(
+			new UserConnection("dee", factory.createConnection("dee-dee", "dee dee")),
+			new UserConnection("cj", factory.createConnection("c-j", "cj")),
+			new UserConnection("dee", factory.createConnection("douglas", "douglas c.")),
+			new UserConnection("marky", factory.createConnection("marky", "marky r.")));
+		
+		ConnectionImportResult result = service.importConnections(connections);
+		assertEquals(3, result.getImportedCount());
+		assertEquals(1, result.getDuplicates().size());
+		assertSame(connections.get(1), result.getDuplicates().get(0));
+		
+		List<Connection<?>> dee = service.getConnections("dee", "fake");
+		assertEquals(2, dee.size());
+		assertEquals("dee-dee", service.getPrimaryConnection("dee", "fake").getKey().getProviderUserId());
+		assertEquals(3, service.getMaxRank("dee", "fake"));
+		assertNotNull(service.getConnection("marky", "fake", "marky"));
+	}
+	
+	@Test
+	public void shouldRankTheImportAfterTheStoredConnections() {
+		ConnectionImportResult result = service.importConnections(Arrays.asList(
+			new UserConnection("joey", factory.createConnection("twitter", "@joey", "joey r.")),
+			new UserConnection("joey", factory.createConnection("twitter", "@jeff", "joey r."))));
+		assertEquals(2, result.getImportedCount());
+		assertTrue(result.getDuplicates().isEmpty());
+		assertEquals(5, service.getMaxRank("joey", "twitter"));
+		
+		service.create("joey", factory.createConnection("twitter", "@jeffrey", "joey r."));
+		assertEquals(6, service.getMaxRank("joey", "twitter"));
+	}
+	
+	@Test
+	public void shouldImportAfterAStaleRankCounter() {
+		// behind the stored connections, as left by the connections written without it
+		MongoConnectionRank counter = new MongoConnectionRank();
+		counter.setUserId("joey");
+		counter.setProviderId("twitter");
+		counter.setRank(1);
+		mongoOps.insert(counter);
+		
+		ConnectionImportResult result = service.importConnections(Arrays.asList(
+			new UserConnection("joey", factory.createConnection("twitter", "@joey", "joey r."))));
+		assertEquals(1, result.getImportedCount());
+		assertTrue(result.getDuplicates().isEmpty());
+		assertEquals(4, service.getMaxRank("joey", "twitter"));
+	}
+	
+	@Test
+	public void shouldTellWhetherALazyConnectionExpiredWithoutDecrypting() {
+		ConnectionConverter converter = new ConnectionConverter(new FakeConnectionFactoryLocator(),
+				Encryptors.noOpText());
+		converter.setLazyDecryption(true);
+		MongoConnection mc = create("joey", "fake", "@joey", "joey r.", 1);
+		mc.setAccessToken("accessToken");
+		
+		mc.setExpireTime(System.currentTimeMillis() - 1000L);
+		assertTrue(converter.convert(mc).hasExpired());
+		mc.setExpireTime(System.currentTimeMillis() + 60000L);
+		assertFalse(converter.convert(mc).hasExpired());
+		assertEquals(0, converter.getDecryptCount());
+	}
+	
+	@Test
+	public void shouldCompareALazyConnectionByItsKey() {
+		ConnectionConverter converter = new ConnectionConverter(new FakeConnectionFactoryLocator(),
+				Encryptors.noOpText());
+		converter.setLazyDecryption(true);
+		MongoConnection mc = create("joey", "fake", "@joey", "joey r.", 1);
+		mc.setAccessToken("accessToken");
+		Connection<?> lazy = converter.convert(mc);
+		
+		final ConnectionData data = new ConnectionData("fake", "@joey", "joey r.",
+				null, null, "accessToken", null, null, null);
+		Connection<?> eager = new AbstractConnection<FakeProvider>(data, null) {
+			public FakeProvider getApi() {
+				return null;
+			}
+			public ConnectionData createData() {
+				return data;
+			}
+		};
+		assertEquals(eager, lazy);
+		assertEquals(lazy, eager);
+		assertEquals(eager.hashCode(), lazy.hashCode());
+		assertEquals(0, Arrays.asList(lazy).indexOf(eager));
+		assertTrue(Arrays.asList(eager).contains(lazy));
+		assertFalse(lazy.equals(converter.convert(create("joey", "fake", "@jeffrey", "joey r.", 2))));
+		assertEquals(0, converter.getDecryptCount());
+	}
+	
 	@Test(expected = DuplicateKeyException.class)
 	public void shouldThrowExceptionIfDuplicatedValues() {
 		Connection<?> userConn = factory.createConnection("cj", "cj");
@@ -201,6 +334,61 @@ public class MongoConnectionServiceTests extends SpringTest {
 		assertEquals("joey r.", conn2.getDisplayName());
 	}
 	
+	@Test
+	public void shouldUpdateTheTokens() {
+		ConnectionData data = new ConnectionData("twitter", "@JeffreyHyman", "jeffrey h.",
+				null, null, "newAccessToken", "newSecret", "newRefreshToken", 42L);
+		service.update("joey", new FakeConnection<FakeProvider>(data));
+
+		MongoConnection mc = mongoOps.findOne(query(where("userId").is("joey")
+				.and("providerUserId").is("@JeffreyHyman")), MongoConnection.class);
+		assertEquals(2, mc.getRank());
+		assertEquals("jeffrey h.", mc.getDisplayName());
+		assertEquals("newAccessToken", mc.getAccessToken());
+		assertEquals("newSecret", mc.getSecret());
+		assertEquals("newRefreshToken", mc.getRefreshToken());
+		assertEquals(Long.valueOf(42L), mc.getExpireTime());
+	}
+
+	@Test
+	public void shouldUpdateABatchOfConnections() {
+		ConnectionData data = new ConnectionData("twitter", "@JeffreyHyman", "jeffrey h.",
+				null, null, "newAccessToken", null, null, null);
+		service.updateConnections(Arrays.asList(
+			new UserConnection("joey", new FakeConnection<FakeProvider>(data)),
+			new UserConnection("johnny", factory.createConnection("JohnnyRamones", "john c."))));
+
+		MongoConnection mc = mongoOps.findOne(query(where("userId").is("joey")
+				.and("providerUserId").is("@JeffreyHyman")), MongoConnection.class);
+		assertEquals("jeffrey h.", mc.getDisplayName());
+		assertEquals("newAccessToken", mc.getAccessToken());
+		assertEquals(2, mc.getRank());
+		assertEquals("john c.", service.getConnection("johnny", "fake", "JohnnyRamones").getDisplayName());
+	}
+	
+	@Test
+	public void shouldReadTheDocumentsWrittenByTheCodec() {
+		MongoConnection mc = create("dee dee", "twitter", "@deedee", "dee dee r.", 3);
+		mc.setAccessToken("accessToken");
+		mc.setExpireTime(42L);
+		mongoOps.getCollection("connections").insert(MongoConnectionCodec.write(mc));
+
+		MongoConnection read = mongoOps.findOne(query(where("userId").is("dee dee")), MongoConnection.class);
+		assertNotNull(read.getId());
+		assertEquals("@deedee", read.getProviderUserId());
+		assertEquals(3, read.getRank());
+		assertEquals("accessToken", read.getAccessToken());
+		assertNull(read.getSecret());
+		assertEquals(Long.valueOf(42L), read.getExpireTime());
+
+		Query q = query(where("userId").is("dee dee"));
+		q.fields().include("userId").exclude("_id");
+		MongoConnection projected = mongoOps.findOne(q, MongoConnection.class);
+		assertEquals("dee dee", projected.getUserId());
+		assertNull(projected.getProviderId());
+		assertEquals(0, projected.getRank());
+	}
+	
 	@Test
 	public void shouldRemoveTheConnection() {
 		service.remove("joey", new ConnectionKey("twitter", "@JeffreyHyman"));
@@ -216,4 +404,46 @@ public class MongoConnectionServiceTests extends SpringTest {
 		List<Connection<?>> conn = service.getConnections("joey", "twitter");
 		assertEquals(0, conn.size());
 	}
+	
+	// helper methods
+	
+	private void assertCoveredByProviderIndex(Query q) {
+		DBObject explain = mongoOps.getCollection("connections")
+				.find(q.getQueryObject(), q.getFieldsObject())
+				.explain();
+		
+		if (!explain.containsField("queryPlanner")) {
+			// servers before 3.0
+			assertEquals("Not covered: " + explain, Boolean.TRUE, explain.get("indexOnly"));
+			assertTrue("Wrong index: " + explain, 
+					String.valueOf(explain.get("cursor")).contains("connections_provider_user_idx"));
+			return;
+		}
+		
+		DBObject winningPlan = (DBObject) ((DBObject) explain.get("queryPlanner")).get("winningPlan");
+		List<String> stages = new ArrayList<String>();
+		collectStages(winningPlan, stages);
+		assertTrue("Index not used: " + winningPlan, stages.contains("IXSCAN"));
+		assertFalse("Not covered: " + winningPlan, stages.contains("FETCH"));
+		assertFalse("Collection scan: " + winningPlan, stages.contains("COLLSCAN"));
+		assertTrue("Wrong index: " + winningPlan, 
+				winningPlan.toString().contains("connections_provider_user_idx"));
+		
+		DBObject executionStats = (DBObject) explain.get("executionStats");
+		if (executionStats != null) {
+			assertEquals(0, ((Number) executionStats.get("totalDocsExamined")).intValue());
+		}
+	}
+	
+	private static void collectStages(DBObject plan, List<String> stages) {
+		stages.add((String) plan.get("stage"));
+		if (plan.containsField("inputStage")) {
+			collectStages((DBObject) plan.get("inputStage"), stages);
+		}
+		if (plan.containsField("inputStages")) {
+			for (Object input : (List<?>) plan.get("inputStages")) {
+				collectStages((DBObject) input, stages);
+			}
+		}
+	}
 }
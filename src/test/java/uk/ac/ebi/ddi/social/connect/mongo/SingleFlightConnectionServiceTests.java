@@ -0,0 +1,182 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.social.connect.Connection;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * The test class for the coalescing of concurrent identical reads.
+ *
+ * @author Carlo P. Micieli
+ */
+public class SingleFlightConnectionServiceTests {
+
+	private static final int THREADS = 8;
+
+	private final FakeConnectionFactory<FakeProvider> factory =
+			new FakeConnectionFactory<FakeProvider>("fake", null, null);
+
+	private final CountDownLatch release = new CountDownLatch(1);
+	private final AtomicInteger calls = new AtomicInteger();
+
+	private ConnectionService delegate;
+	private SingleFlightConnectionService service;
+	private ExecutorService executor;
+	private List<Thread> threads;
+
+	@Before
+	public void setup() {
+		delegate = mock(ConnectionService.class);
+		service = new SingleFlightConnectionService(delegate, 10, TimeUnit.SECONDS);
+		threads = new ArrayList<Thread>();
+		executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r);
+				threads.add(t);
+				return t;
+			}
+		});
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void shouldRunConcurrentIdenticalReadsOnce() throws Exception {
+		final Connection<?> primary = factory.createConnection("joey.ramones", "joey r.");
+		doAnswer(blocking(primary)).when(delegate).getPrimaryConnection("joey", "fake");
+
+		List<Future<Connection<?>>> futures = getPrimaryConnections();
+		release.countDown();
+		for (Future<Connection<?>> future : futures) {
+			assertSame(primary, future.get(10, TimeUnit.SECONDS));
+		}
+
+		assertEquals(1, calls.get());
+		assertEquals(1, service.getExecutedCount());
+		assertEquals(THREADS - 1, service.getCoalescedCount());
+	}
+
+	@Test
+	public void shouldThrowTheExceptionToAllTheWaiters() throws Exception {
+		doAnswer(blocking(new DataAccessResourceFailureException("down")))
+			.when(delegate).getPrimaryConnection("joey", "fake");
+
+		List<Future<Connection<?>>> futures = getPrimaryConnections();
+		release.countDown();
+		for (Future<Connection<?>> future : futures) {
+			try {
+				future.get(10, TimeUnit.SECONDS);
+				fail("Exception not thrown");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof DataAccessResourceFailureException);
+			}
+		}
+		assertEquals(1, calls.get());
+	}
+
+	@Test
+	public void shouldRunTheReadOnceTheWaitIsOver() throws Exception {
+		service = new SingleFlightConnectionService(delegate, 50, TimeUnit.MILLISECONDS);
+		final Connection<?> primary = factory.createConnection("joey.ramones", "joey r.");
+		doAnswer(blocking(primary)).when(delegate).getPrimaryConnection("joey", "fake");
+
+		Future<Connection<?>> leader = executor.submit(getPrimaryConnection());
+		awaitWaiting(1);
+		// the first call keeps blocking, the second one returns straight away
+		assertSame(primary, service.getPrimaryConnection("joey", "fake"));
+		release.countDown();
+		assertSame(primary, leader.get(10, TimeUnit.SECONDS));
+
+		assertEquals(2, service.getExecutedCount());
+		assertEquals(1, service.getTimeoutCount());
+	}
+
+	// helper methods
+
+	private Answer<Object> blocking(final Object result) {
+		return new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				if (calls.incrementAndGet() == 1) {
+					release.await();
+				}
+				if (result instanceof RuntimeException) {
+					throw (RuntimeException) result;
+				}
+				return result;
+			}
+		};
+	}
+
+	private Callable<Connection<?>> getPrimaryConnection() {
+		return new Callable<Connection<?>>() {
+			public Connection<?> call() {
+				return service.getPrimaryConnection("joey", "fake");
+			}
+		};
+	}
+
+	private List<Future<Connection<?>>> getPrimaryConnections() throws InterruptedException {
+		List<Future<Connection<?>>> futures = new ArrayList<Future<Connection<?>>>();
+		for (int i = 0; i < THREADS; i++) {
+			futures.add(executor.submit(getPrimaryConnection()));
+		}
+		awaitWaiting(THREADS);
+		return futures;
+	}
+
+	// waits until the given number of threads are blocked on the read or on its result
+	private void awaitWaiting(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (System.currentTimeMillis() < deadline) {
+			int waiting = 0;
+			for (Thread t : new ArrayList<Thread>(threads)) {
+				Thread.State state = t.getState();
+				if (state == Thread.State.WAITING || state == Thread.State.TIMED_WAITING) {
+					waiting++;
+				}
+			}
+			if (waiting >= count && threads.size() >= count) {
+				return;
+			}
+			Thread.sleep(10);
+		}
+		fail("Threads not waiting");
+	}
+}
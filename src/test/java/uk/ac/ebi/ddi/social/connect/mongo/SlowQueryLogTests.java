@@ -0,0 +1,148 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.core.task.SyncTaskExecutor;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * The test class for the slow query log.
+ *
+ * @author Carlo P. Micieli
+ */
+public class SlowQueryLogTests {
+
+	private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(250);
+
+	private DBCollection collection;
+	private DBCursor cursor;
+	private SlowQueryLog log;
+
+	@Before
+	public void setup() {
+		collection = mock(DBCollection.class);
+		cursor = mock(DBCursor.class);
+		when(collection.getName()).thenReturn("connections");
+		when(collection.find(any(DBObject.class), any(DBObject.class))).thenReturn(cursor);
+		when(cursor.sort(any(DBObject.class))).thenReturn(cursor);
+
+		DBObject winningPlan = new BasicDBObject("stage", "SORT")
+			.append("inputStage", new BasicDBObject("stage", "COLLSCAN"));
+		when(cursor.explain()).thenReturn(
+				new BasicDBObject("queryPlanner", new BasicDBObject("winningPlan", winningPlan)));
+
+		log = new SlowQueryLog(100, TimeUnit.MILLISECONDS);
+		log.setExplainExecutor(new SyncTaskExecutor());
+	}
+
+	@After
+	public void tearDown() {
+		log.shutdown();
+	}
+
+	@Test
+	public void shouldIgnoreTheQueriesUnderTheThreshold() {
+		log.record(ConnectionOperation.REVERSE_LOOKUP, collection, query("joey"), null, null,
+				TimeUnit.MILLISECONDS.toNanos(99), 1);
+
+		assertEquals(0, log.getSlowQueryCount());
+		verify(collection, never()).find(any(DBObject.class), any(DBObject.class));
+	}
+
+	@Test
+	public void shouldExplainEachQueryShapeOncePerInterval() {
+		DBObject sort = new BasicDBObject("rank", 1);
+		log.record(ConnectionOperation.REVERSE_LOOKUP, collection, query("joey"), null, sort, SLOW, 1);
+		log.record(ConnectionOperation.REVERSE_LOOKUP, collection, query("dee dee"), null, sort, SLOW, 1);
+
+		assertEquals(2, log.getSlowQueryCount());
+		assertEquals(1, log.getExplainCount());
+		verify(cursor, times(1)).sort(sort);
+		assertEquals("SORT <- COLLSCAN", log.getPlans().get(
+				"REVERSE_LOOKUP connections {providerId: ?, providerUserId: {$in: ?}} sort {rank: 1}"));
+
+		log.setExplainInterval(0, TimeUnit.MILLISECONDS);
+		log.record(ConnectionOperation.REVERSE_LOOKUP, collection, query("johnny"), null, sort, SLOW, 1);
+		assertEquals(2, log.getExplainCount());
+	}
+
+	@Test
+	public void shouldExplainOffTheThreadOfTheQuery() {
+		final AtomicReference<String> explainThread = new AtomicReference<String>();
+		when(cursor.explain()).thenAnswer(new Answer<DBObject>() {
+			public DBObject answer(InvocationOnMock invocation) {
+				explainThread.set(Thread.currentThread().getName());
+				return new BasicDBObject("cursor", "BasicCursor");
+			}
+		});
+		log = new SlowQueryLog(100, TimeUnit.MILLISECONDS);
+
+		log.record(ConnectionOperation.REVERSE_LOOKUP, collection, query("joey"), null, null, SLOW, 1);
+
+		verify(cursor, timeout(5000)).explain();
+		assertEquals("connection-slow-query-explain", explainThread.get());
+	}
+
+	@Test
+	public void shouldCountTheInValues() {
+		assertEquals(1, SlowQueryLog.inSize(query("joey")));
+		assertEquals(0, SlowQueryLog.inSize(new BasicDBObject("userId", "joey")));
+		assertEquals(3, SlowQueryLog.inSize(new BasicDBObject("$or", Arrays.asList(query("joey"),
+				new BasicDBObject("userId", new BasicDBObject("$in", Arrays.asList("dee dee", "johnny")))))));
+	}
+
+	@Test
+	public void shouldSummarizeTheIndexScans() {
+		DBObject winningPlan = new BasicDBObject("stage", "FETCH")
+			.append("inputStage", new BasicDBObject("stage", "IXSCAN").append("indexName", "connections_primary_idx"));
+		assertEquals("FETCH <- IXSCAN connections_primary_idx", SlowQueryLog.summarize(
+				new BasicDBObject("queryPlanner", new BasicDBObject("winningPlan", winningPlan))));
+		assertEquals("COLLSCAN", SlowQueryLog.summarize(new BasicDBObject("cursor", "BasicCursor")));
+	}
+
+	@Test
+	public void shouldLogTheQueryEvenWhenTheExplainFails() {
+		when(cursor.explain()).thenThrow(new IllegalStateException("no server"));
+
+		log.record(ConnectionOperation.PRIMARY_LOOKUP, collection, query("joey"), null, null, SLOW, 0);
+
+		assertEquals(1, log.getSlowQueryCount());
+		assertEquals(0, log.getExplainCount());
+		assertTrue(log.getPlans().isEmpty());
+	}
+
+	private static DBObject query(String providerUserId) {
+		return new BasicDBObject("providerId", "twitter")
+			.append("providerUserId", new BasicDBObject("$in", Arrays.asList(providerUserId)));
+	}
+}
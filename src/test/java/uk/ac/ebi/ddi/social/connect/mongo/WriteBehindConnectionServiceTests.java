@@ -0,0 +1,128 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.ddi.social.connect.mongo;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.social.connect.Connection;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * The test class for the write-behind buffer of the connection updates.
+ *
+ * @author Carlo P. Micieli
+ */
+public class WriteBehindConnectionServiceTests {
+
+	private final FakeConnectionFactory<FakeProvider> factory =
+			new FakeConnectionFactory<FakeProvider>("fake", null, null);
+
+	private ConnectionService delegate;
+	private WriteBehindConnectionService service;
+
+	@Before
+	public void setup() {
+		delegate = mock(ConnectionService.class);
+		service = new WriteBehindConnectionService(delegate, 1, TimeUnit.HOURS, 3);
+	}
+
+	@After
+	public void tearDown() {
+		service.shutdown();
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void shouldWriteTheLastUpdateOfEachConnectionOnce() {
+		service.update("joey", factory.createConnection("joey.ramones", "first"));
+		service.update("joey", factory.createConnection("joey.ramones", "second"));
+		service.update("joey", factory.createConnection("joey.ramones", "third"));
+		service.update("johnny", factory.createConnection("johnny.ramones", "johnny"));
+		assertEquals(2, service.getQueueDepth());
+		verify(delegate, never()).update(anyString(), any(Connection.class));
+
+		service.flush();
+
+		ArgumentCaptor<List> batch = ArgumentCaptor.forClass(List.class);
+		verify(delegate, times(1)).updateConnections(batch.capture());
+		assertEquals(2, batch.getValue().size());
+		for (Object o : batch.getValue()) {
+			UserConnection uc = (UserConnection) o;
+			if (uc.getUserId().equals("joey")) {
+				assertEquals("third", uc.getConnection().getDisplayName());
+			}
+		}
+		assertEquals(0, service.getQueueDepth());
+		assertEquals(2, service.getCoalescedCount());
+		assertEquals(2, service.getFlushedCount());
+		assertEquals(1, service.getFlushCount());
+	}
+
+	@Test
+	public void shouldWriteTheUpdatesOfTheUserBeforeReading() {
+		service.update("joey", factory.createConnection("joey.ramones", "joey"));
+		service.update("johnny", factory.createConnection("johnny.ramones", "johnny"));
+
+		service.getPrimaryConnection("joey", "fake");
+
+		InOrder inOrder = inOrder(delegate);
+		inOrder.verify(delegate).updateConnections(anyListOf(UserConnection.class));
+		inOrder.verify(delegate).getPrimaryConnection("joey", "fake");
+		assertEquals(1, service.getQueueDepth());
+	}
+
+	@Test
+	public void shouldFlushOnceFull() {
+		service.update("joey", factory.createConnection("1", "1"));
+		service.update("joey", factory.createConnection("2", "2"));
+		service.update("joey", factory.createConnection("3", "3"));
+		service.update("joey", factory.createConnection("4", "4"));
+
+		verify(delegate, times(1)).updateConnections(anyListOf(UserConnection.class));
+		assertEquals(1, service.getQueueDepth());
+	}
+
+	@Test
+	public void shouldKeepTheUpdatesOfAFailedFlush() {
+		doThrow(new DataAccessResourceFailureException("down"))
+			.doNothing()
+			.when(delegate).updateConnections(anyListOf(UserConnection.class));
+		service.update("joey", factory.createConnection("joey.ramones", "joey"));
+
+		try {
+			service.flush();
+			fail("Exception not thrown");
+		} catch (DataAccessResourceFailureException e) {
+			// expected
+		}
+		assertEquals(1, service.getQueueDepth());
+		assertEquals(1, service.getFailedFlushCount());
+
+		service.flush();
+		assertEquals(0, service.getQueueDepth());
+		assertEquals(1, service.getFlushedCount());
+	}
+}